@@ -0,0 +1,305 @@
+/**
+ * Adaptive rpm sampler for propeller open-water style curves
+ *
+ * For one speed/trim/height condition, a Gaussian process in advance
+ * ratio J is fitted to each of the KT, KQ and eta values completed so far.
+ * The length scale and nugget of each curve are chosen from a grid by
+ * their marginal likelihood, and the signal variance is the maximum
+ * likelihood one, so the predicted uncertainty follows the data and not
+ * only the sample positions. The next rpm is the candidate where the
+ * predicted uncertainty (relative to the curve magnitude) is largest.
+ * Sampling stops once the leave-one-out prediction error of every curve
+ * and the largest predicted uncertainty are both below the tolerance.
+ *
+ * Candidate rpms are rounded to rpmResolution. The range ends and the
+ * midpoint are run first, low to high, so the first rpm steps are half the
+ * range rather than all of it.
+ *
+ * star v11.06
+ */
+import java.util.*;
+
+public class AdaptiveSampler {
+
+    /**
+     * @param rpmMin lowest rpm of the range
+     * @param rpmMax highest rpm of the range
+     * @param numCandidates number of evenly spaced candidate rpms
+     * @param tol relative prediction error at which curves are accepted
+     * @param maxPoints maximum number of points per curve
+     */
+    public AdaptiveSampler(double rpmMin, double rpmMax, int numCandidates,
+            double tol, int maxPoints) {
+        this.rpmMin = rpmMin;
+        this.rpmMax = rpmMax;
+        this.numCandidates = numCandidates;
+        this.tol = tol;
+        this.maxPoints = maxPoints;
+    }
+
+    /**
+     * Starts a new curve. J = jFactor / rpm for the current speed and prop
+     * diameter.
+     */
+    public void reset(double jFactor) {
+        this.jFactor = jFactor;
+        rpms.clear();
+        js.clear();
+        for (List<Double> y : ys) {
+            y.clear();
+        }
+        maxRelStd = Double.MAX_VALUE;
+        maxLooError = Double.MAX_VALUE;
+        TreeSet<Double> c = new TreeSet<Double>();
+        for (int i = 0; i < numCandidates; i++) {
+            double rpm = rpmMin + (rpmMax - rpmMin) * i / (numCandidates - 1);
+            c.add(Math.round(rpm / rpmResolution) * rpmResolution);
+        }
+        candidates = new double[c.size()];
+        int i = 0;
+        for (double rpm : c) {
+            candidates[i++] = rpm;
+        }
+    }
+
+    public void add(double rpm, double kt, double kq, double eta) {
+        rpms.add(rpm);
+        js.add(jFactor / rpm);
+        ys.get(0).add(kt);
+        ys.get(1).add(kq);
+        ys.get(2).add(eta);
+    }
+
+    /**
+     * Next rpm to run, or NaN once the curves meet the tolerance or the
+     * point budget is spent.
+     */
+    public double next() {
+        int n = rpms.size();
+        int last = candidates.length - 1;
+        if (n == 0) {
+            return candidates[0];
+        } else if (n == 1) {
+            return candidates[last / 2];
+        } else if (n == 2) {
+            return candidates[last];
+        } else if (n >= maxPoints) {
+            return Double.NaN;
+        }
+        double[] x = new double[n];
+        for (int i = 0; i < n; i++) {
+            x[i] = js.get(i);
+        }
+        Fit[] fits = new Fit[ys.size()];
+        maxLooError = 0;
+        for (int c = 0; c < ys.size(); c++) {
+            fits[c] = new Fit(x, ys.get(c));
+            maxLooError = Math.max(maxLooError, fits[c].looError);
+        }
+        double bestStd = 0;
+        double bestRpm = Double.NaN;
+        for (double rpm : candidates) {
+            if (rpms.contains(rpm)) {
+                continue;
+            }
+            double relStd = 0;
+            for (Fit f : fits) {
+                relStd = Math.max(relStd, f.relativeStd(jFactor / rpm));
+            }
+            if (relStd > bestStd) {
+                bestStd = relStd;
+                bestRpm = rpm;
+            }
+        }
+        maxRelStd = bestStd;
+        if (n >= minPoints && maxLooError < tol && bestStd < tol) {
+            return Double.NaN;
+        }
+        return bestRpm;
+    }
+
+    /**
+     * Largest relative standard deviation found by the last call to next().
+     */
+    public double getMaxRelativeStd() {
+        return maxRelStd;
+    }
+
+    /**
+     * Largest relative leave-one-out error found by the last call to
+     * next().
+     */
+    public double getMaxLooError() {
+        return maxLooError;
+    }
+
+    public int size() {
+        return rpms.size();
+    }
+
+    //--------------------------------------------------------------------------
+    // -- GAUSSIAN PROCESS --
+    //--------------------------------------------------------------------------
+    /**
+     * GP of one curve with the hyperparameters of largest marginal
+     * likelihood.
+     */
+    private class Fit {
+
+        Fit(double[] x, List<Double> y) {
+            this.x = x;
+            int n = x.length;
+            z = new double[n];
+            for (double v : y) {
+                mean += v / n;
+                scale = Math.max(scale, Math.abs(v));
+            }
+            scale = Math.max(scale, 1e-30);
+            for (int i = 0; i < n; i++) {
+                z[i] = y.get(i) - mean;
+            }
+            double range = 0;
+            for (double a : x) {
+                for (double b : x) {
+                    range = Math.max(range, Math.abs(a - b));
+                }
+            }
+            double best = -Double.MAX_VALUE;
+            for (double l : lengthScales) {
+                for (double g : nuggets) {
+                    double[][] chol = cholesky(correlation(l * range, g));
+                    double[] alpha = solve(chol, z);
+                    double s2 = Math.max(dot(z, alpha) / n,
+                            1e-24 * scale * scale);
+                    double logDet = 0;
+                    for (int i = 0; i < n; i++) {
+                        logDet += 2 * Math.log(chol[i][i]);
+                    }
+                    double ll = -.5 * n * Math.log(s2) - .5 * logDet;
+                    if (ll > best) {
+                        best = ll;
+                        len = l * range;
+                        variance = s2;
+                        this.chol = chol;
+                        this.alpha = alpha;
+                    }
+                }
+            }
+            // leave-one-out residual of point i is alpha_i / (R^-1)_ii
+            for (int i = 0; i < n; i++) {
+                double[] e = new double[n];
+                e[i] = 1;
+                double rii = solve(chol, e)[i];
+                looError = Math.max(looError,
+                        Math.abs(alpha[i] / rii) / scale);
+            }
+        }
+
+        /**
+         * Posterior standard deviation at j divided by the curve magnitude.
+         */
+        double relativeStd(double j) {
+            double[] k = new double[x.length];
+            for (int a = 0; a < k.length; a++) {
+                k[a] = kernel(x[a], j, len);
+            }
+            double var = variance * (1 - dot(k, solve(chol, k)));
+            return Math.sqrt(Math.max(var, 0)) / scale;
+        }
+
+        private double[][] correlation(double l, double g) {
+            int n = x.length;
+            double[][] r = new double[n][n];
+            for (int a = 0; a < n; a++) {
+                for (int b = 0; b < n; b++) {
+                    r[a][b] = kernel(x[a], x[b], l);
+                }
+                r[a][a] += g;
+            }
+            return r;
+        }
+
+        private final double[] x;
+        private final double[] z;
+        private double mean;
+        private double scale;
+        private double len;
+        private double variance;
+        private double[][] chol;
+        private double[] alpha;
+        private double looError;
+    }
+
+    private static double kernel(double a, double b, double len) {
+        double d = (a - b) / len;
+        return Math.exp(-.5 * d * d);
+    }
+
+    private static double dot(double[] a, double[] b) {
+        double s = 0;
+        for (int i = 0; i < a.length; i++) {
+            s += a[i] * b[i];
+        }
+        return s;
+    }
+
+    private static double[][] cholesky(double[][] a) {
+        int n = a.length;
+        double[][] l = new double[n][n];
+        for (int i = 0; i < n; i++) {
+            for (int j = 0; j <= i; j++) {
+                double sum = a[i][j];
+                for (int k = 0; k < j; k++) {
+                    sum -= l[i][k] * l[j][k];
+                }
+                l[i][j] = i == j ? Math.sqrt(Math.max(sum, 1e-300))
+                        : sum / l[j][j];
+            }
+        }
+        return l;
+    }
+
+    /**
+     * Solves L L^T x = b.
+     */
+    private static double[] solve(double[][] l, double[] b) {
+        int n = b.length;
+        double[] y = new double[n];
+        for (int i = 0; i < n; i++) {
+            double sum = b[i];
+            for (int k = 0; k < i; k++) {
+                sum -= l[i][k] * y[k];
+            }
+            y[i] = sum / l[i][i];
+        }
+        double[] x = new double[n];
+        for (int i = n - 1; i >= 0; i--) {
+            double sum = y[i];
+            for (int k = i + 1; k < n; k++) {
+                sum -= l[k][i] * x[k];
+            }
+            x[i] = sum / l[i][i];
+        }
+        return x;
+    }
+
+    double[] lengthScales = {.25, .5, 1, 2}; // kernel lengths tried, as fractions of the sampled J range
+    double[] nuggets = {1e-8, 1e-6, 1e-4, 1e-2}; // relative noise levels tried
+    double rpmResolution = .5; // candidate rpms are rounded to this
+    int minPoints = 4; // points before the leave-one-out check may stop a curve
+
+    private final double rpmMin;
+    private final double rpmMax;
+    private final int numCandidates;
+    private final double tol;
+    private final int maxPoints;
+    private double[] candidates;
+    private double jFactor;
+    private double maxRelStd;
+    private double maxLooError;
+    private final ArrayList<Double> rpms = new ArrayList<Double>();
+    private final ArrayList<Double> js = new ArrayList<Double>();
+    private final List<List<Double>> ys = Arrays.<List<Double>>asList(
+            new ArrayList<Double>(), new ArrayList<Double>(),
+            new ArrayList<Double>()); // KT, KQ, eta
+}
@@ -0,0 +1,311 @@
+/**
+ * Background compression and relocation of sweep artifacts
+ *
+ * Watches an output directory and moves finished run artifacts (.sim,
+ * .sce, csv tables, pictures) to an archive root while the next point
+ * solves. Files are gzip-compressed on a low priority thread pool at a
+ * configurable deflate level, except formats that are already compressed,
+ * which are moved as they are. A file is finished once it no longer belongs
+ * to the active point and its size and time stamp have settled.
+ *
+ * Files older than the manager and files the macros read back (results
+ * workbooks, warm-start and sweep indexes, field tables, the monitor
+ * exports and archives excel and Props read from the working directory)
+ * are never touched, nor are files the hold filter accepts (e.g. saved sims
+ * a RenderQueue still renders from). When the output directory, counting every file in it,
+ * exceeds the high-water mark or the free space of its share drops below
+ * minFreeGB, the oldest finished files are moved uncompressed until usage
+ * is back below the low-water mark, so a slow compression queue never lets
+ * the share fill up and the solver is never waiting on the archive.
+ *
+ * star v11.06
+ */
+import java.io.*;
+import java.nio.file.*;
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.*;
+import java.util.regex.Pattern;
+import java.util.zip.GZIPOutputStream;
+import macroutils.*;
+
+public class ArtifactManager {
+
+    /**
+     * @param outDir directory the macro writes its artifacts to
+     * @param archiveRoot directory artifacts are moved to, relative paths
+     *        below outDir are kept. Null or empty disables the manager.
+     */
+    public ArtifactManager(String outDir, String archiveRoot) {
+        this.outDir = new File(outDir);
+        this.archiveRoot = archiveRoot == null || archiveRoot.isEmpty()
+                ? null : new File(archiveRoot);
+    }
+
+    /**
+     * Starts watching the output directory.
+     */
+    public void start() {
+        if (archiveRoot == null || poller != null) {
+            return;
+        }
+        archiveRoot.mkdirs();
+        startTime = System.currentTimeMillis();
+        pool = Executors.newFixedThreadPool(threads, factory("Artifact-Compress"));
+        poller = Executors.newSingleThreadScheduledExecutor(
+                factory("Artifact-Poll"));
+        poller.scheduleWithFixedDelay(new Runnable() {
+            public void run() {
+                poll(false);
+            }
+        }, pollSeconds, pollSeconds, TimeUnit.SECONDS);
+    }
+
+    /**
+     * Protects every file whose path relative to the output directory starts
+     * with the prefix, normally the title of the point being run.
+     */
+    public void setActive(String prefix) {
+        active = prefix == null ? null : prefix.replace('\\', '/');
+    }
+
+    /**
+     * Stops watching and waits until every remaining artifact is archived.
+     */
+    public void close() {
+        if (poller == null) {
+            return;
+        }
+        try {
+            poller.shutdown();
+            poller.awaitTermination(1, TimeUnit.HOURS);
+            active = null;
+            poll(true);
+            pool.shutdown();
+            pool.awaitTermination(1, TimeUnit.DAYS);
+        } catch (InterruptedException ex) {
+            Thread.currentThread().interrupt();
+        }
+        poller = null;
+    }
+
+    public void printStats(MacroUtils mu) {
+        for (String e = errors.poll(); e != null; e = errors.poll()) {
+            mu.getSimulation().println("Artifact manager: " + e);
+        }
+        if (archiveRoot == null) {
+            return;
+        }
+        mu.io.say.value("Artifacts archived", String.format(
+                "%d compressed (%.2f GB to %.2f GB), %d moved (%.2f GB)",
+                compressed.get(), bytesIn.get() / 1e9, bytesOut.get() / 1e9,
+                moved.get(), bytesMoved.get() / 1e9), null, true);
+    }
+
+    private synchronized void poll(boolean all) {
+        try {
+            HashMap<String, long[]> seen = new HashMap<String, long[]>();
+            ArrayList<File> ready = new ArrayList<File>();
+            long used = 0;
+            for (File f : list(outDir, new ArrayList<File>())) {
+                String rel = relative(f);
+                long[] now = {f.length(), f.lastModified()};
+                long[] prev = lastSeen.get(rel);
+                seen.put(rel, now);
+                used += now[0];
+                if (now[1] < startTime || exclude.matcher(rel).matches()) {
+                    continue;
+                }
+                if (claimed.contains(rel) || isActive(rel)
+                        || (hold != null && hold.accept(f))) {
+                    continue;
+                }
+                boolean settled = prev != null && prev[0] == now[0]
+                        && prev[1] == now[1] && System.currentTimeMillis()
+                        - now[1] > settleSeconds * 1000;
+                if (all || settled) {
+                    ready.add(f);
+                }
+            }
+            lastSeen = seen;
+            Collections.sort(ready, new Comparator<File>() {
+                public int compare(File a, File b) {
+                    return Long.compare(a.lastModified(), b.lastModified());
+                }
+            });
+
+            // over the high-water mark, free space now and compress later
+            long free = outDir.getUsableSpace();
+            if (used > highWaterGB * 1e9 || free < minFreeGB * 1e9) {
+                for (File f : ready) {
+                    if (used < lowWaterGB * 1e9 && free >= minFreeGB * 1e9) {
+                        break;
+                    }
+                    String rel = relative(f);
+                    if (!claimed.add(rel)) {
+                        continue;
+                    }
+                    try {
+                        long b = f.length();
+                        move(f, rel);
+                        used -= b;
+                        free += b;
+                    } catch (IOException ex) {
+                        errors.add(rel + ": " + ex);
+                    } finally {
+                        claimed.remove(rel);
+                    }
+                }
+            }
+
+            for (final File f : ready) {
+                final String rel = relative(f);
+                if (f.exists() && queued.add(rel)) {
+                    pool.submit(new Runnable() {
+                        public void run() {
+                            archive(f, rel);
+                        }
+                    });
+                }
+            }
+        } catch (Exception ex) {
+            errors.add(ex.toString());
+        }
+    }
+
+    private void archive(File f, String rel) {
+        try {
+            if (!claimed.add(rel)) {
+                return;
+            }
+            try {
+                if (!f.exists()) {
+                    return;
+                } else if (stored.matcher(rel).matches()) {
+                    move(f, rel);
+                } else {
+                    compress(f, rel);
+                }
+            } finally {
+                claimed.remove(rel);
+            }
+        } catch (Exception ex) {
+            errors.add(rel + ": " + ex);
+        } finally {
+            queued.remove(rel);
+        }
+    }
+
+    private void compress(File f, String rel) throws IOException {
+        File dest = new File(archiveRoot, rel + ".gz");
+        File part = new File(archiveRoot, rel + ".gz.part");
+        dest.getParentFile().mkdirs();
+        long length = f.length();
+        long modified = f.lastModified();
+        final int lvl = level;
+        InputStream in = new FileInputStream(f);
+        OutputStream out = new GZIPOutputStream(new FileOutputStream(part),
+                1 << 16) {
+            {
+                def.setLevel(lvl);
+            }
+        };
+        try {
+            byte[] buf = new byte[1 << 16];
+            for (int n = in.read(buf); n > 0; n = in.read(buf)) {
+                out.write(buf, 0, n);
+            }
+        } finally {
+            in.close();
+            out.close();
+        }
+        // rewritten while compressing, try again on a later poll
+        if (f.lastModified() != modified || f.length() != length) {
+            part.delete();
+            return;
+        }
+        Files.move(part.toPath(), dest.toPath(),
+                StandardCopyOption.REPLACE_EXISTING);
+        if (!f.delete()) {
+            throw new IOException("could not remove " + f);
+        }
+        compressed.incrementAndGet();
+        bytesIn.addAndGet(length);
+        bytesOut.addAndGet(dest.length());
+    }
+
+    private void move(File f, String rel) throws IOException {
+        File dest = new File(archiveRoot, rel);
+        dest.getParentFile().mkdirs();
+        long length = f.length();
+        Files.move(f.toPath(), dest.toPath(),
+                StandardCopyOption.REPLACE_EXISTING);
+        moved.incrementAndGet();
+        bytesMoved.addAndGet(length);
+    }
+
+    private boolean isActive(String rel) {
+        String a = active;
+        return a != null && rel.startsWith(a);
+    }
+
+    private ArrayList<File> list(File dir, ArrayList<File> files) {
+        File[] children = dir.listFiles();
+        if (children == null) {
+            return files;
+        }
+        for (File f : children) {
+            if (f.isDirectory() && !f.equals(archiveRoot)) {
+                list(f, files);
+            } else if (f.isFile()) {
+                files.add(f);
+            }
+        }
+        return files;
+    }
+
+    private String relative(File f) {
+        return outDir.toURI().relativize(f.toURI()).getPath();
+    }
+
+    private static ThreadFactory factory(final String name) {
+        return new ThreadFactory() {
+            public Thread newThread(Runnable r) {
+                Thread t = new Thread(r, name);
+                t.setDaemon(true);
+                t.setPriority(Thread.MIN_PRIORITY);
+                return t;
+            }
+        };
+    }
+
+    int level = 6; // deflate level, 1 (fast) to 9 (small)
+    int threads = 2; // compression threads
+    int pollSeconds = 10;
+    int settleSeconds = 30; // unchanged time before a file counts as finished
+    double highWaterGB = 200; // output directory usage that triggers uncompressed moves
+    double lowWaterGB = 150; // usage the uncompressed moves bring it back to
+    double minFreeGB = 20; // free space on the share that triggers them too
+    Pattern exclude = Pattern.compile(
+            "(?i).*(results\\.xls|results_store\\.csv|warmStart\\.csv|_fields\\.csv"
+            + "|sweep_.*\\.csv|_prop\\.(csv|mha)|_gc\\.(csv|mha)|_phase\\.csv"
+            + "|\\.java|\\.part|\\.jobs.*|queue\\.closed)$");
+    FileFilter hold = null; // files left alone while it accepts them
+    Pattern stored = Pattern.compile("(?i).*\\.(png|jpe?g|gz|zip|xlsx|mha)$");
+
+    private final File outDir;
+    private final File archiveRoot;
+    private long startTime;
+    private volatile String active;
+    private ExecutorService pool;
+    private ScheduledExecutorService poller;
+    private HashMap<String, long[]> lastSeen = new HashMap<String, long[]>();
+    private final Set<String> queued = ConcurrentHashMap.newKeySet();
+    private final Set<String> claimed = ConcurrentHashMap.newKeySet();
+    private final ConcurrentLinkedQueue<String> errors = new ConcurrentLinkedQueue<String>();
+    private final AtomicInteger compressed = new AtomicInteger();
+    private final AtomicInteger moved = new AtomicInteger();
+    private final AtomicLong bytesIn = new AtomicLong();
+    private final AtomicLong bytesOut = new AtomicLong();
+    private final AtomicLong bytesMoved = new AtomicLong();
+}
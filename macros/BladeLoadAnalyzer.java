@@ -0,0 +1,201 @@
+/**
+ * Phase-resolved analysis of transient prop monitor histories
+ *
+ * Samples of one monitor column are streamed onto a uniform blade-angle
+ * grid, each sample shared linearly between its two neighbouring bins,
+ * which phase averages all revolutions in the window in a single pass. The
+ * angle is rpm x (time - t0), with t0 the time the rotor started turning at
+ * this rpm, so time spent at other rpms or with the rotor frozen does not
+ * shift the grid. From the phase average the mean, peak-to-peak and the
+ * harmonic amplitudes at shaft order (1P) and at multiples of the blade
+ * passing frequency are taken by single-bin DFTs. All buffers are sized
+ * once, so analyzing a column allocates nothing.
+ *
+ * star v11.06
+ */
+public class BladeLoadAnalyzer {
+
+    /**
+     * @param degPerBin angular resolution of the grid, normally the time
+     *        step in degrees
+     * @param numBlades number of prop blades
+     * @param numHarmonics number of blade passing harmonics
+     */
+    public BladeLoadAnalyzer(double degPerBin, int numBlades,
+            int numHarmonics) {
+        this.numBlades = numBlades;
+        this.numHarmonics = numHarmonics;
+        numBins = (int) Math.round(360 / degPerBin);
+        sum = new double[numBins];
+        weight = new double[numBins];
+        phase = new double[numBins];
+        cos = new double[numBins];
+        sin = new double[numBins];
+        for (int j = 0; j < numBins; j++) {
+            cos[j] = Math.cos(2 * Math.PI * j / numBins);
+            sin[j] = Math.sin(2 * Math.PI * j / numBins);
+        }
+        amplitudes = new double[numHarmonics + 1];
+    }
+
+    /**
+     * Starts a new column at the given rpm, turning since time t0.
+     */
+    public void reset(double rpm, double t0) {
+        binsPerSecond = rpm / 60 * numBins;
+        this.t0 = t0;
+        for (int j = 0; j < numBins; j++) {
+            sum[j] = 0;
+            weight[j] = 0;
+        }
+        samples = 0;
+        tFirst = Double.NaN;
+        tLast = Double.NaN;
+    }
+
+    public void add(double t, double v) {
+        if (Double.isNaN(v)) {
+            return;
+        }
+        double a = (t - t0) * binsPerSecond;
+        double floor = Math.floor(a);
+        double f = a - floor;
+        int j = (int) (floor % numBins);
+        if (j < 0) {
+            j += numBins;
+        }
+        int k = j + 1 == numBins ? 0 : j + 1;
+        sum[j] += (1 - f) * v;
+        weight[j] += 1 - f;
+        sum[k] += f * v;
+        weight[k] += f;
+        if (samples++ == 0) {
+            tFirst = t;
+        }
+        tLast = t;
+    }
+
+    /**
+     * Phase averages the streamed samples and takes the harmonics.
+     */
+    public void finish() {
+        mean = 0;
+        min = Double.MAX_VALUE;
+        max = -Double.MAX_VALUE;
+        int filled = 0;
+        for (int j = 0; j < numBins; j++) {
+            if (weight[j] > 0) {
+                phase[j] = sum[j] / weight[j];
+                mean += phase[j];
+                min = Math.min(min, phase[j]);
+                max = Math.max(max, phase[j]);
+                filled++;
+            } else {
+                phase[j] = Double.NaN;
+            }
+        }
+        mean /= filled;
+        for (int h = 0; h <= numHarmonics; h++) {
+            amplitudes[h] = amplitude(h == 0 ? 1 : h * numBlades);
+        }
+    }
+
+    public void analyze(double[] t, double[] v, double rpm, double t0) {
+        reset(rpm, t0);
+        for (int i = 0; i < t.length; i++) {
+            add(t[i], v[i]);
+        }
+        finish();
+    }
+
+    /**
+     * Amplitude of the given shaft order, NaN if the grid does not resolve
+     * it or not every bin was sampled.
+     */
+    private double amplitude(int order) {
+        if (2 * order >= numBins) {
+            return Double.NaN;
+        }
+        double re = 0;
+        double im = 0;
+        for (int j = 0; j < numBins; j++) {
+            int idx = (int) ((long) order * j % numBins);
+            re += phase[j] * cos[idx];
+            im -= phase[j] * sin[idx];
+        }
+        return 2 * Math.sqrt(re * re + im * im) / numBins;
+    }
+
+    public int getNumBins() {
+        return numBins;
+    }
+
+    public double getPhaseAverage(int bin) {
+        return phase[bin];
+    }
+
+    /**
+     * Revolutions covered by the streamed samples.
+     */
+    public double getRevolutions() {
+        return (tLast - tFirst) * binsPerSecond / numBins;
+    }
+
+    public double getMean() {
+        return mean;
+    }
+
+    public double getPeakToPeak() {
+        return max - min;
+    }
+
+    /**
+     * Amplitude at shaft order 1 (h = 0) or at the h-th blade passing
+     * harmonic.
+     */
+    public double getAmplitude(int h) {
+        return amplitudes[h];
+    }
+
+    public int getNumResults() {
+        return numHarmonics + 3;
+    }
+
+    /**
+     * Names of the results of one column, in the order of getResults.
+     */
+    public void getResultNames(String column, String[] names, int at) {
+        names[at] = column + " Phase Mean";
+        names[at + 1] = column + " Peak-Peak";
+        names[at + 2] = column + " 1P";
+        for (int h = 1; h <= numHarmonics; h++) {
+            names[at + 2 + h] = column + " " + h + "xBPF";
+        }
+    }
+
+    public void getResults(double[] values, int at) {
+        values[at] = mean;
+        values[at + 1] = max - min;
+        for (int h = 0; h <= numHarmonics; h++) {
+            values[at + 2 + h] = amplitudes[h];
+        }
+    }
+
+    private final int numBlades;
+    private final int numHarmonics;
+    private final int numBins;
+    private final double[] sum;
+    private final double[] weight;
+    private final double[] phase;
+    private final double[] cos;
+    private final double[] sin;
+    private final double[] amplitudes;
+    private double binsPerSecond;
+    private double t0;
+    private int samples;
+    private double tFirst;
+    private double tLast;
+    private double mean;
+    private double min;
+    private double max;
+}
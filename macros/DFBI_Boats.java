@@ -1,35 +1,59 @@
 /**
  * DFBI simulation for planing boat hulls
- * 
+ *
+ * The geometry, physics continuum, attitude transform, domain, mesh setup
+ * and scenes are created once. Every point of the run matrix is a motion
+ * case (static roll, static pitch, roll resistance, forward, aft, sway,
+ * oblique) that only sets the attitude transforms, the inlet velocity and
+ * the degrees of freedom of the hull, then remeshes if the attitude changed.
+ *
+ * NOTE: the 6-DOF body is not created here, it has to exist in the sim
+ * (e.g. added by hand to the base sim) and read its degrees of freedom from
+ * the global parameters dof_surge, dof_sway, dof_heave, dof_roll, dof_pitch
+ * and dof_yaw (1 free, 0 fixed). A DOF is free when the case type leaves it
+ * free and its flag below is set. With any flag set and no body in the sim
+ * the macro stops before the first case.
+ *
+ * A geom.x_b prepared by Geometry_Prep (with DISTANCE_BIASED tessellation)
+ * opens from its template in the geometry library instead of being imported.
+ *
  * @author Andrew Gunderson
- * 
+ *
  * 2017, v11.06
  */
 
+import java.io.*;
 import java.util.*;
 import macroutils.*;
+import star.base.neo.*;
 import star.common.*;
+import star.meshing.*;
+import star.sixdof.BodyManager;
 import star.vis.*;
 
 public class DFBI_Boats extends StarMacro {
     /* STATIC PITCH AND HEAVE */
     double pitch0 = -.8; // deg
     double waterline = 24.2; // in
-    
+
     /* RUN MATRIX */
     double[] speedsForward = {1, 2, 3}; // fps
     double[] speedsAft = {.5, 1, 2}; // fps
+    double[] speedsSway = {.5, 1, 2}; // fps
     double[] speedsOblique = {.5, 1, 2}; // fps
+    double[] obliqueAngles = {45}; // deg drift from forward
     double[] staticRolls = {3, 6, 9, 12}; // deg
     double[] dynRolls = {-6, 6}; // deg
-    double[] pitches = {pitch0-2, pitch0-1, pitch0+1, pitch0+2}; // deg
-    
+    double[] pitches = {-2, -1, 1, 2}; // deg from pitch0
+    double speedRollResistance = 1; // fps sideways
+
     /* BOAT SPECS */
     double length = 28 * 12;  // approximate keel length (in) 2x front, 5x back
     double beam = 9 * 12;     // approximate beam length at the chines (in) 6x
     double height = 5.5 * 12;   // approximate total height (in) 5x
     double weight = 12003; // boat weight (lb)
-    
+    double baseSize = .5; // base mesh size (in)
+
     /* DOFs */
     boolean pitchDOF = false;
     boolean heaveDOF = false;
@@ -38,131 +62,255 @@ public class DFBI_Boats extends StarMacro {
     boolean swayDOF  = false;
     boolean surgeDOF = false;
 
+    /* HALF DOMAIN */
+    boolean halfDomain = false; // symmetry plane at y = 0 for roll 0, yaw 0 or 180, only for cases with every DOF fixed
+    String symmetryBoundary = "Domain.Port"; // symmetry or slip-wall boundary on the port face of the domain
+
+    /* FROUDE SCALING */
+    boolean froudeScaling = true; // waterline band, free-surface cells and step from the Froude number
+
+    /* GEOMETRY LIBRARY */
+    boolean useLibrary = true; // open geom.x_b prepared by Geometry_Prep
+    String libraryDir = "geometry"; // library under the working directory
+    double librarySplitAngle = 70; // deg, Geometry_Prep settings of the template, with DISTANCE_BIASED tessellation
+    String[][] librarySurfaceNames = {
+        {"(?i).*inlet.*", "Inlet"},
+        {"(?i).*outlet.*", "Outlet"}
+    };
+
     /* PICTURE IMAGE RES */
     int resx  = 1200;
     int resy = 300;
-    
+
     public void execute() {
-        
-    staticRollStability();
-    staticPitchStability();
-    rollResistance();
-    forwardMotion();
-    aftMotion();
-    swayMotion();
-    obliqueMotion();
-    
+
+    setup();
+    for (MotionCase c : cases()) {
+        run(c);
     }
+    applier.printStats();
 
-    void staticRollStability() {
-        if (mu.check.is.simFile("staticRoll_")) {
-            return;
-        }
-        title = "staticRollStability";
+    }
+
+    /**
+     * Run matrix in case type order.
+     */
+    List<MotionCase> cases() {
+        ArrayList<MotionCase> cases = new ArrayList<MotionCase>();
         for (double roll : staticRolls) {
-            run(roll, 0, 0);
+            cases.add(MotionCase.staticRoll(roll));
         }
-    }
-    
-    void staticPitchStability() {
-        title = "staticRollStability";
         for (double pitch : pitches) {
-            run(0, pitch, 0);
+            cases.add(MotionCase.staticPitch(pitch));
         }
-    }
-    
-    void rollResistance() {
-        title = "rollResistance";
-        yaw = 90.;
         for (double roll : dynRolls) {
-        run(0, roll, yaw);
+            cases.add(MotionCase.rollResistance(roll, speedRollResistance));
         }
+        for (double speed : speedsForward) {
+            cases.add(MotionCase.forward(speed));
+        }
+        for (double speed : speedsAft) {
+            cases.add(MotionCase.aft(speed));
+        }
+        for (double speed : speedsSway) {
+            cases.add(MotionCase.sway(speed));
+        }
+        for (double drift : obliqueAngles) {
+            for (double speed : speedsOblique) {
+                cases.add(MotionCase.oblique(speed, drift));
+            }
+        }
+        return cases;
     }
-    
-    void forwardMotion() {
-        title = "forwardMotion";
-        
-    }
-    
-    void aftMotion() {
-        title = "aftMotion";
-        
-    }
-    
-    void swayMotion() {
-        title = "swayMotion";
-        
-    }
-    
-    void obliqueMotion() {
-        title = "obliqueMotion";
-        
-    }
-    
-    void run(double roll, double pitch, double yaw) {
-        initMacro();
-        physics();
-        mesh();
+
+    void setup() {
+        initMacro(getActiveSimulation());
+        if (!mu.check.has.volumeMesh()) {
+            String template = template();
+            if (template == null || !openTemplate(template)) {
+                // add the geometry from working directory
+                mu.add.geometry.importPart("geom.x_b");
+            }
+            physics();
+            transform();
+            mesh();
+            dofParameters();
+            scenes();
+        }
+        checkBody();
         monitors();
+    }
+
+    /**
+     * Sets up one point of the matrix on the existing sim, solves it and
+     * saves it under the point title. Points with a saved sim are skipped.
+     */
+    void run(MotionCase c) {
+        title = c.getTitle();
+        if (new File(ud.simPath, title + ".sim").exists()) {
+            mu.io.say.msg("Skipping " + title + ", sim file exists.", true);
+            return;
+        }
+        mu.io.say.action("Running " + title, true);
+        applier.rotation("Transform", "roll", c.getRoll());
+        applier.rotation("Transform", "pitch", pitch0 + c.getPitch());
+        applier.rotation("Transform", "yaw", c.getYaw());
+        // a free body would move with the mass and inertia of the whole
+        // hull on half its forces, so half mode needs every DOF fixed
+        if (halfDomain && half.set(!anyFree(c)
+                && HalfDomain.isSymmetric(c.getRoll(), c.getYaw()))) {
+            applier.markMeshDirty();
+        }
+        applier.velocityMagnitude(".*Inlet", c.getSpeed());
+        if (froudeScaling) {
+            scaleFreeSurface(c.getSpeed() * 12);
+        }
+        dofs(c);
+        if (!applier.updateMesh()) {
+            mu.clear.solution();
+        }
         solve();
         post();
-        mu.saveSim();
+        mu.saveSim(title);
     }
-    
-    void initMacro() {
-        mu = new MacroUtils(getActiveSimulation());
+
+    /**
+     * Continues in the prepared geometry in place of the current sim, false
+     * if it cannot be opened and the current sim is kept. Results stay in
+     * the working directory of the current sim.
+     *
+     * The current sim is killed without saving. It is only replaced before
+     * it has a mesh, so it holds nothing but the base setup, which the
+     * template carries too, and its file is left as it is.
+     */
+    boolean openTemplate(String template) {
+        Simulation old = mu.getSimulation();
+        String simPath = ud.simPath;
+        String picPath = ud.picPath;
+        Simulation sim;
+        try {
+            sim = new Simulation(template);
+        } catch (RuntimeException ex) {
+            old.println("Could not open " + template + ", importing: " + ex);
+            return false;
+        }
+        old.kill();
+        initMacro(sim);
+        ud.simPath = simPath;
+        ud.picPath = picPath;
+        mu.io.say.value("Geometry template", template, null, true);
+        return true;
+    }
+
+    /**
+     * Prepared template of geom.x_b in the library, or null.
+     */
+    String template() {
+        if (!useLibrary) {
+            return null;
+        }
+        try {
+            GeometryLibrary library = new GeometryLibrary(
+                    ud.simPath + File.separator + libraryDir,
+                    GeometryLibrary.settings(
+                            StaticDeclarations.Tessellation.DISTANCE_BIASED,
+                            librarySplitAngle, librarySurfaceNames));
+            return library.lookup(ud.simPath + File.separator + "geom.x_b");
+        } catch (IOException ex) {
+            mu.getSimulation().println(ex);
+            return null;
+        }
+    }
+
+    void initMacro(Simulation sim) {
+        mu = new MacroUtils(sim);
         ud = mu.userDeclarations;
         mu.set.userDefault.pictureResolution(resx, resy);
         mu.set.userDefault.tessellation(
                 StaticDeclarations.Tessellation.DISTANCE_BIASED);
         ud.defUnitLength = ud.unit_in;
-        // add the geometry from working directory
-        mu.add.geometry.importPart("geom.x_b");
+        ud.defUnitVel = ud.unit_fps;
+        cache = new SimObjectCache(mu);
+        applier = new ParameterApplier(mu, cache);
+        half = new HalfDomain(mu, "Domain", ud.unit_in, new double[]{
+            -length*2, -beam*4, -height*5}, symmetryBoundary);
+        froude = new FroudeScaling(length);
     }
-    
+
     void physics() {
         ud.physCont = mu.add.physicsContinua.generic(
                 StaticDeclarations.Space.THREE_DIMENSIONAL,
-                StaticDeclarations.Time.IMPLICIT_UNSTEADY, 
+                StaticDeclarations.Time.IMPLICIT_UNSTEADY,
                 StaticDeclarations.Material.VOF_AIR_WATER,
-                StaticDeclarations.Solver.SEGREGATED, 
+                StaticDeclarations.Solver.SEGREGATED,
                 StaticDeclarations.Density.CONSTANT,
-                StaticDeclarations.Energy.ISOTHERMAL, 
+                StaticDeclarations.Energy.ISOTHERMAL,
                 StaticDeclarations.Viscous.SST_KW);
         mu.enable.cellQualityRemediation(ud.physCont, true);
     }
 
+    /**
+     * Attitude transform of the hull: roll, pitch and yaw about the
+     * waterline at the origin, applied before the subtract.
+     */
+    void transform() {
+        TransformPartsOperation tpo = (TransformPartsOperation) mu
+                .getSimulation().get(MeshOperationManager.class)
+                .createTransformPartsOperation(new NeoObjectVector(
+                        new Object[]{mu.get.geometries.byREGEX(
+                                "(?i).*hull.*", true)}));
+        tpo.setPresentationName("Transform");
+        rotationControl(tpo, "roll", 1, 0, 0);
+        rotationControl(tpo, "pitch", 0, 1, 0);
+        rotationControl(tpo, "yaw", 0, 0, 1);
+    }
+
+    void rotationControl(TransformPartsOperation tpo, String name,
+            double... axis) {
+        RotationControl rc = tpo.getTransforms().createRotationControl();
+        rc.setPresentationName(name);
+        rc.getAxisVector().setComponents(axis[0], axis[1], axis[2]);
+        rc.getOrigin().setCoordinate(ud.unit_in, ud.unit_in, ud.unit_in,
+                new DoubleVector(new double[]{0, 0, waterline}));
+    }
+
     void mesh() {
-        if (mu.check.has.volumeMesh()) {
-            return;
-        }
         // create domain
         ud.geomPrt2 = mu.add.geometry.block(
-                new double[] {-length*2, -beam*4, -height*5}, 
+                new double[] {-length*2, -beam*4, -height*5},
                 new double[] {length*2, beam*4, height*5}, null);
         ud.geomPrt2.setPresentationName("Domain");
         // split part surfaces
         mu.get.partSurfaces.byREGEX(
-                ud.geomPrt, ".*", true).setPresentationName("Faces");
+                ud.geomPrt2, ".*", true).setPresentationName("Faces");
         mu.set.geometry.splitPartSurfacesByAngle(
-                mu.get.partSurfaces.all(ud.geomPrt, true), 70, true);
+                mu.get.partSurfaces.all(ud.geomPrt2, true), 70, true);
         // set outlet
         ud.partSrf = mu.get.partSurfaces.byRangeMin(
-                mu.get.partSurfaces.allByREGEX(ud.geomPrt, ".*", true),
+                mu.get.partSurfaces.allByREGEX(ud.geomPrt2, ".*", true),
                 StaticDeclarations.Axis.X, 1.);
         ud.partSrf.setPresentationName("Outlet");
+        // set side walls, port moves to the centre plane in half domain
+        ud.partSrf = mu.get.partSurfaces.byRangeMin(
+                mu.get.partSurfaces.allByREGEX(ud.geomPrt2, "Faces.*", true),
+                StaticDeclarations.Axis.Y, 1.);
+        ud.partSrf.setPresentationName("Port");
+        ud.partSrf = mu.get.partSurfaces.byRangeMax(
+                mu.get.partSurfaces.allByREGEX(ud.geomPrt2, "Faces.*", true),
+                StaticDeclarations.Axis.Y, 1.);
+        ud.partSrf.setPresentationName("Starboard");
         // set inlet
         ud.partSrf = mu.set.geometry.combinePartSurfaces(
                 mu.get.partSurfaces.allByREGEX(
-                        ud.geomPrt, "Faces.*", true), true);
-        ud.partSrf.setPresentationName("Inlet");        
+                        ud.geomPrt2, "Faces.*", true), true);
+        ud.partSrf.setPresentationName("Inlet");
         // create volumetric mesh controls
         ud.geomPrt = mu.add.geometry.block(
-                new double[] {-length*2, -beam*4, waterline-5}, 
+                new double[] {-length*2, -beam*4, waterline-5},
                 new double[] {length*2, beam*4, waterline+5}, null);
         ud.geomPrt.setPresentationName("Waterline Refine");
         ud.geomPrt1 = mu.add.geometry.block(
-                new double[] {-length, -beam, -height}, 
+                new double[] {-length, -beam, -height},
                 new double[] {length*2, beam, height*0.4}, null);
         ud.geomPrt1.setPresentationName("Hull Refine");
         // create subtract
@@ -175,10 +323,10 @@ public class DFBI_Boats extends StarMacro {
                 StaticDeclarations.BoundaryMode.ONE_FOR_EACH_PART_SURFACE,
                 StaticDeclarations.InterfaceMode.CONTACT,
                 StaticDeclarations.FeatureCurveMode.ONE_FOR_ALL, true);
----
+
         ud.geometryParts = mu.get.geometries.all(true);
         mu.add.scene.geometry();
-        ud.mshBaseSize = .5; // in
+        ud.mshBaseSize = baseSize;
         ud.prismsLayers = 6;
         ud.prismsRelSizeHeight = 33;
         ud.prismsStretching = 1.5;
@@ -186,50 +334,135 @@ public class DFBI_Boats extends StarMacro {
                 StaticDeclarations.Meshers.SURFACE_REMESHER,
                 StaticDeclarations.Meshers.POLY_MESHER,
                 StaticDeclarations.Meshers.PRISM_LAYER_MESHER);
+        ud.autoMshOp.setPresentationName("Automated Mesh");
         // set hull volume control
         ud.geometryParts.clear();
         ud.geometryParts.add(ud.geomPrt1);
         mu.add.meshOperation.volumetricControl(ud.autoMshOp, ud.geometryParts, 100);
-        // set waterline volume control
+        // set waterline volume control, sized per speed by scaleFreeSurface()
         ud.geometryParts.clear();
         ud.geometryParts.add(ud.geomPrt);
-        mu.add.meshOperation.volumetricControl(ud.autoMshOp, ud.geometryParts, 100);
-        
-        mu.set.boundary.asMassFlowInlet(
-                mu.get.boundaries.byREGEX(".*" + ud.bcInlet, true), 
-                mfr, 20.0, 0.05, 10.0);
+        mu.add.meshOperation.volumetricControl(ud.autoMshOp, ud.geometryParts, 100)
+                .setPresentationName("Waterline Refine");
+
+        mu.set.boundary.asVelocityInlet(
+                mu.get.boundaries.byREGEX(".*" + ud.bcInlet, true),
+                0.0, 20.0, 0.05, 10.0);
         mu.set.boundary.asPressureOutlet(
                 mu.get.boundaries.byREGEX(".*" + ud.bcOutlet, true),
                 0.0, 21.0, 0.05, 10.0);
+        mu.set.boundary.asSymmetry(
+                mu.get.boundaries.byREGEX(".*Port", true));
+        mu.set.boundary.asSymmetry(
+                mu.get.boundaries.byREGEX(".*Starboard", true));
         mu.update.volumeMesh();
         ud.scene = mu.add.scene.mesh();
     }
-    
+
+    /**
+     * Waterline band, free-surface cells and time step for the waves at
+     * speed (in/s).
+     */
+    void scaleFreeSurface(double speed) {
+        double band = froude.bandHalfThickness(speed);
+        applier.blockCorners("Waterline Refine", ud.unit_in,
+                new double[] {-length*2, -beam*4, waterline-band},
+                new double[] {length*2, beam*4, waterline+band});
+        applier.volumeControlSize("Automated Mesh", "Waterline Refine",
+                froude.cellHeight(speed) / baseSize * 100);
+        applier.timestep(froude.timestep(speed));
+    }
+
+    void dofParameters() {
+        GlobalParameterManager gpm = mu.getSimulation()
+                .get(GlobalParameterManager.class);
+        for (String dof : MotionCase.DOFS) {
+            if (!gpm.has("dof_" + dof)) {
+                gpm.createGlobalParameter(ScalarGlobalParameter.class,
+                        "dof_" + dof).setPresentationName("dof_" + dof);
+            }
+        }
+    }
+
+    /**
+     * Frees the DOFs the case leaves free and the flags allow, fixes the
+     * rest.
+     */
+    void dofs(MotionCase c) {
+        boolean[] flags = dofFlags();
+        GlobalParameterManager gpm = mu.getSimulation()
+                .get(GlobalParameterManager.class);
+        for (int i = 0; i < flags.length; i++) {
+            double free = c.isFree(i) && flags[i] ? 1 : 0;
+            if (applier.changed("dof:" + MotionCase.DOFS[i], free)) {
+                ((ScalarGlobalParameter) gpm.getObject(
+                        "dof_" + MotionCase.DOFS[i])).getQuantity()
+                        .setValue(free);
+            }
+        }
+    }
+
+    /**
+     * Stops the macro if a DOF flag is set but the sim has no 6-DOF body to
+     * free it on, instead of running every case fixed.
+     */
+    void checkBody() {
+        boolean any = false;
+        for (boolean f : dofFlags()) {
+            any |= f;
+        }
+        if (any && mu.getSimulation().get(BodyManager.class).getObjects()
+                .isEmpty()) {
+            throw new RuntimeException("DOF flags are set but the sim has no "
+                    + "6-DOF body, add one reading the dof_* parameters");
+        }
+    }
+
+    /**
+     * True if the case leaves any DOF free that the flags allow.
+     */
+    boolean anyFree(MotionCase c) {
+        boolean[] flags = dofFlags();
+        for (int i = 0; i < flags.length; i++) {
+            if (c.isFree(i) && flags[i]) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    boolean[] dofFlags() {
+        return new boolean[]{surgeDOF, swayDOF, heaveDOF, rollDOF, pitchDOF,
+            yawDOF};
+    }
+
     void monitors() {
-        // choose newly created region for pre-defined plane sections
-        for (Part ps : sections){
-            ud.plane = (PlaneSection) ps;
-            ud.plane.getInputParts().setObjects(ud.region);
-            
+        // choose the region for pre-defined plane sections
+        for (Object o : mu.getSimulation().getPartManager().getObjects()) {
+            if (o instanceof PlaneSection) {
+                ((PlaneSection) o).getInputParts().setObjects(
+                        mu.get.regions.all(true));
+            }
         }
-        
     }
 
     void solve() {
         if (mu.check.has.solution()) {
             return;
         }
-        
+
         ud.maxIter = 2000;
         //mu.set.solver.aggressiveSettings();
         mu.run();
-        mu.saveSim();
     }
 
-    void post() {
-        
+    /**
+     * Velocity contour and streamline scenes, written by post() at every
+     * point.
+     */
+    void scenes() {
         mu.io.read.cameraViews("myCameras.txt");
-        
+
         // create resampled volume scene
         ResampledVolumePart resVol = (ResampledVolumePart) mu.getSimulation().getPartManager().createResampledVolumePart();
         resVol.getInputParts().setObjects(ud.region);
@@ -237,21 +470,16 @@ public class DFBI_Boats extends StarMacro {
         ud.ff = mu.get.objects.fieldFunction(StaticDeclarations.Vars.VEL.getVar(), true);
         ud.scene = mu.add.scene.scalar(ud.namedObjects, ud.ff, ud.unit_mps, true);
         ud.scene.setPresentationName("Velocity Contours");
-        scd = (ScalarDisplayer) mu.get.scenes.displayerByREGEX(ud.scene, ".*", true);
+        ScalarDisplayer scd = (ScalarDisplayer) mu.get.scenes.displayerByREGEX(ud.scene, ".*", true);
         scd.getScalarDisplayQuantity().setClip(false);
         scd.getScalarDisplayQuantity().setRange(new double[]{0,2});
-        for (VisView vv : mu.get.cameras.allByREGEX(".*(1|2)", true)) {
-            mu.set.scene.cameraView(ud.scene, vv, true);
-            mu.io.sleep(1000);
-            mu.io.write.picture(ud.scene, version + flowRate + " " + vv.getPresentationName(), resx, resy, true);
-        }
-        
+
         // create streamline scene
-        pd1 = mu.add.scene.displayer_Geometry(ud.scene);
+        PartDisplayer pd1 = mu.add.scene.displayer_Geometry(ud.scene);
         pd1.setOpacity(1);
         pd1.setColorMode(PartColorMode.DEFAULT);
 
-        pd2 = (PartDisplayer) mu.add.scene.displayer_Geometry(ud.scene);
+        PartDisplayer pd2 = (PartDisplayer) mu.add.scene.displayer_Geometry(ud.scene);
         pd2.copyProperties(pd1);
         pd2.setMesh(true);
         pd2.setPresentationName("Mesh");
@@ -260,20 +488,30 @@ public class DFBI_Boats extends StarMacro {
         ud.namedObjects2.add(mu.get.boundaries.byREGEX(".*" + ud.bcInlet, true));
         ud.namedObjects2.addAll(mu.get.regions.all(true));
         ud.postStreamlinesTubesWidth = 0.0005;
-        std = mu.add.scene.displayer_Streamline(ud.scene, ud.namedObjects2, true);
+        StreamDisplayer std = mu.add.scene.displayer_Streamline(ud.scene, ud.namedObjects2, true);
         mu.templates.prettify.all();
         std.getScalarDisplayQuantity().setRange(new double[]{0, 3.0});
         std.getAnimationManager().setMode(StreamDisplayerAnimationMode.TRACER);
         std.setLegendPosition(scd.getLegend().getPositionCoordinate());
         std.setVisibilityOverrideMode(DisplayerVisibilityOverride.HIDE_ALL_PARTS);
+    }
+
+    void post() {
+        Scene scene = cache.scene("Velocity Contours");
+        for (VisView vv : mu.get.cameras.allByREGEX(".*(1|2)", true)) {
+            mu.set.scene.cameraView(scene, vv, true);
+            mu.io.sleep(1000);
+            mu.io.write.picture(scene, title + " " + vv.getPresentationName(), resx, resy, true);
+        }
         //--
     }
-    
+
     private MacroUtils mu;
     private UserDeclarations ud;
 
+    SimObjectCache cache;
+    ParameterApplier applier;
+    HalfDomain half;
+    FroudeScaling froude;
     String title;
-    Double yaw;
 }
-    
-
@@ -0,0 +1,218 @@
+/**
+ * Broyden solver for running attitudes
+ *
+ * Finds the attitude (e.g. sink and pitch) at which the residuals (e.g.
+ * Fz - weight and My) are within tolerance, with every residual evaluation
+ * a CFD solve. The Jacobian is started by forward differences around the
+ * initial guess, one extra solve per unknown, and then updated by
+ * Broyden's rank-one formula, so every following solve is a limited
+ * quasi-Newton step. Points are asked for with next() and their residuals
+ * given with add(), like AdaptiveSampler. A Jacobian that is singular or
+ * nearly so (e.g. a residual that does not respond to the unknowns) stops
+ * the solve, not converged, with the best point so far as the answer.
+ *
+ * star v11.06
+ */
+public class EquilibriumSolver {
+
+    /**
+     * @param dx forward difference step of each unknown
+     * @param maxStep largest change of each unknown per step
+     * @param tol accepted absolute value of each residual
+     * @param maxSolves maximum number of residual evaluations
+     */
+    public EquilibriumSolver(double[] dx, double[] maxStep, double[] tol,
+            int maxSolves) {
+        n = dx.length;
+        this.dx = dx.clone();
+        this.maxStep = maxStep.clone();
+        this.tol = tol.clone();
+        this.maxSolves = maxSolves;
+        jac = new double[n][n];
+        x = new double[n];
+        f = new double[n];
+        x0 = new double[n];
+        f0 = new double[n];
+        xNext = new double[n];
+        best = new double[n];
+    }
+
+    /**
+     * Starts a new solve from the initial guess.
+     */
+    public void reset(double[] guess) {
+        System.arraycopy(guess, 0, x0, 0, n);
+        solves = 0;
+        converged = false;
+        singular = false;
+        bestNorm = Double.MAX_VALUE;
+    }
+
+    /**
+     * Next attitude to solve, or null once converged or out of solves.
+     */
+    public double[] next() {
+        if (converged || solves >= maxSolves) {
+            return null;
+        }
+        if (solves <= n) {
+            System.arraycopy(x0, 0, xNext, 0, n);
+            if (solves > 0) {
+                xNext[solves - 1] += dx[solves - 1];
+            }
+            return xNext.clone();
+        }
+        // quasi-Newton step J s = -f from the last point, limited per unknown
+        double[] s = solve(jac, f);
+        if (s == null) {
+            singular = true;
+            return null;
+        }
+        double scale = 1;
+        for (int i = 0; i < n; i++) {
+            scale = Math.min(scale, maxStep[i] / Math.max(Math.abs(s[i]), 1e-30));
+        }
+        for (int i = 0; i < n; i++) {
+            xNext[i] = x[i] - scale * s[i];
+        }
+        return xNext.clone();
+    }
+
+    /**
+     * Residuals at the attitude last returned by next().
+     */
+    public void add(double[] residual) {
+        double norm = 0;
+        converged = true;
+        for (int i = 0; i < n; i++) {
+            norm = Math.max(norm, Math.abs(residual[i]) / tol[i]);
+            converged &= Math.abs(residual[i]) < tol[i];
+        }
+        if (norm < bestNorm) {
+            bestNorm = norm;
+            System.arraycopy(xNext, 0, best, 0, n);
+        }
+        if (solves == 0) {
+            System.arraycopy(residual, 0, f0, 0, n);
+        } else if (solves <= n) {
+            // forward difference column
+            int j = solves - 1;
+            for (int i = 0; i < n; i++) {
+                jac[i][j] = (residual[i] - f0[i]) / dx[j];
+            }
+            if (solves == n) {
+                System.arraycopy(x0, 0, x, 0, n);
+                System.arraycopy(f0, 0, f, 0, n);
+            }
+        } else {
+            // Broyden update J += (df - J dx) dx^T / (dx . dx)
+            double[] step = new double[n];
+            double dot = 0;
+            for (int i = 0; i < n; i++) {
+                step[i] = xNext[i] - x[i];
+                dot += step[i] * step[i];
+            }
+            for (int i = 0; i < n && dot > 0; i++) {
+                double jdx = 0;
+                for (int j = 0; j < n; j++) {
+                    jdx += jac[i][j] * step[j];
+                }
+                double r = (residual[i] - f[i] - jdx) / dot;
+                for (int j = 0; j < n; j++) {
+                    jac[i][j] += r * step[j];
+                }
+            }
+            System.arraycopy(xNext, 0, x, 0, n);
+            System.arraycopy(residual, 0, f, 0, n);
+        }
+        solves++;
+    }
+
+    public boolean isConverged() {
+        return converged;
+    }
+
+    /**
+     * True if the solve stopped on a near-singular Jacobian.
+     */
+    public boolean isSingular() {
+        return singular;
+    }
+
+    /**
+     * Attitude with the smallest residual (relative to tol) so far.
+     */
+    public double[] getBest() {
+        return best.clone();
+    }
+
+    public int getSolves() {
+        return solves;
+    }
+
+    /**
+     * Gaussian elimination with partial pivoting, on the system scaled by
+     * tol (rows) and maxStep (columns) so that residuals and unknowns of
+     * different units compare. Null if a pivot is below pivotTol times the
+     * largest scaled entry.
+     */
+    private double[] solve(double[][] a, double[] b) {
+        double[][] m = new double[n][n + 1];
+        double max = 0;
+        for (int i = 0; i < n; i++) {
+            for (int j = 0; j < n; j++) {
+                m[i][j] = a[i][j] * maxStep[j] / tol[i];
+                max = Math.max(max, Math.abs(m[i][j]));
+            }
+            m[i][n] = b[i] / tol[i];
+        }
+        for (int c = 0; c < n; c++) {
+            int p = c;
+            for (int r = c + 1; r < n; r++) {
+                if (Math.abs(m[r][c]) > Math.abs(m[p][c])) {
+                    p = r;
+                }
+            }
+            if (!(Math.abs(m[p][c]) > pivotTol * max)) {
+                return null;
+            }
+            double[] t = m[c];
+            m[c] = m[p];
+            m[p] = t;
+            for (int r = c + 1; r < n; r++) {
+                double k = m[r][c] / m[c][c];
+                for (int j = c; j <= n; j++) {
+                    m[r][j] -= k * m[c][j];
+                }
+            }
+        }
+        double[] s = new double[n];
+        for (int i = n - 1; i >= 0; i--) {
+            double sum = m[i][n];
+            for (int j = i + 1; j < n; j++) {
+                sum -= m[i][j] * s[j];
+            }
+            s[i] = sum / m[i][i] * maxStep[i];
+        }
+        return s;
+    }
+
+    double pivotTol = 1e-8; // smallest pivot of the scaled Jacobian, relative to its largest entry
+
+    private final int n;
+    private final double[] dx;
+    private final double[] maxStep;
+    private final double[] tol;
+    private final int maxSolves;
+    private final double[][] jac;
+    private final double[] x;
+    private final double[] f;
+    private final double[] x0;
+    private final double[] f0;
+    private final double[] xNext;
+    private final double[] best;
+    private int solves;
+    private boolean converged;
+    private boolean singular;
+    private double bestNorm;
+}
@@ -22,26 +22,35 @@ public class ExportVisScenes extends StarMacro {
         "62.7mph_5.0deg_7.19in_3396.0rpm",
         "58.6mph_5.0deg_7.19in_3265.5rpm"
     };
+    String testDir = "\\\\MMFDLHPCP01\\scratch\\Gunderson\\CFD_TRs\\TR2016-prop\\star\\test\\";
+    String archiveRoot = ""; // finished artifacts go here, off scratch (empty to disable)
+    int archiveLevel = 6; // deflate level of archived artifacts, 1 (fast) to 9 (small)
     String simName;
     public void execute() {
         // kill default server that starts upon macro execution
         sim = getActiveSimulation();
         sim.kill();
+        artifacts = new ArtifactManager(testDir, archiveRoot);
+        artifacts.level = archiveLevel;
+        artifacts.start();
         for (String folder : propModels) {
             for (String state : runState) {
+                artifacts.setActive(folder + "/" + folder + "_" + state);
                 initMacro(state, folder);
                 createAndExportScenes(state, folder);
                 ud.simTitle = folder + "_" + state + "_mod.sim";
                 mu.saveSim();
+                artifacts.printStats(mu);
                 mu.getSimulation().kill();
             }
         }
+        artifacts.close();
     }
 
     void initMacro(String state, String folder) {
         double speed = Double.parseDouble(state.substring(0,3));
         simName = folder + "_" + state;
-        String fileName = "\\\\MMFDLHPCP01\\scratch\\Gunderson\\CFD_TRs\\TR2016-prop\\star\\test\\" + folder + "\\" + simName + ".sim";
+        String fileName = testDir + folder + "\\" + simName + ".sim";
         sim = new Simulation(fileName);
         mu = new MacroUtils(sim);
         ud = mu.userDeclarations;
@@ -92,5 +101,6 @@ public class ExportVisScenes extends StarMacro {
     private UserDeclarations ud;
     PressureCoefficientFunction pCoeff;
     Simulation sim;
+    ArtifactManager artifacts;
           
 }
@@ -0,0 +1,80 @@
+/**
+ * Froude-scaled free-surface setup of a VOF hull point
+ *
+ * From the speed of the flow past the hull (the FlatVofWave current) and
+ * the hull length follow the length Froude number Fn = U / sqrt(g L) and an
+ * expected wave height, the stagnation head U^2 / 2g. The waterline
+ * refinement band is sized to hold the waves, the free-surface cell height
+ * goes from maxCell at Fn <= fnCoarse down to minCell at Fn >= fnFine,
+ * linearly in between, and the time step keeps the Courant number of the
+ * free-surface cells and stays below ittcStep x L / U.
+ *
+ * Slow points make small waves that a coarse interface holds, so they get
+ * the coarse free-surface cells and, with the lower speed, much larger
+ * steps. All lengths in inches, times in seconds.
+ *
+ * star v11.06
+ */
+public class FroudeScaling {
+
+    /**
+     * @param length hull length (in)
+     */
+    public FroudeScaling(double length) {
+        this.length = length;
+    }
+
+    public double froude(double speed) {
+        return speed / Math.sqrt(G * length);
+    }
+
+    /**
+     * Expected wave height (in) at speed (in/s).
+     */
+    public double waveHeight(double speed) {
+        return speed * speed / (2 * G);
+    }
+
+    /**
+     * Free-surface cell height (in), coarse at low Fn and fine at high Fn.
+     */
+    public double cellHeight(double speed) {
+        double f = (froude(speed) - fnCoarse) / (fnFine - fnCoarse);
+        f = Math.min(Math.max(f, 0), 1);
+        return maxCell - f * (maxCell - minCell);
+    }
+
+    /**
+     * Half thickness of the waterline refinement band (in).
+     */
+    public double bandHalfThickness(double speed) {
+        return Math.max(minBand,
+                bandFactor * waveHeight(speed) + 2 * cellHeight(speed));
+    }
+
+    /**
+     * Time step (s).
+     */
+    public double timestep(double speed) {
+        if (speed <= 0) {
+            return maxStep;
+        }
+        double dt = Math.min(courant * cellHeight(speed) / speed,
+                ittcStep * length / speed);
+        return Math.min(Math.max(dt, minStep), maxStep);
+    }
+
+    double fnCoarse = .03; // Fn at and below which the free surface gets maxCell
+    double fnFine = .15; // Fn at and above which it gets minCell
+    double minCell = .25; // in, finest free-surface cell
+    double maxCell = 1; // in, coarsest free-surface cell
+    double bandFactor = 2; // band half thickness in wave heights, plus two cells
+    double minBand = 2; // in, thinnest band half thickness
+    double courant = 1; // Courant number of the free-surface cells
+    double ittcStep = .01; // largest step in hull passing times L / U
+    double minStep = .002; // s
+    double maxStep = .2; // s, also the step at zero speed
+
+    static final double G = 386.09; // in/s^2
+    private final double length;
+}
@@ -0,0 +1,135 @@
+/**
+ * Library of prepared geometry templates
+ *
+ * A template is a light .sim holding one imported, split and named CAD file
+ * and nothing the solver adds (no regions, mesh or physics). Templates are
+ * keyed by the SHA-1 of the CAD file and of the preparation settings
+ * (tessellation, split angle, surface names), so a case opens its template
+ * instead of importing, and a changed file or preparation gets a new
+ * template while an unchanged one is never prepared twice, whatever its
+ * name. A case must open the library with the settings it expects the
+ * template to be prepared with. The index is library.csv in the library
+ * directory, one line per template: key,source,template.
+ *
+ * star v11.06
+ */
+import java.io.*;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.*;
+
+public class GeometryLibrary {
+
+    /**
+     * @param dir library directory, created if missing
+     * @param settings preparation settings, see settings()
+     */
+    public GeometryLibrary(String dir, String settings) throws IOException {
+        this.dir = new File(dir);
+        this.settings = settings;
+        this.dir.mkdirs();
+        index = new File(this.dir, "library.csv");
+        if (index.exists()) {
+            BufferedReader reader = new BufferedReader(new FileReader(index));
+            String line;
+            while ((line = reader.readLine()) != null) {
+                String[] s = line.split(",");
+                if (s.length == 3) {
+                    templates.put(s[0], s[2]);
+                }
+            }
+            reader.close();
+        }
+    }
+
+    /**
+     * Preparation settings of a template: tessellation (null for the
+     * default), split angle and surface naming rules.
+     */
+    public static String settings(Object tessellation, double splitAngle,
+            String[][] surfaceNames) {
+        StringBuilder sb = new StringBuilder();
+        sb.append(tessellation).append('\n').append(splitAngle);
+        for (String[] rule : surfaceNames) {
+            sb.append('\n').append(rule[0]).append('\t').append(rule[1]);
+        }
+        return sb.toString();
+    }
+
+    /**
+     * Template prepared from the current content of source with the
+     * settings of the library, or null.
+     */
+    public String lookup(String source) throws IOException {
+        String t = templates.get(key(source));
+        if (t == null || !new File(dir, t).exists()) {
+            return null;
+        }
+        return new File(dir, t).getPath();
+    }
+
+    /**
+     * Path a template of source should be saved to, named after the file
+     * and its key.
+     */
+    public String templatePath(String source) throws IOException {
+        String name = new File(source).getName().replaceFirst("\\.[^.]*$", "");
+        return new File(dir, name + "_" + key(source).substring(0, 8)
+                + ".sim").getPath();
+    }
+
+    /**
+     * Records a template saved to templatePath(source).
+     */
+    public void add(String source, String template) throws IOException {
+        String hash = key(source);
+        String name = new File(template).getName();
+        templates.put(hash, name);
+        PrintWriter w = new PrintWriter(new FileWriter(index, true));
+        w.println(hash + "," + new File(source).getName() + "," + name);
+        w.close();
+    }
+
+    /**
+     * SHA-1 of the content of source and the settings.
+     */
+    private String key(String source) throws IOException {
+        MessageDigest md = digest();
+        md.update(sha1(new File(source)).getBytes("UTF-8"));
+        md.update(settings.getBytes("UTF-8"));
+        return hex(md.digest());
+    }
+
+    public static String sha1(File f) throws IOException {
+        MessageDigest md = digest();
+        InputStream in = new FileInputStream(f);
+        byte[] buf = new byte[1 << 16];
+        int n;
+        while ((n = in.read(buf)) > 0) {
+            md.update(buf, 0, n);
+        }
+        in.close();
+        return hex(md.digest());
+    }
+
+    private static MessageDigest digest() throws IOException {
+        try {
+            return MessageDigest.getInstance("SHA-1");
+        } catch (NoSuchAlgorithmException ex) {
+            throw new IOException(ex);
+        }
+    }
+
+    private static String hex(byte[] digest) {
+        StringBuilder sb = new StringBuilder();
+        for (byte b : digest) {
+            sb.append(String.format("%02x", b));
+        }
+        return sb.toString();
+    }
+
+    private final File dir;
+    private final String settings;
+    private final File index;
+    private final HashMap<String, String> templates = new HashMap<String, String>();
+}
@@ -0,0 +1,133 @@
+/**
+ * Geometry pre-processing for multi-version studies
+ *
+ * Imports every CAD file of a study once, splits its surfaces by angle,
+ * names them and saves the result as a template in the geometry library,
+ * keyed by the hash of the CAD file and of the tessellation, split angle
+ * and surface names below. Files whose template is up to date are skipped.
+ * Run it on the saved base sim of the study: the template keeps everything
+ * the base sim holds (e.g. the plane sections of SS_Internal_Para), so a
+ * case opened from it starts from ready geometry. Surface repairs made by
+ * hand on a template stay in the library until the CAD file or the
+ * settings change.
+ *
+ * Saving a template points the session at it, so once templates were
+ * written the base sim is reopened from its file and the session left on
+ * the last template is closed. The base sim file itself is never written.
+ *
+ * @author Andrew Gunderson
+ *
+ * 2017, v11.06
+ */
+import java.io.*;
+import java.util.*;
+import macroutils.*;
+import star.common.*;
+
+public class Geometry_Prep extends StarMacro {
+
+    String[] sources = {"v0.x_b", "v3.x_b", "v5.x_b", "v6.x_b", "v7.x_b",
+        "v9.x_b", "v10.x_b", "v11.x_b"}; // CAD files in the working directory
+    String libraryDir = "geometry"; // library under the working directory
+    StaticDeclarations.Tessellation tessellation = null; // null for the default, DISTANCE_BIASED for DFBI_Boats
+    double splitAngle = 70; // deg, 0 to keep the CAD surfaces
+    String[][] surfaceNames = {
+        {"(?i).*inlet.*", "Inlet"},
+        {"(?i).*outlet.*", "Outlet"}
+    }; // surfaces matching the regex are combined and renamed
+
+    public void execute() {
+
+        mu = new MacroUtils(getSimulation());
+        ud = mu.userDeclarations;
+        String base = mu.getSimulation().getSessionPath();
+        if (base == null || base.isEmpty() || !new File(base).exists()) {
+            mu.io.say.msg("Save the base sim before preparing templates.", vo);
+            return;
+        }
+        if (tessellation != null) {
+            mu.set.userDefault.tessellation(tessellation);
+        }
+        try {
+            library = new GeometryLibrary(ud.simPath + File.separator
+                    + libraryDir, GeometryLibrary.settings(tessellation,
+                            splitAngle, surfaceNames));
+            for (String source : sources) {
+                prepare(source);
+            }
+        } catch (IOException ex) {
+            mu.getSimulation().println(ex);
+        }
+        if (saved > 0) {
+            reopen(base);
+        }
+
+    }
+
+    void prepare(String source) throws IOException {
+        String file = ud.simPath + File.separator + source;
+        if (library.lookup(file) != null) {
+            mu.io.say.value("Template up to date", source, null, vo);
+            return;
+        }
+        long t0 = System.nanoTime();
+        mu.add.geometry.importPart(source);
+        for (GeometryPart gp : mu.get.geometries.all(vo)) {
+            if (splitAngle > 0) {
+                mu.set.geometry.splitPartSurfacesByAngle(
+                        mu.get.partSurfaces.all(gp, vo), splitAngle, vo);
+            }
+            for (String[] rule : surfaceNames) {
+                ArrayList<PartSurface> ps = mu.get.partSurfaces.allByREGEX(
+                        gp, rule[0], vo);
+                if (ps.isEmpty()) {
+                    continue;
+                }
+                PartSurface s = ps.size() > 1
+                        ? mu.set.geometry.combinePartSurfaces(ps, vo)
+                        : ps.get(0);
+                s.setPresentationName(rule[1]);
+            }
+        }
+        String template = library.templatePath(file);
+        // points the session at the template, see reopen()
+        mu.getSimulation().saveState(template);
+        saved++;
+        library.add(file, template);
+        mu.io.say.value("Template " + source, String.format("%s in %.1f s",
+                new File(template).getName(), (System.nanoTime() - t0) / 1e9),
+                null, vo);
+        // back to the base sim for the next file
+        mu.remove.all();
+        PartManager pm = mu.getSimulation().getPartManager();
+        pm.removeObjects(mu.get.parts.allByREGEX(
+                "(?i)^((?!(plane|flow)).)*$", vo));
+    }
+
+    /**
+     * Reopens the base sim and closes the session now saved as the last
+     * template, so nothing done afterwards can overwrite a template. The
+     * template session is only closed once the base sim is open.
+     */
+    void reopen(String base) {
+        Simulation current = mu.getSimulation();
+        Simulation sim;
+        try {
+            sim = new Simulation(base);
+        } catch (RuntimeException ex) {
+            current.println("Could not reopen " + base + ", this session is "
+                    + current.getSessionPath() + ": do not save it. " + ex);
+            return;
+        }
+        current.kill();
+        mu = new MacroUtils(sim);
+        mu.io.say.value("Base sim reopened", base, null, vo);
+    }
+
+    private MacroUtils mu;
+    private UserDeclarations ud;
+    GeometryLibrary library;
+    int saved;
+    boolean vo = true;
+
+}
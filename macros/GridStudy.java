@@ -0,0 +1,199 @@
+/**
+ * Grid-convergence study engine
+ *
+ * Mesh levels are made by scaling every relative size of the given
+ * automated mesh operations (default and custom surface minimum/target
+ * sizes and volumetric control sizes) from their values at construction:
+ * level 0 is the mesh as set up and level i has all sizes divided by
+ * ratio^i. restore() puts the set-up sizes back.
+ *
+ * Results of each level are kept in a SweepResultsStore keyed by level,
+ * together with the cell count, so levels run by different batch workers
+ * end up in one place. From the three finest levels, the observed order,
+ * Richardson extrapolated value and grid convergence index (GCI, safety
+ * factor 1.25) of every quantity are computed, with the refinement ratios
+ * taken from the cell counts and the order solved iteratively for
+ * non-constant ratios (Celik et al., J. Fluids Eng. 130, 2008).
+ *
+ * star v11.06
+ */
+import java.io.*;
+import java.util.*;
+import macroutils.*;
+import star.base.report.ElementCountReport;
+import star.common.*;
+import star.meshing.*;
+
+public class GridStudy {
+
+    /**
+     * @param ratio refinement ratio between levels, at least 1.3 is
+     *        recommended
+     * @param meshOperations automated mesh operations to refine
+     */
+    public GridStudy(MacroUtils mu, double ratio, String... meshOperations) {
+        this.mu = mu;
+        this.ratio = ratio;
+        MeshOperationManager mom = mu.getSimulation()
+                .get(MeshOperationManager.class);
+        for (String name : meshOperations) {
+            AutoMeshOperation op = (AutoMeshOperation) mom.getObject(name);
+            collect(op.getDefaultValues());
+            for (CustomMeshControl c : op.getCustomMeshControls().getObjects()) {
+                if (c instanceof SurfaceCustomMeshControl) {
+                    collect(((SurfaceCustomMeshControl) c).getCustomValues());
+                } else if (c instanceof VolumeCustomMeshControl) {
+                    collect(((VolumeCustomMeshControl) c).getCustomValues());
+                }
+            }
+        }
+        mu.io.say.value("Grid study relative sizes", sizes.size(), true);
+    }
+
+    //--------------------------------------------------------------------------
+    // -- Mesh levels
+    //--------------------------------------------------------------------------
+    /**
+     * Sets the relative sizes of a level, does not remesh.
+     */
+    public void scale(int level) {
+        double factor = Math.pow(ratio, -level);
+        for (Map.Entry<GenericRelativeSize, Double> e : sizes.entrySet()) {
+            e.getKey().setPercentage(e.getValue() * factor);
+        }
+    }
+
+    public void restore() {
+        scale(0);
+    }
+
+    /**
+     * Cell count of the current mesh.
+     */
+    public double cells() {
+        Simulation sim = mu.getSimulation();
+        if (cellReport == null) {
+            if (sim.getReportManager().has("GridStudy_Cells")) {
+                cellReport = (ElementCountReport) sim.getReportManager()
+                        .getReport("GridStudy_Cells");
+            } else {
+                cellReport = sim.getReportManager()
+                        .createReport(ElementCountReport.class);
+                cellReport.setPresentationName("GridStudy_Cells");
+            }
+            cellReport.getParts().setObjects(sim.getRegionManager().getRegions());
+        }
+        return cellReport.getReportMonitorValue();
+    }
+
+    private void collect(ValuesManager values) {
+        PartsMinimumSurfaceSize min = values.get(PartsMinimumSurfaceSize.class);
+        if (min != null) {
+            add(min.getRelativeSize());
+        }
+        PartsTargetSurfaceSize target = values.get(PartsTargetSurfaceSize.class);
+        if (target != null) {
+            add(target.getRelativeSize());
+        }
+        VolumeControlSize volume = values.get(VolumeControlSize.class);
+        if (volume != null) {
+            add(volume.getRelativeSize());
+        }
+    }
+
+    private void add(Object size) {
+        if (size instanceof GenericRelativeSize) {
+            GenericRelativeSize g = (GenericRelativeSize) size;
+            sizes.put(g, g.getPercentage());
+        }
+    }
+
+    //--------------------------------------------------------------------------
+    // -- Richardson extrapolation and GCI
+    //--------------------------------------------------------------------------
+    /**
+     * Three-grid Richardson extrapolation, grid 1 the finest.
+     *
+     * @param r21 refinement ratio between grids 2 and 1, h2 / h1
+     * @param r32 refinement ratio between grids 3 and 2, h3 / h2
+     * @return observed order, extrapolated value, fine-grid GCI and
+     *         asymptotic range ratio (close to 1 in the asymptotic range).
+     *         The order is NaN if the solution does not change.
+     */
+    public static double[] richardson(double f1, double f2, double f3,
+            double r21, double r32) {
+        double e21 = f2 - f1;
+        double e32 = f3 - f2;
+        double p = Double.NaN;
+        if (e21 != 0 && e32 != 0) {
+            double s = Math.signum(e32 / e21);
+            double a = Math.log(Math.abs(e32 / e21));
+            p = Math.abs(a) / Math.log(r21);
+            for (int i = 0; i < 50; i++) {
+                double q = Math.log((Math.pow(r21, p) - s)
+                        / (Math.pow(r32, p) - s));
+                double next = Math.abs(a + q) / Math.log(r21);
+                if (Double.isNaN(next) || Math.abs(next - p) < 1e-8) {
+                    break;
+                }
+                p = next;
+            }
+        }
+        double r21p = Math.pow(r21, p);
+        double r32p = Math.pow(r32, p);
+        double ext = (r21p * f1 - f2) / (r21p - 1);
+        double gci21 = FS * Math.abs(e21 / f1) / (r21p - 1);
+        double gci32 = FS * Math.abs(e32 / f2) / (r32p - 1);
+        return new double[]{p, ext, gci21, gci32 / (r21p * gci21)};
+    }
+
+    /**
+     * Writes the study of every quantity in the store to a csv table, from
+     * the three finest of the given levels.
+     *
+     * @return false if a level has no results yet
+     */
+    public static boolean report(SweepResultsStore store, int levels,
+            String file) throws IOException {
+        if (levels < 3) {
+            return false;
+        }
+        double[] k1 = {levels - 1};
+        double[] k2 = {levels - 2};
+        double[] k3 = {levels - 3};
+        double n1 = store.get(CELLS, k1);
+        double n2 = store.get(CELLS, k2);
+        double n3 = store.get(CELLS, k3);
+        if (Double.isNaN(n1) || Double.isNaN(n2) || Double.isNaN(n3)) {
+            return false;
+        }
+        double r21 = Math.cbrt(n1 / n2);
+        double r32 = Math.cbrt(n2 / n3);
+        PrintWriter pw = new PrintWriter(new FileWriter(file));
+        pw.println("Quantity,Coarse,Medium,Fine,Order,Extrapolated,"
+                + "GCI Fine (%),Asymptotic Ratio");
+        pw.println(CELLS + "," + n3 + "," + n2 + "," + n1 + ",,,,");
+        for (String q : new TreeSet<String>(store.getQuantities())) {
+            if (q.equals(CELLS)) {
+                continue;
+            }
+            double f1 = store.get(q, k1);
+            double f2 = store.get(q, k2);
+            double f3 = store.get(q, k3);
+            double[] gci = richardson(f1, f2, f3, r21, r32);
+            pw.println(q + "," + f3 + "," + f2 + "," + f1 + "," + gci[0]
+                    + "," + gci[1] + "," + 100 * gci[2] + "," + gci[3]);
+        }
+        pw.close();
+        return true;
+    }
+
+    static final String CELLS = "Cells";
+    static final double FS = 1.25; // GCI safety factor for three grids
+
+    private final MacroUtils mu;
+    private final double ratio;
+    private final LinkedHashMap<GenericRelativeSize, Double> sizes
+            = new LinkedHashMap<GenericRelativeSize, Double>();
+    private ElementCountReport cellReport;
+}
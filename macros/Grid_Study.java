@@ -0,0 +1,161 @@
+/**
+ * Grid-convergence study of the prop simulation
+ *
+ * Replaces the hand edits of Run.java: every relative size of the mesh
+ * operations is scaled per level, each level is run and the averaged prop
+ * and gearcase monitor values go to a results store. With three or more
+ * levels in the store, Richardson extrapolation and the GCI of every value
+ * are written to <simTitle>_grid_study.csv.
+ *
+ * Levels are packed across batch workers like sweep jobs (SWEEP_WORKERS,
+ * SWEEP_WORKER_ID). Each worker runs its levels coarse to fine and every
+ * level starts from the field of the nearest level already solved,
+ * interpolated onto the new mesh, so finer levels only need a short washout.
+ * Every level, warm or cold, then runs the same averaged revolution, and a
+ * level is only offered as a warm start once its last revolution agrees
+ * with the one before.
+ *
+ * @author Andrew Gunderson
+ *
+ * 2017, v11.06
+ */
+import java.io.*;
+import java.util.*;
+import macroutils.*;
+import star.common.*;
+import star.vis.Displayer;
+
+public class Grid_Study extends StarMacro {
+
+    //--------------------------------------------------------------------------
+    // -- USER INPUTS --
+    //--------------------------------------------------------------------------
+    String[] meshOperations = {"Mesh_Stationary", "Mesh_Rotating"};
+    String[] plots = {"Prop", "Gearcase"}; // monitor plots averaged per level
+    int levels = 3; // number of mesh levels, level 0 is the mesh as set up
+    double ratio = Math.sqrt(2); // refinement ratio between levels
+    double stepSize = 1.; // degrees per timestep of the sim
+    int steps = 360; // washout steps of a cold started level, before the averaged revolution
+    int stepsWarm = 180; // washout steps of a level started from another level
+    String convergedReports = "(?i).*(thrust|torque).*"; // monitors compared between the last two revolutions
+    double convergedTol = .01; // relative change of their means that counts as converged
+    int numWorkers = 1; // batch jobs sharing this study (or env SWEEP_WORKERS)
+    int workerId = 0; // this batch job, 0 to numWorkers-1 (or env SWEEP_WORKER_ID)
+
+    public void execute() {
+        try {
+            initMacro();
+            for (int level = 0; level < levels; level++) {
+                scheduler.addJob("level_" + level, steps + ud.numToAve);
+            }
+            TreeSet<Integer> mine = new TreeSet<Integer>();
+            for (String id : scheduler.plan()) {
+                mine.add(Integer.parseInt(id.substring(6)));
+            }
+            for (int level : mine) {
+                runLevel(level);
+            }
+            study.restore();
+            String file = ud.simPath + "/" + title + "_grid_study.csv";
+            store = new SweepResultsStore(storeFile);
+            if (GridStudy.report(store, levels, file)) {
+                mu.io.say.msg("Grid study written to " + file, vo);
+            } else {
+                mu.io.say.msg("Grid study incomplete, levels still running.",
+                        vo);
+            }
+        } catch (Exception ex) {
+            mu.getSimulation().println(ex);
+        }
+    }
+
+    void runLevel(int level) throws Exception {
+        double[] key = {level};
+        study.scale(level);
+        mu.update.volumeMesh();
+        for (Displayer d : mu.get.scenes.allDisplayers(vo)) {
+            d.setRepresentation(mu.get.mesh.fvr());
+        }
+        mu.clear.solutionHistory();
+        boolean warm = warmStart.apply(key, true);
+        if (!warm) {
+            mu.clear.solution();
+        }
+        int n = (warm ? stepsWarm : steps) + ud.numToAve;
+        ud.simTitle = title + "_level" + level;
+        scheduler.startPoint();
+        mu.step(n);
+
+        // average of the last revolution of every monitor
+        String fileName = ud.simPath + "/" + ud.simTitle;
+        ArrayList<String> names = new ArrayList<String>();
+        ArrayList<Double> values = new ArrayList<Double>();
+        names.add(GridStudy.CELLS);
+        values.add(study.cells());
+        boolean converged = true;
+        for (String plot : plots) {
+            MonitorHistoryArchive.fromPlot((MonitorPlot) mu.get.plots
+                    .byREGEX(plot, vo), fileName + "_" + plot, false);
+            MonitorHistoryArchive.Reader history = new MonitorHistoryArchive
+                    .Reader(fileName + "_" + plot + ".mha");
+            String[] cols = history.getColumns();
+            double[][] data = history.last(2 * ud.numToAve);
+            history.close();
+            int len = data[0].length;
+            int from = Math.max(len - ud.numToAve, 0);
+            for (int c = 1; c < cols.length; c++) {
+                double m1 = mean(data[c], from, len);
+                names.add(plot + ": " + cols[c]);
+                values.add(m1);
+                if (cols[c].matches(convergedReports)) {
+                    double m0 = mean(data[c], 0, from);
+                    converged &= from == ud.numToAve
+                            && Math.abs(m1 - m0) <= convergedTol * Math.abs(m1);
+                }
+            }
+        }
+        double[] v = new double[values.size()];
+        for (int i = 0; i < v.length; i++) {
+            v[i] = values.get(i);
+        }
+        store.put(key, names.toArray(new String[0]), v);
+
+        mu.saveSim(ud.simTitle);
+        warmStart.record(key, converged, fileName + ".sim");
+        scheduler.endPoint("level_" + level, ud.simTitle, n);
+    }
+
+    static double mean(double[] y, int from, int to) {
+        double s = 0;
+        for (int i = from; i < to; i++) {
+            s += y[i];
+        }
+        return s / Math.max(to - from, 1);
+    }
+
+    void initMacro() throws IOException {
+        mu = new MacroUtils(getActiveSimulation(), intrusive);
+        ud = mu.userDeclarations;
+        ud.numToAve = (int) (360 / stepSize);
+        title = ud.simTitle;
+        study = new GridStudy(mu, ratio, meshOperations);
+        storeFile = ud.simPath + "/" + title + "_grid_store.csv";
+        store = new SweepResultsStore(storeFile, "Level");
+        warmStart = new WarmStart(mu,
+                ud.simPath + "/" + title + "_grid_warmStart.csv",
+                new String[]{"Level"}, new double[]{1});
+        scheduler = new SweepScheduler(mu, ud.simPath, "grid",
+                numWorkers, workerId);
+    }
+
+    MacroUtils mu;
+    UserDeclarations ud;
+    GridStudy study;
+    SweepResultsStore store;
+    WarmStart warmStart;
+    SweepScheduler scheduler;
+    String title;
+    String storeFile;
+    boolean vo = true;
+    boolean intrusive = true;
+}
@@ -0,0 +1,129 @@
+/**
+ * Half-domain mode for symmetric hull points
+ *
+ * At zero roll and a yaw of 0 or 180 the flow around the hull is symmetric
+ * about the centre plane. In half mode the port face of the domain block
+ * is moved to y = 0, so only the starboard half is meshed and solved, at
+ * about half the cells. Full mode puts the block corner back. The boundary
+ * on that face is left as it is, so it has to be a symmetry plane or a
+ * slip wall already, which serve as the far side wall as well as the
+ * centre plane. With any other boundary half mode is refused and every
+ * point runs in the full domain.
+ * Results of the half model are turned into full-body values: side force
+ * and roll and yaw moments are zero, every other force and moment doubles.
+ *
+ * star v11.06
+ */
+import java.util.*;
+import macroutils.*;
+import star.base.neo.DoubleVector;
+import star.common.*;
+import star.flow.WallShearStressOption;
+import star.meshing.*;
+
+public class HalfDomain {
+
+    /**
+     * @param domain block part of the domain
+     * @param u length units of the corner
+     * @param corner1 minimum corner of the full domain block
+     * @param boundary boundary on the port (minimum y) face of the block
+     */
+    public HalfDomain(MacroUtils mu, String domain, Units u, double[] corner1,
+            String boundary) {
+        this.mu = mu;
+        this.domain = domain;
+        this.u = u;
+        this.corner1 = corner1.clone();
+        this.boundary = boundary;
+    }
+
+    public static boolean isSymmetric(double roll, double yaw) {
+        double y = Math.abs(yaw % 360);
+        return roll == 0 && (y == 0 || y == 180);
+    }
+
+    /**
+     * Switches between the half and the full domain. The half domain is
+     * refused unless the port face is a symmetry plane or a slip wall.
+     *
+     * @return true if the domain changed and needs a remesh
+     */
+    public boolean set(boolean half) {
+        if (this.half != null && this.half == half) {
+            return false;
+        }
+        if (half && !isSymmetryFace()) {
+            return false;
+        }
+        SimpleBlockPart block = (SimpleBlockPart) mu.get.geometries
+                .byREGEX(domain, false);
+        block.getCorner1().setCoordinate(u, u, u, new DoubleVector(new double[]{
+            corner1[0], half ? 0 : corner1[1], corner1[2]}));
+        this.half = half;
+        mu.io.say.msg(half ? "Half domain, symmetry plane at y = 0."
+                : "Full domain.", true);
+        return true;
+    }
+
+    /**
+     * True if the boundary on the port face is a symmetry plane or a slip
+     * wall in every region it is found in, checked once.
+     */
+    private boolean isSymmetryFace() {
+        if (symmetryFace != null) {
+            return symmetryFace;
+        }
+        symmetryFace = false;
+        for (Region r : mu.getSimulation().getRegionManager().getRegions()) {
+            Boundary b = r.getBoundaryManager().getBoundary(boundary);
+            if (b == null) {
+                continue;
+            }
+            BoundaryType t = b.getBoundaryType();
+            if (!(t instanceof SymmetryBoundary || t instanceof WallBoundary
+                    && b.getConditions().get(WallShearStressOption.class)
+                    .getSelectedElement() == WallShearStressOption.Type.SLIP)) {
+                symmetryFace = false;
+                break;
+            }
+            symmetryFace = true;
+        }
+        if (!symmetryFace) {
+            mu.io.say.msg("Boundary " + boundary + " is not a symmetry plane "
+                    + "or slip wall, running the full domain.", true);
+        }
+        return symmetryFace;
+    }
+
+    public boolean isHalf() {
+        return half != null && half;
+    }
+
+    /**
+     * Full-body value of a force or moment of the current model.
+     */
+    public double fullBody(String quantity, double value) {
+        if (!isHalf()) {
+            return value;
+        }
+        return antisymmetric.contains(quantity) ? 0 : 2 * value;
+    }
+
+    public void fullBody(String[] quantities, double[] values) {
+        for (int i = 0; i < values.length; i++) {
+            values[i] = fullBody(quantities[i], values[i]);
+        }
+    }
+
+    Set<String> antisymmetric = new HashSet<String>(Arrays.asList(
+            "Fy", "Mx", "Mz")); // zero on the centre plane, not doubled
+
+    private final MacroUtils mu;
+    private final String domain;
+    private final Units u;
+    private final double[] corner1;
+    private final String boundary;
+    private Boolean half;
+    private Boolean symmetryFace;
+}
@@ -28,10 +28,20 @@ public class Jpo_Boat_Para_SinglePhase_Stiffness extends StarMacro {
     double[] dynRolls = {-12, -6, 6, 12}; // deg
     double[] staticPitches = {-2, -1, 0, 1, 2}; // deg
     double[] yaws = {0, 45, 90, 135, 180}; // deg
+    double[] dynSpeeds = {1, 2}; // fps
 
     int iterations = 1000;
+    double fitTol = .02; // accepted rms fit residual relative to the largest |moment|
+    int minFitPoints = 4; // points before a roll or pitch curve may stop early
+    boolean useSymmetry = true; // run one of each port/starboard mirrored pair
+    int symmetrySpotChecks = 1; // mirrored pairs still run on both sides, per sink
+    boolean halfDomain = false; // mesh and solve half the domain at roll 0 and yaw 0 or 180
+    double[] domainCorner1 = {-672, -432, -330}; // in, minimum corner of the full "Domain" block
+    String symmetryBoundary = "Domain.Port"; // symmetry or slip-wall boundary on the port (min y) face of "Domain"
     int resx = 1200;
     int resy = 700;
+    boolean renderQueue = false; // pictures of saved points written by Render_Worker servers, off the solver path
+    int renderWorkers = 0; // Render_Worker servers started here, 0 if started elsewhere
 
     public void execute() {
 
@@ -41,31 +51,179 @@ public class Jpo_Boat_Para_SinglePhase_Stiffness extends StarMacro {
             staticPitchStability(sink);
             rollResistance(sink);
         }
+        try {
+            renders.close();
+        } catch (IOException ex) {
+            mu.getSimulation().println(ex);
+        }
+        renders.printStats();
 
     }
 
     void staticRollStability(double sink) {
         title = "staticRollStability";
-        for (double roll : staticRolls) {
+        StiffnessFit fit = fit("sink" + sink + " Mx(roll)", "roll",
+                new StiffnessFit(2, true, false));
+        fit.setRange(staticRolls);
+        for (double roll : byMagnitude(staticRolls)) {
+            double[] key = {sink, roll, 0, 0, 0};
             run(roll, 0, 0, 0, sink);
+            fit.add(roll, results.get("Mx", key));
+            if (fitConverged(fit, "roll")) {
+                break;
+            }
         }
     }
 
     void staticPitchStability(double sink) {
         title = "staticPitchStability";
-        for (double pitch : staticPitches) {
+        StiffnessFit fit = fit("sink" + sink + " My(pitch)", "pitch",
+                new StiffnessFit(2, true, false));
+        fit.setRange(staticPitches);
+        for (double pitch : byMagnitude(staticPitches)) {
+            double[] key = {sink, 0, pitch, 0, 0};
             run(0, pitch, 0, 0, sink);
+            fit.add(pitch, results.get("My", key));
+            if (fitConverged(fit, "pitch")) {
+                break;
+            }
         }
     }
 
     void rollResistance(double sink) {
         title = "rollResistance";
+        // linear and quadratic damping in sway velocity v = speed sin(yaw),
+        // bow first and stern first drift fitted apart
+        ArrayList<double[]> matrix = new ArrayList<double[]>();
         for (double roll : dynRolls) {
+            for (double speed : dynSpeeds) {
+                for (String heading : HEADINGS) {
+                    for (String rep : dampingReports) {
+                        fit(dampingFit(sink, roll, speed, heading, rep), "v",
+                                new StiffnessFit(2, true, true));
+                    }
+                }
+            }
             for (double yaw : yaws) {
-                run(roll, 0, yaw, 1, sink);
-                run(roll, 0, yaw, 2, sink);
+                matrix.add(new double[]{sink, roll, 0, yaw});
+            }
+        }
+        List<double[]> tuples = matrix;
+        if (useSymmetry) {
+            tuples = symmetry.plan(matrix, symmetrySpotChecks);
+            mu.io.say.value("Roll resistance tuples left to their mirror image",
+                    symmetry.getSkipped(), vo);
+        }
+        for (double[] t : tuples) {
+            for (double speed : dynSpeeds) {
+                double[] key = {sink, t[1], 0, t[3], speed};
+                run(t[1], 0, t[3], speed, sink);
+                addDamping(key);
+                if (useSymmetry) {
+                    try {
+                        double[] m = symmetry.expand(results, key);
+                        if (m != null) {
+                            addDamping(m);
+                        }
+                    } catch (IOException ex) {
+                        mu.getSimulation().println(ex);
+                    }
+                    double error = SymmetryExpander.getError(results, key);
+                    if (!Double.isNaN(error)) {
+                        mu.io.say.value("Symmetry spot check, max relative error",
+                                error, vo);
+                    }
+                }
+                writeFits();
+            }
+        }
+    }
+
+    String dampingFit(double sink, double roll, double speed, String heading,
+            String rep) {
+        return "sink" + sink + " roll" + roll + " speed" + speed + " "
+                + heading + " " + rep + "(v)";
+    }
+
+    /**
+     * Adds a run or mirrored result to the damping fits of its roll, speed
+     * and heading. Pure sway (u = 0) belongs to both headings.
+     */
+    void addDamping(double[] key) {
+        double u = key[4] * Math.cos(key[3] * Math.PI / 180);
+        double v = key[4] * Math.sin(key[3] * Math.PI / 180);
+        for (String heading : HEADINGS) {
+            if (heading.equals(AHEAD) ? u < -1e-9 * key[4] : u > 1e-9 * key[4]) {
+                continue;
+            }
+            for (String rep : dampingReports) {
+                StiffnessFit fit = fits.get(dampingFit(key[0], key[1], key[4],
+                        heading, rep));
+                if (fit != null) {
+                    fit.add(v, results.get(rep, key));
+                }
+            }
+        }
+    }
+
+    StiffnessFit fit(String name, String x, StiffnessFit fit) {
+        fits.put(name, fit);
+        fitVariables.put(name, x);
+        return fit;
+    }
+
+    /**
+     * Refits and writes all curves, true once this one needs no more points.
+     */
+    boolean fitConverged(StiffnessFit fit, String x) {
+        writeFits();
+        if (!fit.isConverged(fitTol, minFitPoints)) {
+            return false;
+        }
+        mu.io.say.value("Stiffness fit within tolerance, remaining " + x
+                + " points skipped", fit.getRelativeResidual(), vo);
+        if (fit.isExtrapolated()) {
+            mu.io.say.msg("Stiffness fit extrapolated beyond the largest "
+                    + x + " run, see stiffness_fit.csv", vo);
+        }
+        return true;
+    }
+
+    void writeFits() {
+        try {
+            PrintWriter pw = new PrintWriter(new FileWriter(ud.simPath
+                    + "/stiffness_fit.csv"));
+            pw.println("Fit,Term,Value,Std Error,Points,Relative Residual,"
+                    + "Extrapolated");
+            for (Map.Entry<String, StiffnessFit> e : fits.entrySet()) {
+                e.getValue().fit();
+                e.getValue().write(pw, e.getKey(), fitVariables.get(e.getKey()));
+            }
+            pw.close();
+        } catch (IOException ex) {
+            mu.getSimulation().println(ex);
+        }
+    }
+
+    /**
+     * Angles ordered by magnitude, so early stopping skips the large ones.
+     */
+    static double[] byMagnitude(double[] angles) {
+        Double[] sorted = new Double[angles.length];
+        for (int i = 0; i < angles.length; i++) {
+            sorted[i] = angles[i];
+        }
+        Arrays.sort(sorted, new Comparator<Double>() {
+            @Override
+            public int compare(Double a, Double b) {
+                return Double.compare(Math.abs(a), Math.abs(b));
             }
+        });
+        double[] out = new double[angles.length];
+        for (int i = 0; i < angles.length; i++) {
+            out[i] = sorted[i];
         }
+        return out;
     }
 
     void run(double roll, double pitch, double yaw, double speed, double sink) {
@@ -78,7 +236,7 @@ public class Jpo_Boat_Para_SinglePhase_Stiffness extends StarMacro {
         pre(sink, roll, pitch, yaw, speed);
         solve();
         try {
-            post();
+            post(new double[]{sink, roll, pitch, yaw, speed});
         } catch (Exception ex) {
             mu.getSimulation().println(ex);
         }
@@ -90,6 +248,22 @@ public class Jpo_Boat_Para_SinglePhase_Stiffness extends StarMacro {
         ud.defUnitLength = ud.unit_in;
         ud.defColormap = mu.get.objects.colormap(
                 StaticDeclarations.Colormaps.BLUE_RED);
+        try {
+            results = new SweepResultsStore(ud.simPath + "/results_store.csv",
+                    "Sink", "Roll", "Pitch", "Yaw", "Speed");
+        } catch (IOException ex) {
+            mu.getSimulation().println(ex);
+        }
+        half = new HalfDomain(mu, "Domain", ud.unit_in, domainCorner1,
+                symmetryBoundary);
+        symmetry = new SymmetryExpander(results.getDims(),
+                new String[]{"Roll", "Yaw"}, new String[]{"Fy", "Mx", "Mz"});
+        renders = new RenderQueue(mu, ud.simPath + "/render", renderQueue);
+        try {
+            renders.startWorkers(renderWorkers);
+        } catch (IOException ex) {
+            mu.getSimulation().println(ex);
+        }
     }
 
     void pre(double sink, double roll, double pitch, double yaw, double speed) {
@@ -145,6 +319,9 @@ public class Jpo_Boat_Para_SinglePhase_Stiffness extends StarMacro {
             Math.sin(-pitch * Math.PI / 180)
         }));
 
+        if (halfDomain) {
+            half.set(HalfDomain.isSymmetric(roll, yaw));
+        }
         mu.update.volumeMesh();
     }
 
@@ -159,14 +336,16 @@ public class Jpo_Boat_Para_SinglePhase_Stiffness extends StarMacro {
         mu.saveSim();
     }
 
-    void post() throws Exception {
+    void post(double[] key) throws Exception {
         // export plots
         //ud.picPath = ud.simPath + "/" + ud.simTitle;
         //mu.io.write.plots();
 
         // export waterline 2d scene
         ud.scene = mu.get.scenes.byREGEX("Velocity Scene", vo);
-        mu.io.write.picture(ud.scene, ud.simTitle, resx, resy, vo);
+        renders.picture(ud.scene, null, ud.simTitle, resx, resy);
+        // the point is saved by solve()
+        renders.submit(ud.simPath + File.separator + ud.simTitle + ".sim");
 
         // update excel with numerical results
         String ssTitle = ud.simPath + "/results.xls";
@@ -188,12 +367,15 @@ public class Jpo_Boat_Para_SinglePhase_Stiffness extends StarMacro {
         row = sheet.createRow(currentRow);
         row.createCell(0).setCellValue(ud.simTitle);
         resultsCol = 1;
+        double[] values = new double[reports.length];
         for (String rep : reports) {
             ud.rep = mu.get.reports.byREGEX(rep, vo);
-            row.createCell(resultsCol).setCellValue(
+            values[resultsCol - 1] = half.fullBody(rep,
                     ud.rep.getReportMonitorValue());
+            row.createCell(resultsCol).setCellValue(values[resultsCol - 1]);
             resultsCol++;
         }
+        results.put(key, reports, values);
         out = new FileOutputStream(ssTitle);
         wb.write(out);
         out.close();
@@ -204,6 +386,12 @@ public class Jpo_Boat_Para_SinglePhase_Stiffness extends StarMacro {
 
     private MacroUtils mu;
     private UserDeclarations ud;
+    SweepResultsStore results;
+    SymmetryExpander symmetry;
+    HalfDomain half;
+    RenderQueue renders;
+    LinkedHashMap<String, StiffnessFit> fits = new LinkedHashMap<String, StiffnessFit>();
+    HashMap<String, String> fitVariables = new HashMap<String, String>();
     boolean vo = true;
 
     String title;
@@ -219,6 +407,10 @@ public class Jpo_Boat_Para_SinglePhase_Stiffness extends StarMacro {
     int resultsCol;
     double tStep;
     String[] reports = {"Fx", "Fy", "Fz", "Mx", "My", "Mz", "Lift", "Drag"};
+    String[] dampingReports = {"Fy", "Mx", "Mz"};
+    static final String AHEAD = "ahead";
+    static final String ASTERN = "astern";
+    static final String[] HEADINGS = {AHEAD, ASTERN};
 
     VofWaveModel vwm;
     FlatVofWave fvw;
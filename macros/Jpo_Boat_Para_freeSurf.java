@@ -35,8 +35,33 @@ public class Jpo_Boat_Para_freeSurf extends StarMacro {
     double[] pitches = {-2, -1, 1, 2}; // deg
 
     double runTime = 100;
+    double sampleFraction = .1; // last part of runTime averaged, run at the fine step
+    double courantWashout = 1; // max Courant number at the free surface before the averaged window
+    String freeSurfaceCells = "$VolumeFractionWater > .01 && $VolumeFractionWater < .99"; // cells the washout Courant number is measured in
+    boolean steadyStop = true; // stop each case once the force means converge, runTime is the limit
+    double minTime = 20; // s, washout at courantWashout before the first steadiness check
+    double checkTime = 5; // s at the fine step between steadiness checks
+    double uncertaintyTol = .01; // 95% uncertainty of each mean, fraction of |mean|
+    double forceFloor = .5; // lb, uncertainty accepted for forces with a mean near zero
+    double momentFloor = 20; // lb-in, uncertainty accepted for moments with a mean near zero
+    int minWindow = 50; // fewest fine steps averaged
+    boolean froudeScaling = true; // waterline band, free-surface cells and step from the Froude number
+    double hullLength = 336; // in, hull length of the Froude number
+    double baseSize = .5; // in, base size of the automated mesh
+    String meshOperation = "Automated Mesh";
+    String waterlineControl = "Waterline Refine"; // volumetric control of the free surface
+    String waterlineBlock = "Waterline Refine"; // block part of that control
+    double[] waterlineXY = {-672, -432, 672, 432}; // in, x min, y min, x max, y max of the block
     int resx = 1200;
     int resy = 700;
+    boolean renderQueue = false; // pictures of saved points written by Render_Worker servers, off the solver path
+    int renderWorkers = 0; // Render_Worker servers started here, 0 if started elsewhere
+    String archiveRoot = ""; // finished artifacts go here, off scratch (empty to disable)
+    int archiveLevel = 6; // deflate level of archived artifacts, 1 (fast) to 9 (small)
+    boolean useSymmetry = true; // skip tuples whose mirror image was already run
+    boolean halfDomain = false; // mesh and solve half the domain at roll 0 and yaw 0 or 180
+    double[] domainCorner1 = {-672, -432, -330}; // in, minimum corner of the full "Domain" block
+    String symmetryBoundary = "Domain.Port"; // symmetry or slip-wall boundary on the port (min y) face of "Domain"
 
     public void execute() {
 
@@ -48,6 +73,14 @@ public class Jpo_Boat_Para_freeSurf extends StarMacro {
 //        aftMotion();
 //        swayMotion();
 //        obliqueMotion();
+        try {
+            renders.close();
+        } catch (IOException ex) {
+            mu.getSimulation().println(ex);
+        }
+        renders.printStats();
+        artifacts.close();
+        artifacts.printStats(mu);
 
     }
 
@@ -103,15 +136,22 @@ public class Jpo_Boat_Para_freeSurf extends StarMacro {
     }
 
     void run(double roll, double pitch, double yaw, double speed) {
+        double[] key = {roll, pitch, yaw, speed};
+        if (useSymmetry && results.get(SymmetryExpander.MIRRORED, key) == 1) {
+            mu.io.say.value("Mirror image already run, skipped",
+                    Arrays.toString(key), null, vo);
+            return;
+        }
         ud.simTitle = title
                 + "_roll" + roll
                 + "_pitch" + pitch
                 + "_yaw" + yaw
                 + "_speed" + speed;
+        artifacts.setActive(ud.simTitle);
         pre(roll, pitch, yaw, speed);
         solve();
         try {
-            post();
+            post(key);
         } catch (Exception ex) {
             mu.getSimulation().println(ex);
         }
@@ -121,6 +161,30 @@ public class Jpo_Boat_Para_freeSurf extends StarMacro {
         mu = new MacroUtils(getActiveSimulation());
         ud = mu.userDeclarations;
         ud.defUnitLength = ud.unit_in;
+        stepper = new TimeStepController(mu);
+        stepper.courantMask = freeSurfaceCells;
+        try {
+            results = new SweepResultsStore(ud.simPath + "/results_store.csv",
+                    "Roll", "Pitch", "Yaw", "Speed");
+        } catch (IOException ex) {
+            mu.getSimulation().println(ex);
+        }
+        half = new HalfDomain(mu, "Domain", ud.unit_in, domainCorner1,
+                symmetryBoundary);
+        froude = new FroudeScaling(hullLength);
+        applier = new ParameterApplier(mu, new SimObjectCache(mu));
+        symmetry = new SymmetryExpander(results.getDims(),
+                new String[]{"Roll", "Yaw"}, new String[]{"Fy", "Mx", "Mz"});
+        artifacts = new ArtifactManager(ud.simPath, archiveRoot);
+        artifacts.level = archiveLevel;
+        artifacts.start();
+        renders = new RenderQueue(mu, ud.simPath + "/render", renderQueue);
+        artifacts.hold = renders;
+        try {
+            renders.startWorkers(renderWorkers);
+        } catch (IOException ex) {
+            mu.getSimulation().println(ex);
+        }
     }
 
     void pre(double roll, double pitch, double yaw, double speed) {
@@ -135,13 +199,26 @@ public class Jpo_Boat_Para_freeSurf extends StarMacro {
         fvw.getWind().setComponents(-speed, 0, 0);
 
         // set timestep
-        if (speed == 0.0) {
+        if (froudeScaling) {
+            tStep = froude.timestep(speed * 12);
+        } else if (speed == 0.0) {
             tStep = .5 / (.5 * 12) * 2;
         } else {
             tStep = .5 / (speed * 12) * 2;
         }
-        mu.set.solver.timestep(tStep);
-        ud.numToAve = (int) (runTime / 10 / tStep);
+        stepper.courant(tStep);
+        if (steadyStop) {
+            stepper.seconds(minTime, courantWashout);
+            // window of a case loaded with its solution, which skips
+            // runSteady: the first steadiness check, or all if shorter
+            ud.numToAve = Math.max(minWindow,
+                    (int) Math.round(checkTime / tStep));
+            uncertainties = null;
+        } else {
+            stepper.seconds(runTime * (1 - sampleFraction), courantWashout);
+            stepper.fixed(runTime * sampleFraction, tStep);
+            ud.numToAve = (int) (runTime * sampleFraction / tStep);
+        }
 
         // set boat orientation
         tpo = (TransformPartsOperation) mu.getSimulation()
@@ -153,19 +230,112 @@ public class Jpo_Boat_Para_freeSurf extends StarMacro {
         rcYaw = (RotationControl) tpo.getTransforms().getObject("yaw");
         rcYaw.getAngle().setValue(yaw);
 
+        if (halfDomain) {
+            half.set(HalfDomain.isSymmetric(roll, yaw));
+        }
+        if (froudeScaling) {
+            froudeMesh(speed * 12);
+        }
         mu.update.volumeMesh();
     }
 
+    /**
+     * Waterline band and free-surface cells for the waves at speed (in/s).
+     */
+    void froudeMesh(double speed) {
+        double band = froude.bandHalfThickness(speed);
+        applier.blockCorners(waterlineBlock, ud.unit_in,
+                new double[]{waterlineXY[0], waterlineXY[1], waterline - band},
+                new double[]{waterlineXY[2], waterlineXY[3], waterline + band});
+        applier.volumeControlSize(meshOperation, waterlineControl,
+                froude.cellHeight(speed) / baseSize * 100);
+        mu.io.say.value("Froude scaling", String.format(
+                "Fn %.3f, wave %.3g in, band +-%.3g in, cell %.3g in, step %.3g s",
+                froude.froude(speed), froude.waveHeight(speed), band,
+                froude.cellHeight(speed), tStep), null, vo);
+    }
+
     void solve() {
         if (mu.check.has.solution()) {
             return;
         }
-        mu.get.solver.stoppingCriteria_MaxTime().setMaximumTime(runTime);
-        mu.run();
+        stepper.run();
+        if (steadyStop) {
+            try {
+                runSteady();
+            } catch (IOException ex) {
+                mu.getSimulation().println(ex);
+            }
+        }
         mu.saveSim();
     }
 
-    void post() throws Exception {
+    /**
+     * Runs the fine step in chunks of checkTime until the mean of every
+     * report is steady and within uncertaintyTol, or runTime is reached.
+     * The averaging window of post is the common steady window.
+     */
+    void runSteady() throws IOException {
+        SteadinessMonitor[] monitors = new SteadinessMonitor[reports.length];
+        for (int j = 0; j < reports.length; j++) {
+            monitors[j] = new SteadinessMonitor(uncertaintyTol,
+                    reports[j].startsWith("F") ? forceFloor : momentFloor,
+                    minWindow);
+        }
+        mu.set.solver.timestep(tStep);
+        int chunk = Math.max((int) Math.round(checkTime / tStep), 1);
+        int fineSteps = 0;
+        double elapsed = minTime;
+        boolean converged = false;
+        while (!converged && elapsed < runTime) {
+            mu.step(chunk);
+            fineSteps += chunk;
+            elapsed += chunk * tStep;
+            double[][] y = new double[reports.length][];
+            int start = 0;
+            for (int j = 0; j < reports.length; j++) {
+                y[j] = history(reports[j], fineSteps);
+                start = Math.max(start, monitors[j].analyze(y[j], 0));
+            }
+            converged = true;
+            for (int j = 0; j < reports.length; j++) {
+                monitors[j].evaluate(y[j], start);
+                converged &= monitors[j].isConverged();
+            }
+            ud.numToAve = fineSteps - start;
+        }
+        uncertainties = new double[reports.length];
+        for (int j = 0; j < reports.length; j++) {
+            uncertainties[j] = monitors[j].getUncertainty();
+            mu.io.say.value(reports[j] + " mean, U95", String.format(
+                    "%.4g +- %.2g (tau %.1f steps)", monitors[j].getMean(),
+                    uncertainties[j], monitors[j].getCorrelationTime()),
+                    null, vo);
+        }
+        mu.io.say.value(converged ? "Steady, averaging window"
+                : "Not converged by runTime, averaging window",
+                String.format("%.3g s (%d steps)", ud.numToAve * tStep,
+                        ud.numToAve), null, vo);
+    }
+
+    /**
+     * Last n values of a report monitor.
+     */
+    double[] history(String rep, int n) throws IOException {
+        String fileName = ud.simPath + "/" + ud.simTitle + ".csv";
+        mu.get.monitors.byREGEX(rep, vo).export(fileName);
+        CSVReader r = new CSVReader(new FileReader(fileName));
+        List<String[]> rows = r.readAll();
+        r.close();
+        n = Math.min(n, rows.size() - 1);
+        double[] y = new double[n];
+        for (int j = 0; j < n; j++) {
+            y[j] = Double.parseDouble(rows.get(rows.size() - n + j)[1]);
+        }
+        return y;
+    }
+
+    void post(double[] key) throws Exception {
 
         for (Displayer d : mu.get.scenes.allDisplayers(vo)) {
             d.setRepresentation(mu.get.mesh.fvr());
@@ -181,7 +351,9 @@ public class Jpo_Boat_Para_freeSurf extends StarMacro {
         mu.io.write.plots();
 
         // export waterline 2d scene
-        mu.io.write.picture(ud.scene, "waterline", resx, resy, vo);
+        renders.picture(ud.scene, null, "waterline", resx, resy);
+        // the point is saved by solve()
+        renders.submit(ud.simPath + File.separator + ud.simTitle + ".sim");
 
         // update excel with numerical results
         String ssTitle = ud.simPath + "/results.xls";
@@ -204,6 +376,7 @@ public class Jpo_Boat_Para_freeSurf extends StarMacro {
         row = sheet.createRow(currentRow);
         row.createCell(0).setCellValue(ud.simTitle);
         resultsCol = 1;
+        double[] values = new double[reports.length];
         for (String rep : reports) {
             ud.mon = mu.get.monitors.byREGEX(rep, vo);
             String fileName = ud.simPath + "/" + ud.simTitle + ".csv";
@@ -211,13 +384,27 @@ public class Jpo_Boat_Para_freeSurf extends StarMacro {
             reader = new CSVReader(new FileReader(fileName));
             data = reader.readAll();
             stats = new SummaryStatistics();
-            for (i = data.size() - 1; i >= data.size() - ud.numToAve; i--) {
+            for (i = data.size() - 1; i >= Math.max(data.size() - ud.numToAve, 1); i--) {
                 String[] rowData = data.get(i);
                 stats.addValue(Double.parseDouble(rowData[1]));
             }
-            row.createCell(resultsCol).setCellValue(stats.getMean());
+            values[resultsCol - 1] = half.fullBody(rep, stats.getMean());
+            row.createCell(resultsCol).setCellValue(values[resultsCol - 1]);
             resultsCol++;
         }
+        results.put(key, reports, values);
+        if (uncertainties != null) {
+            // averaging window and U95 of each mean of the steady stop
+            results.put(key, "Window", ud.numToAve * tStep);
+            for (int j = 0; j < reports.length; j++) {
+                results.put(key, reports[j] + " U95",
+                        Math.abs(half.fullBody(reports[j], uncertainties[j])));
+            }
+            uncertainties = null;
+        }
+        if (useSymmetry) {
+            symmetry.expand(results, key);
+        }
         out = new FileOutputStream(ssTitle);
         wb.write(out);
         out.close();
@@ -228,6 +415,14 @@ public class Jpo_Boat_Para_freeSurf extends StarMacro {
 
     private MacroUtils mu;
     private UserDeclarations ud;
+    ArtifactManager artifacts;
+    RenderQueue renders;
+    SweepResultsStore results;
+    SymmetryExpander symmetry;
+    HalfDomain half;
+    FroudeScaling froude;
+    ParameterApplier applier;
+    TimeStepController stepper;
     boolean vo = true;
 
     String title;
@@ -243,6 +438,7 @@ public class Jpo_Boat_Para_freeSurf extends StarMacro {
     int i;
     int resultsCol;
     double tStep;
+    double[] uncertainties;
     String[] reports = {"Fx", "Fy", "Fz", "Mx", "My", "Mz"};
 
     VofWaveModel vwm;
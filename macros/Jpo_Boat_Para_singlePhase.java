@@ -35,113 +35,285 @@ public class Jpo_Boat_Para_SinglePhase extends StarMacro {
 
     double roll = 0.;
     int iterations = 500;
+    int iterationsWarm = 300; // iterations when started from a neighbour
+    int convergedWindow = 200; // last iterations a converged point's reports are stable over
+    double convergedTol = 1e-3; // largest change of a report over that window, relative to its group
     int resx = 1200;
     int resy = 700;
+    boolean renderQueue = false; // pictures of saved points written by Render_Worker servers, off the solver path
+    int renderWorkers = 0; // Render_Worker servers started here, 0 if started elsewhere
+    int numWorkers = 1; // batch jobs sharing this sweep (or env SWEEP_WORKERS)
+    int workerId = 0; // this batch job, 0 to numWorkers-1 (or env SWEEP_WORKER_ID)
+    SavePolicy.Mode saveMode = SavePolicy.Mode.FULL;
+    int saveEveryN = 5; // points between saves for EVERY_NTH
+    boolean halfDomain = false; // mesh and solve half the domain at roll 0 and yaw 0 or 180
+    double[] domainCorner1 = {-672, -432, -330}; // in, minimum corner of the full "Domain" block
+    String symmetryBoundary = "Domain.Port"; // symmetry or slip-wall boundary on the port (min y) face of "Domain"
+
+    /* EQUILIBRIUM MODE, sink and pitch solved per yaw and speed instead of the grid */
+    boolean equilibrium = false;
+    double weight = 4500.; // boat weight, in the units of the Fz report
+    double weightTol = .005; // accepted |Fz - weight| / weight
+    double momentTol = 100.; // accepted |My|, in the units of the My report
+    double dSink = .5; // in, difference step of the first solves
+    double dPitch = .5; // deg, difference step of the first solves
+    double maxSinkStep = 2.; // in, largest sink change per solve
+    double maxPitchStep = 1.; // deg, largest pitch change per solve
+    int maxSolves = 8; // solves per yaw and speed
 
     public void execute() {
 
         initMacro();
-        for (double sink : sinks) {
+        if (equilibrium) {
+            runEquilibrium();
+        } else {
+            runGrid();
+        }
+        try {
+            renders.close();
+        } catch (IOException ex) {
+            mu.getSimulation().println(ex);
+        }
+        cache.printStats();
+        applier.printStats();
+        savePolicy.printStats();
+        warmStart.printStats();
+        renders.printStats();
+    }
 
+    void runGrid() {
+        // one job per mesh (sink, pitch, yaw), packed across workers
+        ArrayList<double[]> matrix = new ArrayList<double[]>();
+        for (double sink : sinks) {
             for (double pitch : pitches) {
-
                 for (double yaw : yaws) {
-                    pre(sink, pitch, yaw);
-                    if (yaw == 0.) {
-                        speeds = speedsForward;
-                    } else {
-                        speeds = speedsAngle;
-                    }
-                    mu.io.say.value("speeds", Arrays.toString(speeds), null, vo);
-                    
-                    for (double speed : speeds) {
-                        ud.simTitle = title
-                                + "_sink" + sink
-                                + "_roll" + roll
-                                + "_pitch" + pitch
-                                + "_yaw" + yaw
-                                + "_speed" + speed;
-                        solve(speed);
-                        try {
-                            post(sink, pitch, yaw, speed);
-                        } catch (Exception ex) {
-                            mu.getSimulation().println(ex);
-                        }
+                    matrix.add(new double[]{sink, pitch, yaw});
+                }
+            }
+        }
+        HashMap<String, double[]> attitudes = new HashMap<String, double[]>();
+        for (double[] t : matrix) {
+            String id = "sink" + t[0] + "_pitch" + t[1] + "_yaw" + t[2];
+            attitudes.put(id, t);
+            int[] steps = new int[speedsFor(t[2]).length];
+            Arrays.fill(steps, iterations);
+            scheduler.addJob(id, steps);
+        }
+        List<String> jobs;
+        try {
+            jobs = scheduler.plan();
+        } catch (Exception ex) {
+            mu.getSimulation().println(ex);
+            return;
+        }
+
+        for (String id : jobs) {
+            double sink = attitudes.get(id)[0];
+            double pitch = attitudes.get(id)[1];
+            double yaw = attitudes.get(id)[2];
+            pre(sink, pitch, yaw);
+            speeds = speedsFor(yaw);
+            mu.io.say.value("speeds", Arrays.toString(speeds), null, vo);
+
+            for (double speed : speeds) {
+                ud.simTitle = title
+                        + "_sink" + sink
+                        + "_roll" + roll
+                        + "_pitch" + pitch
+                        + "_yaw" + yaw
+                        + "_speed" + speed;
+                scheduler.startPoint();
+                solve(sink, pitch, yaw, speed);
+                try {
+                    post(sink, pitch, yaw, speed);
+                    scheduler.endPoint(id, ud.simTitle, steps);
+                } catch (Exception ex) {
+                    mu.getSimulation().println(ex);
+                }
+            }
+            savePolicy.endOfMeshGroup();
+        }
+    }
+
+    /**
+     * Broyden iteration on sink and pitch for Fz = weight and My = 0. The
+     * first speed of a yaw starts from the middle of the sink and pitch
+     * grid, the following ones from the previous speed's attitude, and
+     * every solve warm starts from the nearest solved attitude.
+     */
+    void runEquilibrium() {
+        // one job per yaw, a few solves per speed
+        for (double yaw : yaws) {
+            int[] steps = new int[speedsFor(yaw).length];
+            Arrays.fill(steps, iterations + 3 * iterationsWarm);
+            scheduler.addJob("yaw" + yaw, steps);
+        }
+        List<String> jobs;
+        try {
+            jobs = scheduler.plan();
+            equilibria = new SweepResultsStore(ud.simPath
+                    + "/equilibrium_store.csv", "Yaw", "Speed");
+        } catch (Exception ex) {
+            mu.getSimulation().println(ex);
+            return;
+        }
+        EquilibriumSolver eq = new EquilibriumSolver(
+                new double[]{dSink, dPitch},
+                new double[]{maxSinkStep, maxPitchStep},
+                new double[]{weightTol * weight, momentTol}, maxSolves);
+
+        for (String id : jobs) {
+            double yaw = Double.parseDouble(id.substring(3));
+            double[] guess = {sinks[sinks.length / 2], pitches[pitches.length / 2]};
+            for (double speed : speedsFor(yaw)) {
+                scheduler.startPoint();
+                int total = 0;
+                eq.reset(guess);
+                for (double[] x = eq.next(); x != null; x = eq.next()) {
+                    pre(x[0], x[1], yaw);
+                    ud.simTitle = title
+                            + "_sink" + x[0]
+                            + "_roll" + roll
+                            + "_pitch" + x[1]
+                            + "_yaw" + yaw
+                            + "_speed" + speed;
+                    solve(x[0], x[1], yaw, speed);
+                    total += steps;
+                    eq.add(new double[]{
+                        half.fullBody("Fz", cache.report("Fz")
+                                .getReportMonitorValue()) - weight,
+                        half.fullBody("My", cache.report("My")
+                                .getReportMonitorValue())});
+                    try {
+                        post(x[0], x[1], yaw, speed);
+                    } catch (Exception ex) {
+                        mu.getSimulation().println(ex);
                     }
                 }
+                guess = eq.getBest();
+                mu.io.say.value("Equilibrium sink, pitch at " + speed + " fps",
+                        String.format("%.3f in, %.3f deg, %d solves%s",
+                                guess[0], guess[1], eq.getSolves(),
+                                eq.isConverged() ? "" : eq.isSingular()
+                                ? " (not converged, singular Jacobian)"
+                                : " (not converged)"),
+                        null, vo);
+                try {
+                    equilibria.put(new double[]{yaw, speed},
+                            new String[]{"Sink", "Pitch", "Solves", "Converged"},
+                            new double[]{guess[0], guess[1], eq.getSolves(),
+                                eq.isConverged() ? 1 : 0});
+                    scheduler.endPoint(id, ud.simTitle, total);
+                } catch (Exception ex) {
+                    mu.getSimulation().println(ex);
+                }
+                savePolicy.endOfMeshGroup();
             }
         }
     }
 
+    double[] speedsFor(double yaw) {
+        if (yaw == 0.) {
+            return speedsForward;
+        } else {
+            return speedsAngle;
+        }
+    }
+
     void initMacro() {
         mu = new MacroUtils(getActiveSimulation());
         ud = mu.userDeclarations;
         ud.defUnitLength = ud.unit_in;
         ud.defColormap = mu.get.objects.colormap(
                 StaticDeclarations.Colormaps.BLUE_RED);
-      
+        cache = new SimObjectCache(mu);
+        applier = new ParameterApplier(mu, cache);
+        warmStart = new WarmStart(mu, ud.simPath + "/warmStart.csv",
+                new String[]{"Sink", "Pitch", "Yaw", "Speed"},
+                new double[]{1, 1, 22.5, 1});
+        savePolicy = new SavePolicy(mu, saveMode, saveEveryN);
+        convergence = new SteadyConvergence(mu, ud.simPath);
+        convergence.monitorTol = convergedTol;
+        convergence.group(Arrays.asList("Fx", "Fy", "Fz", "Lift", "Drag"));
+        convergence.group(Arrays.asList("Mx", "My", "Mz"));
+        renders = new RenderQueue(mu, ud.simPath + "/render", renderQueue);
+        try {
+            renders.startWorkers(renderWorkers);
+        } catch (IOException ex) {
+            mu.getSimulation().println(ex);
+        }
+        try {
+            results = new SweepResultsStore(ud.simPath + "/results_store.csv",
+                    "Sink", "Pitch", "Yaw", "Speed");
+        } catch (IOException ex) {
+            mu.getSimulation().println(ex);
+        }
+        scheduler = new SweepScheduler(mu, ud.simPath, "hull_singlePhase",
+                numWorkers, workerId);
+        half = new HalfDomain(mu, "Domain", ud.unit_in, domainCorner1,
+                symmetryBoundary);
     }
 
     void pre(double sink, double pitch, double yaw) {
 
         // set boat orientation
-        tpo = (TransformPartsOperation) mu.getSimulation()
-                .get(MeshOperationManager.class).getObject("Transform");
-        rcRoll = (RotationControl) tpo.getTransforms().getObject("roll");
-        rcRoll.getAngle().setValue(roll);
-        rcPitch = (RotationControl) tpo.getTransforms().getObject("pitch");
-        rcPitch.getAngle().setValue(pitch);
-        rcYaw = (RotationControl) tpo.getTransforms().getObject("yaw");
-        rcYaw.getAngle().setValue(yaw);
-        tcSink = (TranslationControl) tpo.getTransforms().getObject("sink");
-        tcSink.getTranslationVector().setCoordinate(ud.unit_in, ud.unit_in, ud.unit_in, new DoubleVector(new double[]{0., 0., sink}));
+        applier.rotation("Transform", "roll", roll);
+        applier.rotation("Transform", "pitch", pitch);
+        applier.rotation("Transform", "yaw", yaw);
+        applier.translation("Transform", "sink", ud.unit_in, 0., 0., sink);
 
         // set c-sys orientation
-        sinkCsys = (CartesianCoordinateSystem) ud.lab0
-                .getLocalCoordinateSystemManager().getObject("sink");
         // sink
-        sinkCsys.getOrigin().setCoordinate(ud.unit_in, ud.unit_in, ud.unit_in,
-                new DoubleVector(new double[]{
-            0.0, 0.0, sink}));
+        applier.origin("sink", ud.unit_in, 0.0, 0.0, sink);
         // yaw
-        yawCsys = (CartesianCoordinateSystem) sinkCsys
-                .getLocalCoordinateSystemManager().getObject("yaw");
-        yawCsys.setBasis0(new DoubleVector(new double[]{
+        applier.basis("sink/yaw", new double[]{
             Math.cos(yaw * Math.PI / 180),
             Math.sin(yaw * Math.PI / 180),
             0.0
-        }));
-        // roll
-        rollTrimCsys = (CartesianCoordinateSystem) yawCsys
-                .getLocalCoordinateSystemManager().getObject("roll_trim");
-        rollTrimCsys.setBasis1(new DoubleVector(new double[]{
-            0.0,
-            Math.cos(roll * Math.PI / 180),
-            Math.sin(roll * Math.PI / 180)
-        }));
-        // trim
-        rollTrimCsys.setBasis0(new DoubleVector(new double[]{
+        }, null);
+        // roll and trim
+        applier.basis("sink/yaw/roll_trim", new double[]{
             Math.cos(pitch * Math.PI / 180),
             0.0,
             Math.sin(-pitch * Math.PI / 180)
-        }));
+        }, new double[]{
+            0.0,
+            Math.cos(roll * Math.PI / 180),
+            Math.sin(roll * Math.PI / 180)
+        });
 
-        mu.clear.solution();
-        mu.update.volumeMesh();
+        if (halfDomain && half.set(HalfDomain.isSymmetric(roll, yaw))) {
+            applier.markMeshDirty();
+        }
+        meshChanged = applier.updateMesh();
     }
 
-    void solve(double speed) {
+    void solve(double sink, double pitch, double yaw, double speed) {
         // set inlet speed
-        mu.get.boundaries.byREGEX("inlet", vo).getValues()
-                .get(VelocityMagnitudeProfile.class).getMethod(
-                ConstantScalarProfileMethod.class).getQuantity()
-                .setValue(speed);
+        applier.velocityMagnitude("inlet", speed);
 
-        mu.step(iterations);
-        for (Displayer d : mu.get.scenes.allDisplayers(vo)) {
+        // start from the nearest converged point
+        double[] params = {sink, pitch, yaw, speed};
+        if (warmStart.apply(params, meshChanged)) {
+            steps = iterationsWarm;
+        } else {
+            steps = iterations;
+        }
+        mu.step(steps);
+        meshChanged = false;
+        for (Displayer d : cache.allDisplayers()) {
             d.setRepresentation(mu.get.mesh.fvr());
         }
-        mu.saveSim();
+        savePolicy.save();
+        try {
+            // only a converged point is a warm start for its neighbours
+            boolean converged = convergence.check(Math.min(convergedWindow,
+                    steps)) == SteadyConvergence.Status.CONVERGED;
+            warmStart.record(params, converged,
+                    ud.simPath + "/" + ud.simTitle + ".sim");
+        } catch (Exception ex) {
+            mu.getSimulation().println(ex);
+        }
     }
 
     void post(double sink, double pitch, double yaw, double speed) throws Exception {
@@ -150,55 +322,80 @@ public class Jpo_Boat_Para_SinglePhase extends StarMacro {
         //mu.io.write.plots();
 
         // export waterline 2d scene
-        ud.scene = mu.get.scenes.byREGEX("waterline", vo);
-        mu.io.write.picture(ud.scene, ud.simTitle, resx, resy, vo);
+        ud.scene = cache.scene("waterline");
+        renders.picture(ud.scene, null, ud.simTitle, resx, resy);
+        renders.submit(savePolicy.getPointSim());
 
-        // update excel with numerical results
+        // update excel with numerical results, other workers of the sweep
+        // add their rows to the same spreadsheet
         String ssTitle = ud.simPath + "/results.xls";
-        if (!new File(ssTitle).exists()) {
-            wb = new HSSFWorkbook();
-            sheet = wb.createSheet("data");
-            row = sheet.createRow(0);
-            row.createCell(0).setCellValue("Sink");
-            row.createCell(1).setCellValue("Pitch");
-            row.createCell(2).setCellValue("Yaw");
-            row.createCell(3).setCellValue("Speed");
-            
-            for (i = 4; i < reports.length; i++) {
-                row.createCell(i + 1).setCellValue(reports[i]);
-                out = new FileOutputStream(ssTitle);
-                wb.write(out);
-                out.close();
+        double[] values = new double[reports.length];
+        File lock = SharedFile.lock(ssTitle);
+        try {
+            if (!new File(ssTitle).exists()) {
+                wb = new HSSFWorkbook();
+                sheet = wb.createSheet("data");
+                row = sheet.createRow(0);
+                row.createCell(0).setCellValue("Sink");
+                row.createCell(1).setCellValue("Pitch");
+                row.createCell(2).setCellValue("Yaw");
+                row.createCell(3).setCellValue("Speed");
+
+                for (i = 4; i < reports.length; i++) {
+                    row.createCell(i + 1).setCellValue(reports[i]);
+                    out = new FileOutputStream(ssTitle);
+                    wb.write(out);
+                    out.close();
+                }
             }
+            // open existing wb
+            wb = WorkbookFactory.create(new File(ssTitle));
+            sheet = wb.getSheet("data");
+            int currentRow = sheet.getLastRowNum() + 1;
+            row = sheet.createRow(currentRow);
+            // create row headers
+            row.createCell(0).setCellValue(sink);
+            row.createCell(1).setCellValue(pitch);
+            row.createCell(2).setCellValue(yaw);
+            row.createCell(3).setCellValue(speed);
+
+            resultsCol = 4;
+            for (String rep : reports) {
+                ud.rep = cache.report(rep);
+                values[resultsCol - 4] = half.fullBody(rep,
+                        ud.rep.getReportMonitorValue());
+                row.createCell(resultsCol).setCellValue(values[resultsCol - 4]);
+                resultsCol++;
+            }
+            File tmp = SharedFile.temp(ssTitle);
+            out = new FileOutputStream(tmp);
+            wb.write(out);
+            out.close();
+            SharedFile.replace(tmp, ssTitle);
+        } finally {
+            lock.delete();
+        }
+        if (results != null) {
+            results.put(new double[]{sink, pitch, yaw, speed}, reports, values);
         }
-        // open existing wb
-        wb = WorkbookFactory.create(new File(ssTitle));
-        sheet = wb.getSheet("data");
-        int currentRow = sheet.getLastRowNum() + 1;
-        row = sheet.createRow(currentRow);
-        // create row headers
-        row.createCell(0).setCellValue(sink);
-        row.createCell(1).setCellValue(pitch);
-        row.createCell(2).setCellValue(yaw);
-        row.createCell(3).setCellValue(speed);
- 
-        resultsCol = 4;
-        for (String rep : reports) {
-            ud.rep = mu.get.reports.byREGEX(rep, vo);
-            row.createCell(resultsCol).setCellValue(
-                    ud.rep.getReportMonitorValue());
-            resultsCol++;
-        }
-        out = new FileOutputStream(ssTitle);
-        wb.write(out);
-        out.close();
 
         mu.clear.solutionHistory();
     }
 
     MacroUtils mu;
     UserDeclarations ud;
+    SimObjectCache cache;
+    ParameterApplier applier;
+    WarmStart warmStart;
+    SteadyConvergence convergence;
+    SweepScheduler scheduler;
+    SavePolicy savePolicy;
+    RenderQueue renders;
+    SweepResultsStore results;
+    SweepResultsStore equilibria;
+    HalfDomain half;
     boolean vo = true;
+    boolean meshChanged;
 
     Double yaw;
     List<String[]> data;
@@ -211,18 +408,11 @@ public class Jpo_Boat_Para_SinglePhase extends StarMacro {
     AutoSave as;
     int i;
     int resultsCol;
+    int steps;
     double tStep;
     String[] reports = {"Fx", "Fy", "Fz", "Mx", "My", "Mz", "Lift", "Drag"};
 
     VofWaveModel vwm;
     FlatVofWave fvw;
-    TransformPartsOperation tpo;
-    RotationControl rcRoll;
-    RotationControl rcPitch;
-    RotationControl rcYaw;
-    TranslationControl tcSink;
-    CartesianCoordinateSystem sinkCsys;
-    CartesianCoordinateSystem yawCsys;
-    CartesianCoordinateSystem rollTrimCsys;
 
 }
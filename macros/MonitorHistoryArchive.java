@@ -0,0 +1,521 @@
+/**
+ * Compressed columnar archive for monitor histories
+ *
+ * Stores the exported data of a monitor plot as one column per report in
+ * blocks of rows. Inside a block the time column is written as
+ * delta-of-delta of its IEEE bit patterns and every report column as XOR
+ * of consecutive doubles (Gorilla style), both lossless. Each column of a
+ * block is byte aligned, and a block index at the end of the file holds
+ * the offset and time range of every block, so a reader can seek to the
+ * last revolution or any time window and only decode the blocks and
+ * columns it needs.
+ *
+ * CSV stays available as an on-demand conversion, also from the command
+ * line:
+ *   java MonitorHistoryArchive run_prop.mha [run_prop.csv]
+ *   java MonitorHistoryArchive run_prop.csv [run_prop.mha]
+ *
+ * star v11.06
+ */
+import com.opencsv.*;
+import java.io.*;
+import java.util.*;
+import star.common.*;
+
+public class MonitorHistoryArchive {
+
+    /**
+     * Exports a monitor plot and archives its data as baseName.mha. The
+     * intermediate csv is kept as baseName.csv only if asked for.
+     */
+    public static void fromPlot(MonitorPlot plot, String baseName,
+            boolean keepCsv) throws IOException {
+        String csvFile = baseName + ".csv";
+        plot.export(csvFile, ",");
+        fromCsv(csvFile, baseName + ".mha");
+        if (!keepCsv) {
+            new File(csvFile).delete();
+        }
+    }
+
+    /**
+     * Converts a csv with the time in the first column and one report per
+     * following column.
+     */
+    public static void fromCsv(String csvFile, String archiveFile)
+            throws IOException {
+        CSVReader reader = new CSVReader(new FileReader(csvFile));
+        Writer w = new Writer(archiveFile, reader.readNext());
+        double[] row = new double[w.numCols];
+        for (String[] line = reader.readNext(); line != null;
+                line = reader.readNext()) {
+            if (line.length < row.length) {
+                continue;
+            }
+            for (int i = 0; i < row.length; i++) {
+                row[i] = line[i].isEmpty() ? Double.NaN
+                        : Double.parseDouble(line[i]);
+            }
+            w.add(row);
+        }
+        reader.close();
+        w.close();
+    }
+
+    public static void main(String[] args) throws IOException {
+        String in = args[0];
+        if (in.endsWith(".csv")) {
+            fromCsv(in, args.length > 1 ? args[1]
+                    : in.replaceAll("\\.csv$", ".mha"));
+        } else {
+            Reader r = new Reader(in);
+            r.toCsv(args.length > 1 ? args[1]
+                    : in.replaceAll("\\.mha$", "") + ".csv");
+            r.close();
+        }
+    }
+
+    //--------------------------------------------------------------------------
+    // -- WRITER --
+    //--------------------------------------------------------------------------
+    public static class Writer {
+
+        /**
+         * @param columns column names, the first one is the time
+         */
+        public Writer(String file, String[] columns) throws IOException {
+            this.columns = columns.clone();
+            numCols = columns.length;
+            buf = new double[numCols][BLOCK_ROWS];
+            out = new DataOutputStream(new BufferedOutputStream(
+                    new FileOutputStream(file), 1 << 16));
+            out.writeInt(MAGIC);
+            out.writeInt(BLOCK_ROWS);
+            out.writeInt(numCols);
+            for (String c : columns) {
+                out.writeUTF(c);
+            }
+            offset = out.size();
+        }
+
+        /**
+         * Adds one row: the time followed by one value per report.
+         */
+        public void add(double... row) throws IOException {
+            for (int c = 0; c < numCols; c++) {
+                buf[c][rows] = row[c];
+            }
+            if (++rows == BLOCK_ROWS) {
+                flush();
+            }
+        }
+
+        public void close() throws IOException {
+            flush();
+            long indexOffset = offset;
+            for (long[] e : index) {
+                out.writeLong(e[0]);
+                out.writeInt((int) e[1]);
+                out.writeDouble(Double.longBitsToDouble(e[2]));
+                out.writeDouble(Double.longBitsToDouble(e[3]));
+            }
+            out.writeLong(indexOffset);
+            out.writeInt(index.size());
+            out.writeInt(MAGIC);
+            out.close();
+        }
+
+        private void flush() throws IOException {
+            if (rows == 0) {
+                return;
+            }
+            byte[][] cols = new byte[numCols][];
+            cols[0] = encodeTime(buf[0], rows);
+            for (int c = 1; c < numCols; c++) {
+                cols[c] = encodeValues(buf[c], rows);
+            }
+            index.add(new long[]{offset, rows,
+                Double.doubleToRawLongBits(buf[0][0]),
+                Double.doubleToRawLongBits(buf[0][rows - 1])});
+            out.writeInt(rows);
+            for (byte[] b : cols) {
+                out.writeInt(b.length);
+            }
+            for (byte[] b : cols) {
+                out.write(b);
+            }
+            offset += 4 + 4 * numCols;
+            for (byte[] b : cols) {
+                offset += b.length;
+            }
+            rows = 0;
+        }
+
+        final String[] columns;
+        final int numCols;
+        private final double[][] buf;
+        private final DataOutputStream out;
+        private final ArrayList<long[]> index = new ArrayList<long[]>();
+        private long offset;
+        private int rows;
+    }
+
+    //--------------------------------------------------------------------------
+    // -- READER --
+    //--------------------------------------------------------------------------
+    public static class Reader {
+
+        public Reader(String file) throws IOException {
+            raf = new RandomAccessFile(file, "r");
+            if (raf.readInt() != MAGIC) {
+                throw new IOException(file + " is not a monitor history archive");
+            }
+            raf.readInt();
+            columns = new String[raf.readInt()];
+            for (int c = 0; c < columns.length; c++) {
+                columns[c] = raf.readUTF();
+            }
+            raf.seek(raf.length() - 16);
+            long indexOffset = raf.readLong();
+            int numBlocks = raf.readInt();
+            if (raf.readInt() != MAGIC) {
+                throw new IOException(file + " has no block index");
+            }
+            offsets = new long[numBlocks];
+            rows = new int[numBlocks];
+            tFirst = new double[numBlocks];
+            tLast = new double[numBlocks];
+            raf.seek(indexOffset);
+            for (int b = 0; b < numBlocks; b++) {
+                offsets[b] = raf.readLong();
+                rows[b] = raf.readInt();
+                tFirst[b] = raf.readDouble();
+                tLast[b] = raf.readDouble();
+            }
+        }
+
+        public String[] getColumns() {
+            return columns.clone();
+        }
+
+        /**
+         * Index of the first column whose name starts with the prefix, or -1.
+         */
+        public int column(String prefix) {
+            for (int c = 0; c < columns.length; c++) {
+                if (columns[c].startsWith(prefix)) {
+                    return c;
+                }
+            }
+            return -1;
+        }
+
+        /**
+         * Rows with start <= time <= end.
+         *
+         * @param cols report columns to decode, all of them if none given
+         * @return [0] time, [i] the i-th requested column
+         */
+        public double[][] window(double start, double end, int... cols)
+                throws IOException {
+            cols = select(cols);
+            ArrayList<double[][]> parts = new ArrayList<double[][]>();
+            for (int b = 0; b < offsets.length; b++) {
+                if (tLast[b] >= start && tFirst[b] <= end) {
+                    parts.add(block(b, cols));
+                }
+            }
+            double[][] all = concat(parts, cols.length);
+            int from = 0;
+            while (from < all[0].length && all[0][from] < start) {
+                from++;
+            }
+            int to = all[0].length;
+            while (to > from && all[0][to - 1] > end) {
+                to--;
+            }
+            return slice(all, from, to);
+        }
+
+        /**
+         * The last n rows, e.g. the last revolution.
+         */
+        public double[][] last(int n, int... cols) throws IOException {
+            cols = select(cols);
+            LinkedList<double[][]> parts = new LinkedList<double[][]>();
+            int count = 0;
+            for (int b = offsets.length - 1; b >= 0 && count < n; b--) {
+                parts.addFirst(block(b, cols));
+                count += rows[b];
+            }
+            double[][] all = concat(parts, cols.length);
+            return slice(all, Math.max(all[0].length - n, 0), all[0].length);
+        }
+
+        public void toCsv(String csvFile) throws IOException {
+            CSVWriter w = new CSVWriter(new FileWriter(csvFile));
+            w.writeNext(columns);
+            int[] cols = select(new int[0]);
+            String[] line = new String[columns.length];
+            for (int b = 0; b < offsets.length; b++) {
+                double[][] d = block(b, cols);
+                for (int r = 0; r < d[0].length; r++) {
+                    for (int c = 0; c < line.length; c++) {
+                        line[c] = Double.toString(d[c][r]);
+                    }
+                    w.writeNext(line);
+                }
+            }
+            w.close();
+        }
+
+        public void close() throws IOException {
+            raf.close();
+        }
+
+        private int[] select(int[] cols) {
+            if (cols.length > 0) {
+                return cols;
+            }
+            cols = new int[columns.length - 1];
+            for (int c = 0; c < cols.length; c++) {
+                cols[c] = c + 1;
+            }
+            return cols;
+        }
+
+        private double[][] block(int b, int[] cols) throws IOException {
+            raf.seek(offsets[b]);
+            int n = raf.readInt();
+            int[] lengths = new int[columns.length];
+            long[] starts = new long[columns.length];
+            long pos = offsets[b] + 4 + 4 * columns.length;
+            for (int c = 0; c < columns.length; c++) {
+                lengths[c] = raf.readInt();
+                starts[c] = pos;
+                pos += lengths[c];
+            }
+            double[][] d = new double[cols.length + 1][];
+            d[0] = decodeTime(read(starts[0], lengths[0]), n);
+            for (int i = 0; i < cols.length; i++) {
+                d[i + 1] = decodeValues(
+                        read(starts[cols[i]], lengths[cols[i]]), n);
+            }
+            return d;
+        }
+
+        private byte[] read(long pos, int length) throws IOException {
+            byte[] b = new byte[length];
+            raf.seek(pos);
+            raf.readFully(b);
+            return b;
+        }
+
+        private static double[][] concat(List<double[][]> parts, int numCols) {
+            int n = 0;
+            for (double[][] p : parts) {
+                n += p[0].length;
+            }
+            double[][] all = new double[numCols + 1][n];
+            int at = 0;
+            for (double[][] p : parts) {
+                for (int c = 0; c <= numCols; c++) {
+                    System.arraycopy(p[c], 0, all[c], at, p[0].length);
+                }
+                at += p[0].length;
+            }
+            return all;
+        }
+
+        private static double[][] slice(double[][] all, int from, int to) {
+            double[][] d = new double[all.length][];
+            for (int c = 0; c < all.length; c++) {
+                d[c] = Arrays.copyOfRange(all[c], from, to);
+            }
+            return d;
+        }
+
+        private final RandomAccessFile raf;
+        private final String[] columns;
+        private final long[] offsets;
+        private final int[] rows;
+        private final double[] tFirst;
+        private final double[] tLast;
+    }
+
+    //--------------------------------------------------------------------------
+    // -- ENCODING --
+    //--------------------------------------------------------------------------
+    /**
+     * Delta-of-delta of the time bit patterns. Steady time steps give
+     * deltas that differ by a few ulps, which fit the short buckets.
+     */
+    static byte[] encodeTime(double[] t, int n) {
+        BitWriter w = new BitWriter();
+        long prev = Double.doubleToRawLongBits(t[0]);
+        w.write(prev, 64);
+        long prevDelta = 0;
+        for (int i = 1; i < n; i++) {
+            long bits = Double.doubleToRawLongBits(t[i]);
+            long delta = bits - prev;
+            long dod = delta - prevDelta;
+            if (dod == 0) {
+                w.write(0, 1);
+            } else if (fits(dod, 7)) {
+                w.write(0x2, 2);
+                w.write(dod, 7);
+            } else if (fits(dod, 12)) {
+                w.write(0x6, 3);
+                w.write(dod, 12);
+            } else if (fits(dod, 20)) {
+                w.write(0xE, 4);
+                w.write(dod, 20);
+            } else {
+                w.write(0xF, 4);
+                w.write(dod, 64);
+            }
+            prev = bits;
+            prevDelta = delta;
+        }
+        return w.toByteArray();
+    }
+
+    static double[] decodeTime(byte[] b, int n) {
+        BitReader r = new BitReader(b);
+        double[] t = new double[n];
+        long prev = r.read(64);
+        t[0] = Double.longBitsToDouble(prev);
+        long delta = 0;
+        for (int i = 1; i < n; i++) {
+            long dod;
+            if (r.read(1) == 0) {
+                dod = 0;
+            } else if (r.read(1) == 0) {
+                dod = r.readSigned(7);
+            } else if (r.read(1) == 0) {
+                dod = r.readSigned(12);
+            } else if (r.read(1) == 0) {
+                dod = r.readSigned(20);
+            } else {
+                dod = r.read(64);
+            }
+            delta += dod;
+            prev += delta;
+            t[i] = Double.longBitsToDouble(prev);
+        }
+        return t;
+    }
+
+    static byte[] encodeValues(double[] v, int n) {
+        BitWriter w = new BitWriter();
+        long prev = Double.doubleToRawLongBits(v[0]);
+        w.write(prev, 64);
+        int prevLead = -1;
+        int prevTrail = 0;
+        for (int i = 1; i < n; i++) {
+            long bits = Double.doubleToRawLongBits(v[i]);
+            long xor = bits ^ prev;
+            if (xor == 0) {
+                w.write(0, 1);
+            } else {
+                int lead = Math.min(Long.numberOfLeadingZeros(xor), 31);
+                int trail = Long.numberOfTrailingZeros(xor);
+                if (prevLead >= 0 && lead >= prevLead && trail >= prevTrail) {
+                    // fits the previous meaningful window
+                    w.write(0x2, 2);
+                    w.write(xor >>> prevTrail, 64 - prevLead - prevTrail);
+                } else {
+                    int len = 64 - lead - trail;
+                    w.write(0x3, 2);
+                    w.write(lead, 5);
+                    w.write(len - 1, 6);
+                    w.write(xor >>> trail, len);
+                    prevLead = lead;
+                    prevTrail = trail;
+                }
+            }
+            prev = bits;
+        }
+        return w.toByteArray();
+    }
+
+    static double[] decodeValues(byte[] b, int n) {
+        BitReader r = new BitReader(b);
+        double[] v = new double[n];
+        long prev = r.read(64);
+        v[0] = Double.longBitsToDouble(prev);
+        int lead = 0;
+        int trail = 0;
+        for (int i = 1; i < n; i++) {
+            if (r.read(1) != 0) {
+                if (r.read(1) != 0) {
+                    lead = (int) r.read(5);
+                    trail = 64 - lead - ((int) r.read(6) + 1);
+                }
+                prev ^= r.read(64 - lead - trail) << trail;
+            }
+            v[i] = Double.longBitsToDouble(prev);
+        }
+        return v;
+    }
+
+    private static boolean fits(long v, int bits) {
+        long half = 1L << (bits - 1);
+        return v >= -half && v < half;
+    }
+
+    static class BitWriter {
+
+        void write(long value, int bits) {
+            for (int i = bits - 1; i >= 0; i--) {
+                if (used == 8) {
+                    out.write(cur);
+                    cur = 0;
+                    used = 0;
+                }
+                cur = (cur << 1) | (int) ((value >>> i) & 1);
+                used++;
+            }
+        }
+
+        byte[] toByteArray() {
+            if (used > 0) {
+                out.write(cur << (8 - used));
+                cur = 0;
+                used = 0;
+            }
+            return out.toByteArray();
+        }
+
+        private final ByteArrayOutputStream out = new ByteArrayOutputStream();
+        private int cur;
+        private int used;
+    }
+
+    static class BitReader {
+
+        BitReader(byte[] b) {
+            this.b = b;
+        }
+
+        long read(int bits) {
+            long v = 0;
+            for (int i = 0; i < bits; i++) {
+                v = (v << 1) | ((b[pos >>> 3] >>> (7 - (pos & 7))) & 1);
+                pos++;
+            }
+            return v;
+        }
+
+        long readSigned(int bits) {
+            long v = read(bits);
+            return (v << (64 - bits)) >> (64 - bits);
+        }
+
+        private final byte[] b;
+        private int pos;
+    }
+
+    static final int MAGIC = 0x4D484131; // "MHA1"
+    static final int BLOCK_ROWS = 1024;
+}
@@ -0,0 +1,152 @@
+/**
+ * Motion case of a hull sweep
+ *
+ * A case type (static roll, static pitch, roll resistance, forward, aft,
+ * sway, oblique) declares the attitude of its points, the velocity of the
+ * hull through the water in body axes (u forward, v to port, w up) and the
+ * degrees of freedom it leaves free. The drift angle, and with it the yaw
+ * of the hull in a domain with the flow along -x, follows from the velocity
+ * vector, so all case types run through the same point setup. The hull
+ * drifts to port (v > 0) when it is yawed bow to starboard, so the yaw is
+ * minus the drift angle.
+ *
+ * star v11.06
+ */
+public class MotionCase {
+
+    /**
+     * @param type case type, first part of the point title
+     * @param velocity hull velocity u, v, w in body axes
+     * @param free free degrees of freedom, indexed like DOFS
+     */
+    public MotionCase(String type, double roll, double pitch,
+            double[] velocity, boolean[] free) {
+        this.type = type;
+        this.roll = roll;
+        this.pitch = pitch;
+        this.velocity = velocity.clone();
+        this.free = free.clone();
+    }
+
+    //--------------------------------------------------------------------------
+    // -- CASE TYPES
+    //--------------------------------------------------------------------------
+    /**
+     * Heeled hull at rest, free to sink and trim.
+     */
+    public static MotionCase staticRoll(double roll) {
+        return new MotionCase("staticRollStability", roll, 0, new double[3],
+                dofs(HEAVE, PITCH));
+    }
+
+    /**
+     * Trimmed hull at rest, free to sink.
+     */
+    public static MotionCase staticPitch(double pitch) {
+        return new MotionCase("staticPitchStability", 0, pitch, new double[3],
+                dofs(HEAVE));
+    }
+
+    /**
+     * Heeled hull moving sideways.
+     */
+    public static MotionCase rollResistance(double roll, double speed) {
+        return new MotionCase("rollResistance", roll, 0,
+                new double[]{0, speed, 0}, dofs(HEAVE, PITCH));
+    }
+
+    public static MotionCase forward(double speed) {
+        return new MotionCase("forwardMotion", 0, 0,
+                new double[]{speed, 0, 0}, dofs(HEAVE, PITCH));
+    }
+
+    public static MotionCase aft(double speed) {
+        return new MotionCase("aftMotion", 0, 0,
+                new double[]{-speed, 0, 0}, dofs(HEAVE, PITCH));
+    }
+
+    public static MotionCase sway(double speed) {
+        return new MotionCase("swayMotion", 0, 0,
+                new double[]{0, speed, 0}, dofs(HEAVE, PITCH));
+    }
+
+    /**
+     * Hull moving at a drift angle (deg) from forward.
+     */
+    public static MotionCase oblique(double speed, double drift) {
+        double a = drift * Math.PI / 180;
+        return new MotionCase("obliqueMotion", 0, 0, new double[]{
+            speed * Math.cos(a), speed * Math.sin(a), 0}, dofs(HEAVE, PITCH));
+    }
+
+    private static boolean[] dofs(int... free) {
+        boolean[] b = new boolean[DOFS.length];
+        for (int i : free) {
+            b[i] = true;
+        }
+        return b;
+    }
+
+    //--------------------------------------------------------------------------
+    // -- POINT VALUES
+    //--------------------------------------------------------------------------
+    public String getType() {
+        return type;
+    }
+
+    public double getRoll() {
+        return roll;
+    }
+
+    public double getPitch() {
+        return pitch;
+    }
+
+    /**
+     * Yaw of the hull (deg) in the flow along -x, minus the drift angle of
+     * the velocity, in (-180, 180] and 0 for a hull at rest.
+     */
+    public double getYaw() {
+        if (getSpeed() == 0) {
+            return 0;
+        }
+        double yaw = -Math.atan2(velocity[1], velocity[0]) * 180 / Math.PI;
+        yaw = Math.round(yaw * 1e6) / 1e6;
+        return yaw == -180 ? 180 : yaw;
+    }
+
+    public double getSpeed() {
+        return Math.sqrt(velocity[0] * velocity[0]
+                + velocity[1] * velocity[1] + velocity[2] * velocity[2]);
+    }
+
+    public double[] getVelocity() {
+        return velocity.clone();
+    }
+
+    public boolean isFree(int dof) {
+        return free[dof];
+    }
+
+    public String getTitle() {
+        return type
+                + "_roll" + roll
+                + "_pitch" + pitch
+                + "_yaw" + getYaw()
+                + "_speed" + Math.round(getSpeed() * 1e6) / 1e6;
+    }
+
+    static final String[] DOFS = {"surge", "sway", "heave", "roll", "pitch", "yaw"};
+    static final int SURGE = 0;
+    static final int SWAY = 1;
+    static final int HEAVE = 2;
+    static final int ROLL = 3;
+    static final int PITCH = 4;
+    static final int YAW = 5;
+
+    private final String type;
+    private final double roll;
+    private final double pitch;
+    private final double[] velocity;
+    private final boolean[] free;
+}
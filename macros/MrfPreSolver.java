@@ -0,0 +1,90 @@
+/**
+ * Frozen-rotor (MRF) pre-solution for transient sliding-mesh prop runs
+ *
+ * After the solution is cleared, the rotating region is switched from its
+ * RotatingMotion to a stationary mesh in the rotating reference frame of
+ * that motion and marched with a large time step, so the frozen-rotor flow
+ * develops in a few hundred cheap steps instead of several revolutions of
+ * sliding-mesh stepping. The time model stays implicit unsteady (pseudo
+ * steady marching), so no physics models are swapped. The stage stops
+ * after a maximum number of steps or once a monitored report changes by
+ * less than the tolerance between checks. The rotating motion and the time
+ * step are then restored and the transient continues from that field.
+ *
+ * star v11.06
+ */
+import macroutils.*;
+import star.base.report.Report;
+import star.common.*;
+import star.motion.*;
+
+public class MrfPreSolver {
+
+    /**
+     * @param region rotating region
+     * @param motion rotating motion of that region
+     */
+    public MrfPreSolver(MacroUtils mu, String region, String motion) {
+        this.mu = mu;
+        this.region = region;
+        this.motion = motion;
+    }
+
+    /**
+     * Runs the frozen-rotor stage at the current rotation rate.
+     *
+     * @param rpm rotation rate, sets the pseudo time step
+     * @param monitor report whose relative change decides convergence
+     * @return number of steps run
+     */
+    public int run(double rpm, Report monitor) {
+        Simulation sim = mu.getSimulation();
+        MotionSpecification ms = sim.getRegionManager().getRegion(region)
+                .getValues().get(MotionSpecification.class);
+        Motion rotating = ms.getMotion();
+        ReferenceFrame frame = ms.getReferenceFrame();
+        StationaryMotion stationary = (StationaryMotion) sim
+                .get(MotionManager.class).getObject("Stationary");
+        ReferenceFrame mrf = sim.get(ReferenceFrameManager.class)
+                .getObject("ReferenceFrame for " + motion);
+        ImplicitUnsteadySolver solver = sim.getSolverManager()
+                .getSolver(ImplicitUnsteadySolver.class);
+        double dt = solver.getTimeStep().getValue();
+
+        ms.setMotion(stationary);
+        ms.setReferenceFrame(mrf);
+        solver.getTimeStep().setValue(1 / (rpm / 60 * 360 / degPerStep));
+        int steps = 0;
+        double last = Double.NaN;
+        try {
+            while (steps < maxSteps) {
+                int chunk = Math.min(checkSteps, maxSteps - steps);
+                mu.step(chunk);
+                steps += chunk;
+                double value = monitor.getReportMonitorValue();
+                double change = Math.abs(value - last)
+                        / Math.max(Math.abs(value), 1e-12);
+                last = value;
+                if (change < tol) {
+                    break;
+                }
+            }
+        } finally {
+            ms.setMotion(rotating);
+            ms.setReferenceFrame(frame);
+            solver.getTimeStep().setValue(dt);
+        }
+        mu.io.say.value("MRF pre-solution", String.format("%d steps, %s = %g",
+                steps, monitor.getPresentationName(), last), null, true);
+        return steps;
+    }
+
+    int maxSteps = 200; // maximum frozen-rotor steps
+    int checkSteps = 20; // steps between convergence checks
+    double degPerStep = 10; // pseudo time step in degrees of rotation
+    double tol = 1e-3; // relative change of the monitor between checks
+
+    private final MacroUtils mu;
+    private final String region;
+    private final String motion;
+}
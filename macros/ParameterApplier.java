@@ -0,0 +1,229 @@
+/**
+ * Applies run parameters to the simulation, pushing only the values that
+ * changed since the last point
+ *
+ * Each physics, motion, boundary, transform, mesh control and
+ * coordinate-system target remembers the last value applied to it. A setter
+ * whose value is unchanged is skipped, and updateMesh() only clears the
+ * solution and remeshes when a mesh-affecting target (a transform, block or
+ * volumetric control) actually changed.
+ *
+ * star v11.06
+ */
+import java.util.*;
+import macroutils.*;
+import star.base.neo.DoubleVector;
+import star.common.*;
+import star.flow.*;
+import star.meshing.*;
+import star.motion.*;
+import star.vof.*;
+
+public class ParameterApplier {
+
+    public ParameterApplier(MacroUtils mu, SimObjectCache cache) {
+        this.mu = mu;
+        this.cache = cache;
+    }
+
+    /**
+     * Records the value for a target and returns true if it differs from
+     * the last value applied (or the target has never been applied).
+     */
+    public boolean changed(String key, double... value) {
+        double[] last = applied.get(key);
+        if (last != null && Arrays.equals(last, value)) {
+            skipped++;
+            return false;
+        }
+        applied.put(key, value.clone());
+        pushed++;
+        return true;
+    }
+
+    /**
+     * Flags the mesh as out of date for targets handled outside this class.
+     */
+    public void markMeshDirty() {
+        meshDirty = true;
+    }
+
+    //--------------------------------------------------------------------------
+    // -- PHYSICS --
+    //--------------------------------------------------------------------------
+    public void waveVelocity(String physics, String wave, double... v) {
+        if (!changed("wave:" + physics + "/" + wave, v)) {
+            return;
+        }
+        VofWaveModel vwm = cache.physicsContinuum(physics).getModelManager()
+                .getModel(VofWaveModel.class);
+        FlatVofWave fvw = (FlatVofWave) vwm.getVofWaveManager().getObject(wave);
+        fvw.getCurrent().setComponents(v[0], v[1], v[2]);
+        fvw.getWind().setComponents(v[0], v[1], v[2]);
+    }
+
+    public void referenceVelocity(double v) {
+        if (!changed("pcRefVelocity", v)) {
+            return;
+        }
+        PressureCoefficientFunction pcf = (PressureCoefficientFunction) cache
+                .fieldFunction(StaticDeclarations.Vars.PC.getVar());
+        pcf.getReferenceVelocity().setValue(v);
+    }
+
+    public void timestep(double tStep) {
+        if (changed("timestep", tStep)) {
+            mu.set.solver.timestep(tStep);
+        }
+    }
+
+    //--------------------------------------------------------------------------
+    // -- MOTION AND BOUNDARIES --
+    //--------------------------------------------------------------------------
+    public void rotationRate(String motion, double rate) {
+        if (changed("motion:" + motion, rate)) {
+            ((RotatingMotion) cache.motion(motion))
+                    .getRotationRate().setValue(rate);
+        }
+    }
+
+    public void boundaryValue(String boundary, StaticDeclarations.Vars var,
+            double value, Units u) {
+        if (changed("boundary:" + boundary + "/" + var, value)) {
+            mu.set.boundary.values(cache.boundary(boundary), var, value, u);
+        }
+    }
+
+    public void velocityMagnitude(String boundary, double value) {
+        if (changed("boundary:" + boundary + "/velocity", value)) {
+            cache.boundary(boundary).getValues()
+                    .get(VelocityMagnitudeProfile.class).getMethod(
+                    ConstantScalarProfileMethod.class).getQuantity()
+                    .setValue(value);
+        }
+    }
+
+    //--------------------------------------------------------------------------
+    // -- TRANSFORMS (MESH-AFFECTING) --
+    //--------------------------------------------------------------------------
+    public void rotation(String operation, String control, double angle) {
+        if (changed("rotation:" + operation + "/" + control, angle)) {
+            cache.rotationControl(operation, control)
+                    .getAngle().setValue(angle);
+            meshDirty = true;
+        }
+    }
+
+    public void translation(String operation, String control, Units u,
+            double... xyz) {
+        if (changed("translation:" + operation + "/" + control, xyz)) {
+            cache.translationControl(operation, control)
+                    .getTranslationVector().setCoordinate(u, u, u,
+                    new DoubleVector(xyz));
+            meshDirty = true;
+        }
+    }
+
+    //--------------------------------------------------------------------------
+    // -- MESH CONTROLS (MESH-AFFECTING) --
+    //--------------------------------------------------------------------------
+    public void blockCorners(String part, Units u, double[] corner1,
+            double[] corner2) {
+        if (changed("block:" + part, concat(corner1, corner2))) {
+            SimpleBlockPart block = (SimpleBlockPart) mu.get.geometries
+                    .byREGEX(part, false);
+            block.getCorner1().setCoordinate(u, u, u, new DoubleVector(corner1));
+            block.getCorner2().setCoordinate(u, u, u, new DoubleVector(corner2));
+            meshDirty = true;
+        }
+    }
+
+    /**
+     * Sets the custom size of a volumetric control, percent of base.
+     */
+    public void volumeControlSize(String operation, String control,
+            double percentage) {
+        if (changed("volumeControl:" + operation + "/" + control, percentage)) {
+            AutoMeshOperation amo = (AutoMeshOperation) cache
+                    .meshOperation(operation);
+            VolumeCustomMeshControl vcmc = (VolumeCustomMeshControl) amo
+                    .getCustomMeshControls().getObject(control);
+            ((GenericRelativeSize) vcmc.getCustomValues()
+                    .get(VolumeControlSize.class).getRelativeSize())
+                    .setPercentage(percentage);
+            meshDirty = true;
+        }
+    }
+
+    //--------------------------------------------------------------------------
+    // -- COORDINATE SYSTEMS --
+    //--------------------------------------------------------------------------
+    public void origin(String csys, Units u, double... xyz) {
+        if (changed("origin:" + csys, xyz)) {
+            cache.csys(csys).getOrigin().setCoordinate(u, u, u,
+                    new DoubleVector(xyz));
+        }
+    }
+
+    /**
+     * Sets basis1 (if given) then basis0, as a single target so the pair is
+     * always re-applied in the same order.
+     */
+    public void basis(String csys, double[] basis0, double[] basis1) {
+        double[] key = basis1 == null ? basis0 : concat(basis0, basis1);
+        if (!changed("basis:" + csys, key)) {
+            return;
+        }
+        CartesianCoordinateSystem cs = cache.csys(csys);
+        if (basis1 != null) {
+            cs.setBasis1(new DoubleVector(basis1));
+        }
+        cs.setBasis0(new DoubleVector(basis0));
+    }
+
+    /**
+     * Clears the solution and regenerates the volume mesh if a mesh-affecting
+     * target changed since the last update.
+     *
+     * @return true if the mesh was regenerated
+     */
+    public boolean updateMesh() {
+        if (!meshDirty) {
+            mu.io.say.msg("Mesh targets unchanged, skipping remesh.", true);
+            return false;
+        }
+        mu.clear.solution();
+        cache.updateVolumeMesh();
+        meshDirty = false;
+        remeshes++;
+        return true;
+    }
+
+    /**
+     * Forgets every applied value, e.g. after loading a different sim file.
+     */
+    public void reset() {
+        applied.clear();
+        meshDirty = false;
+    }
+
+    public void printStats() {
+        mu.io.say.value("Parameter applier",
+                String.format("%d pushed, %d skipped, %d remeshes",
+                        pushed, skipped, remeshes), null, true);
+    }
+
+    private static double[] concat(double[] a, double[] b) {
+        double[] c = Arrays.copyOf(a, a.length + b.length);
+        System.arraycopy(b, 0, c, a.length, b.length);
+        return c;
+    }
+
+    private final MacroUtils mu;
+    private final SimObjectCache cache;
+    private final HashMap<String, double[]> applied = new HashMap<String, double[]>();
+    private boolean meshDirty;
+    private int pushed;
+    private int skipped;
+    private int remeshes;
+}
@@ -6,7 +6,6 @@
  *
  * 2017, v11.06
  */
-import com.opencsv.CSVReader;
 import java.io.*;
 import star.common.*;
 import macroutils.*;
@@ -127,10 +126,37 @@ public class Props extends StarMacro {
     double[] trims = {5, 7.5, 10}; // deg, positive is trim out
     double[] heights = {7.19}; // // level trim propshaft depth below water (in.)
     double[] rpms = {3135, 3265.5, 3396, 3526.5, 3657};
+    boolean adaptiveRpm = false; // pick rpms from a surrogate instead of the fixed list
+    int rpmCandidates = 21; // candidate rpms between min and max of rpms
+    int maxRpmPoints = 6; // max number of rpms per speed/trim/height
+    double curveTol = .005; // accepted relative prediction error of KT, KQ and eta
+    int numWorkers = 1; // batch jobs sharing this sweep (or env SWEEP_WORKERS)
+    int workerId = 0; // this batch job, 0 to numWorkers-1 (or env SWEEP_WORKER_ID)
+    SavePolicy.Mode saveMode = SavePolicy.Mode.FULL;
+    int saveEveryN = 5; // points between saves for EVERY_NTH
+    String archiveRoot = ""; // finished artifacts go here, off scratch (empty to disable)
+    int archiveLevel = 6; // deflate level of archived artifacts, 1 (fast) to 9 (small)
+    boolean keepCsv = true; // also keep _prop/_gc csv monitor exports (read by excel.java)
     double mfr = .4; // exhaust mass flow rate (kg/s)
     double stepSize = 1.; // degrees per timestep 
+    double stepSize_washout = 2.; // degrees per timestep before the sampled revolutions
+    double revs_sampled = 1; // revolutions at stepSize at the end of every rpm
     double revs_init = 4; // number of prop revolutions for initial rpm setting
     double revs = 2; // number of prop revolutions for subsequent rpms
+    double rpmJump = 150; // rpm change from the previous point that needs revs_jump
+    double revs_jump = 4; // number of prop revolutions after an rpm jump
+    double revs_warm = 3; // number of prop revolutions for initial rpm when warm started
+    String convergedReports = "(?i).*(thrust|torque).*"; // prop monitors checked for a converged point
+    double convergedTol = .01; // largest change of their mean from the revolution before, relative
+    boolean mrfPreSolve = false; // frozen-rotor pre-solution on cold starts, then revs_warm
+    int mrfSteps = 200; // maximum frozen-rotor steps
+    double mrfStepSize = 10.; // degrees per frozen-rotor step
+    double mrfTol = .001; // relative change of mrfReport that ends the frozen-rotor stage
+    String mrfReport = ".*Thrust.*"; // report monitored during the frozen-rotor stage
+    boolean phaseAnalysis = true; // phase-resolved blade loads, samples at least revs_phase revolutions at stepSize
+    double revs_phase = 2; // number of last revolutions phase averaged for blade loads
+    int numBlades = 4; // prop blade count, sets the blade passing frequency
+    int numBpfHarmonics = 3; // blade passing harmonics written to the results store
     double trimPoint_z = 43.19; // z distance from trim point to GC center (in)
     double trimPoint_x = 11.1; // x distance from trim point to GC center (in)
     int numPropReports = 10; // number of reports being exported to csv file
@@ -141,46 +167,133 @@ public class Props extends StarMacro {
     public void execute() {
         try {
             initMacro();
+            // one job per mesh (speed, height, trim), packed across workers
+            HashMap<String, double[]> conditions = new HashMap<String, double[]>();
             for (double speed : speeds) {
-                setSpeed(speed);
+                for (int h = 0; h < heights.length; h++) {
+                    for (int t = 0; t < trims.length; t++) {
+                        String id = speed + "mph_" + trims[t] + "deg_"
+                                + heights[h] + "in";
+                        conditions.put(id, new double[]{
+                            speed, heights[h], trims[t], h * trims.length + t});
+                        scheduler.addJob(id, pointSteps());
+                    }
+                }
+            }
 
-                for (double height : heights) {
-                    setHeight(height);
-
-                    for (double trim : trims) {
-                        setTrim(trim);
-                        setCsys(height, trim);
-
-                        for (double rpm : rpms) {
-                            setRpm(rpm);
-                            ud.simTitle = versionFileHeader + "_"
-                                    + speed + "mph_"
-                                    + trim + "deg_"
-                                    + height + "in_"
-                                    + rpm + "rpm";
-                            fileName = ud.simPath + slash + ud.simTitle;
-                            run(speed, height, trim, rpm);
-                            exportScene();
-                            CreateResultSS(speed, height, trim, rpm);
-                        }
+            for (String id : scheduler.plan()) {
+                jobId = id;
+                double speed = conditions.get(id)[0];
+                double height = conditions.get(id)[1];
+                double trim = conditions.get(id)[2];
+                setSpeed(speed);
+                setHeight(height);
+                setTrim(trim);
+                setCsys(height, trim);
+                meshCount = (int) conditions.get(id)[3];
+
+                if (!adaptiveRpm) {
+                    for (double rpm : rpms) {
+                        runPoint(speed, height, trim, rpm);
                     }
+                    savePolicy.endOfMeshGroup();
+                    continue;
+                }
+                sampler.reset(speed * 1.467 * 60 / (dProp / 12));
+                for (double rpm = sampler.next(); !Double.isNaN(rpm);
+                        rpm = sampler.next()) {
+                    runPoint(speed, height, trim, rpm);
+                    sampler.add(rpm, KT_norm, KQ_norm, eta);
                 }
+                mu.io.say.value("RPM points run", String.format(
+                        "%d, leave-one-out error %.2g", sampler.size(),
+                        sampler.getMaxLooError()), null, vo);
+                savePolicy.endOfMeshGroup();
             }
+            cache.printStats();
+            applier.printStats();
+            savePolicy.printStats();
+            warmStart.printStats();
         } catch (Exception ex) {
             mu.getSimulation().println(ex);
+        } finally {
+            if (artifacts != null) {
+                artifacts.close();
+                artifacts.printStats(mu);
+            }
         }
     }
 
+    int[] pointSteps() {
+        int[] steps = new int[adaptiveRpm ? maxRpmPoints : rpms.length];
+        for (int i = 0; i < steps.length; i++) {
+            double r = i == 0 ? revs_init : revs;
+            steps[i] = (int) Math.round(Math.max(r - sampledRevs(), 0) * 360
+                    / stepSize_washout + sampledRevs() * 360 / stepSize);
+        }
+        return steps;
+    }
+
+    void runPoint(double speed, double height, double trim, double rpm)
+            throws Exception {
+        if (meshChanged) {
+            warmStarted = warmStart.apply(new double[]{
+                speed, height, trim, rpm}, true);
+        }
+        setRpm(rpm);
+        ud.simTitle = versionFileHeader + "_"
+                + speed + "mph_"
+                + trim + "deg_"
+                + height + "in_"
+                + rpm + "rpm";
+        fileName = ud.simPath + slash + ud.simTitle;
+        artifacts.setActive(ud.simTitle);
+        scheduler.startPoint();
+        run(speed, height, trim, rpm);
+        exportScene();
+        CreateResultSS(speed, height, trim, rpm);
+        scheduler.endPoint(jobId, ud.simTitle, numSteps);
+        meshChanged = false;
+        lastRpm = rpm;
+    }
+
     void initMacro() {
         mu = new MacroUtils(getActiveSimulation(), intrusive);
         ud = mu.userDeclarations;
         ud.defColormap = mu.get.objects.colormap(
                 StaticDeclarations.Colormaps.BLUE_RED);
+        cache = new SimObjectCache(mu);
+        applier = new ParameterApplier(mu, cache);
         if (linux) {
             slash = "/";
         } else {
             slash = "\\";
         }
+        warmStart = new WarmStart(mu,
+                ud.simPath + slash + versionFileHeader + "_warmStart.csv",
+                new String[]{"Speed", "Height", "Trim", "RPM"},
+                new double[]{5, 1, 2.5, 500});
+        savePolicy = new SavePolicy(mu, saveMode, saveEveryN);
+        artifacts = new ArtifactManager(ud.simPath, archiveRoot);
+        artifacts.level = archiveLevel;
+        artifacts.start();
+        try {
+            results = new SweepResultsStore(ud.simPath + slash
+                    + versionFileHeader + "_results_store.csv",
+                    "Speed", "Trim", "Height", "RPM");
+        } catch (IOException ex) {
+            mu.getSimulation().println(ex);
+        }
+        scheduler = new SweepScheduler(mu, ud.simPath, "prop",
+                numWorkers, workerId);
+        stepper = new TimeStepController(mu);
+        mrf = new MrfPreSolver(mu, "Rotating", "Rotation");
+        mrf.maxSteps = mrfSteps;
+        mrf.degPerStep = mrfStepSize;
+        mrf.tol = mrfTol;
+        blades = new BladeLoadAnalyzer(stepSize, numBlades, numBpfHarmonics);
+        sampler = new AdaptiveSampler(rpms[0], rpms[rpms.length - 1],
+                rpmCandidates, curveTol, maxRpmPoints);
         // assign variables for particular version
         xProp = xProps[version];
         dProp = dProps[version];
@@ -197,119 +310,92 @@ public class Props extends StarMacro {
 
     void setSpeed(double speed) {
         // set wave speed
-        ud.physCont = mu.get.objects.physicsContinua(".*", vo);
-        vwm
-                = ud.physCont.getModelManager().getModel(VofWaveModel.class
-                );
-        fvw = (FlatVofWave) vwm.getVofWaveManager().getObject("FlatVofWave 1");
-        fvw.getCurrent().setComponents(speed, 0, 0);
-        fvw.getWind().setComponents(speed, 0, 0);
+        applier.waveVelocity(".*", "FlatVofWave 1", speed, 0, 0);
 
         // set pressure coeff ref velocity
-        ud.ff = mu.get.objects.fieldFunction(
-                StaticDeclarations.Vars.PC.getVar(), vo);
-        pcf = (PressureCoefficientFunction) ud.ff;
-        pcf.getReferenceVelocity().setValue(speed);
-
-        // initialize number of meshes generated
-        meshCount = -1;
+        applier.referenceVelocity(speed);
 
     }
 
     void setHeight(double height) {
         // set heave value in parts translate operation
-        tpo = (TransformPartsOperation) mu.getSimulation()
-                .get(MeshOperationManager.class
-                ).getObject("Translate");
-        tc = (TranslationControl) tpo.getTransforms().getObject("Heave");
-        tc.getTranslationVector().setCoordinate(
-                ud.unit_in, ud.unit_in, ud.unit_in,
-                new DoubleVector(new double[]{0.0, 0.0, -height}));
+        applier.translation("Translate", "Heave", ud.unit_in,
+                0.0, 0.0, -height);
 
     }
 
     void setTrim(double trim) {
         // set trim angle in parts rotate operation
-        tpo = (TransformPartsOperation) mu.getSimulation()
-                .get(MeshOperationManager.class
-                ).getObject("Rotate");
-        rc = (RotationControl) tpo.getTransforms().getObject("Pitch");
-        rc.getAngle().setValue(trim);
+        applier.rotation("Rotate", "Pitch", trim);
 
         // Move outer refinement zone to follow motion due to trim
-        tpo
-                = (TransformPartsOperation) mu.getSimulation()
-                        .get(MeshOperationManager.class
-                        )
-                        .getObject("Translate_Refine_Outer");
-        tc = (TranslationControl) tpo.getTransforms().getObject("Translate");
-        tc.getTranslationVector().setCoordinate(ud.unit_in, ud.unit_in, ud.unit_in,
-                new DoubleVector(new double[]{
-            trimPoint_z * Math.sin(trim * Math.PI / 180), 0.0,
-            (trimPoint_x + xProp) * Math.sin(trim * Math.PI / 180)}));
-
-        // Clear solution history and fields
-        mu.clear.solution();
-        // Execute all mesh operations and update mesh count
-        mu.update.volumeMesh();
-        meshCount++;
+        applier.translation("Translate_Refine_Outer", "Translate", ud.unit_in,
+                trimPoint_z * Math.sin(trim * Math.PI / 180), 0.0,
+                (trimPoint_x + xProp) * Math.sin(trim * Math.PI / 180));
+
+        // Clear solution and remesh only if a transform changed
+        meshChanged = applier.updateMesh();
     }
 
     void setCsys(double height, double trim) {
 
         // -- Trim Center --
-        trimCenter = (CartesianCoordinateSystem) ud.lab0
-                .getLocalCoordinateSystemManager().getObject("Trim_Center");
-        trimCenter.getOrigin().setCoordinate(ud.unit_in, ud.unit_in, ud.unit_in,
-                new DoubleVector(new double[]{
-            -trimPoint_x, 0.0, trimPoint_z + -height}));
+        applier.origin("Trim_Center", ud.unit_in,
+                -trimPoint_x, 0.0, trimPoint_z + -height);
         // set orientation
-        trimCenter.setBasis0(new DoubleVector(new double[]{
+        applier.basis("Trim_Center", new double[]{
             Math.cos(trim * Math.PI / 180), 0.0,
-            Math.sin(trim * Math.PI / 180)}));
+            Math.sin(trim * Math.PI / 180)}, null);
 
         // -- GC Center --
-        gcCenter = (CartesianCoordinateSystem) trimCenter
-                .getLocalCoordinateSystemManager().getObject("GC_Center");
-        gcCenter.getOrigin().setCoordinate(ud.unit_in, ud.unit_in, ud.unit_in,
-                new DoubleVector(new double[]{
-            trimPoint_x, 0.0, -trimPoint_z}));
+        applier.origin("Trim_Center/GC_Center", ud.unit_in,
+                trimPoint_x, 0.0, -trimPoint_z);
 
         // -- Prop Center --
-        propCenter = (CartesianCoordinateSystem) gcCenter
-                .getLocalCoordinateSystemManager().getObject("Prop_Center");
-        propCenter.getOrigin().setCoordinate(ud.unit_in, ud.unit_in, ud.unit_in,
-                new DoubleVector(new double[]{xProp, 0.0, 0.0}));
+        applier.origin("Trim_Center/GC_Center/Prop_Center", ud.unit_in,
+                xProp, 0.0, 0.0);
     }
 
     void setRpm(double rpm) {
-        // set time step
-        tStep = 1 / (rpm / 60 * 360 / stepSize);
-        mu.set.solver.timestep(tStep);
-
         // set exhaust flow
-        ud.bdry = mu.get.boundaries.byREGEX("Inlet_Exhaust", true);
-        mu.set.boundary.values(ud.bdry,
+        applier.boundaryValue("Inlet_Exhaust",
                 StaticDeclarations.Vars.MFR, mfr, ud.unit_kgps);
 
         // set prop rotation speed
-        rm
-                = (RotatingMotion) mu.getSimulation().get(
-                        MotionManager.class
-                ).getObject("Rotation");
-        rm.getRotationRate().setValue(rpm);
-
-        // set number of timesteps
-        if (rpm == rpms[0]) {
-            numSteps = (int) Math.round(revs_init * 360 / stepSize);
+        applier.rotationRate("Rotation", rpm);
+
+        // set time step schedule, longer wash-out after the solution was cleared
+        // unless it was warm started or pre-solved frozen-rotor
+        preSolve = meshChanged && !warmStarted && mrfPreSolve;
+        double revsTotal;
+        if (meshChanged && (warmStarted || preSolve)) {
+            revsTotal = revs_warm;
+        } else if (meshChanged) {
+            revsTotal = revs_init;
+        } else if (Math.abs(rpm - lastRpm) > rpmJump) {
+            revsTotal = revs_jump;
         } else {
-            numSteps = (int) Math.round(revs * 360 / stepSize);
+            revsTotal = revs;
         }
+        stepper.rotating(rpm);
+        stepper.revolutions(revsTotal - sampledRevs(), stepSize_washout);
+        stepper.revolutions(sampledRevs(), stepSize);
+        numSteps = stepper.getSteps();
+    }
+
+    /**
+     * Revolutions at stepSize at the end of every rpm, enough for the phase
+     * average.
+     */
+    double sampledRevs() {
+        return phaseAnalysis ? Math.max(revs_sampled, revs_phase)
+                : revs_sampled;
     }
 
-    void run(double speed, double height, double trim, double rpm) {
+    void run(double speed, double height, double trim, double rpm)
+            throws Exception {
         // set volume mesh repr for all displayers
-        for (Displayer d : mu.get.scenes.allDisplayers(vo)) {
+        for (Displayer d : cache.allDisplayers()) {
             d.setRepresentation(mu.get.mesh.fvr());
         }
 
@@ -318,26 +404,77 @@ public class Props extends StarMacro {
                 .getAutoSave().getStarUpdate().setEnabled(false);
 
         // run
-        mu.step(numSteps);
+        if (preSolve) {
+            numSteps += mrf.run(rpm, cache.report(mrfReport));
+        }
+        // blade angles are phased from here, the rotor turns at rpm from now on
+        rpmStartTime = mu.getSimulation().getSolution().getPhysicalTime();
+        stepper.run();
 
-        // output csv data
-        MonitorPlot propPlot = (MonitorPlot) mu.get.plots.byREGEX("Prop", vo);
-        propPlot.export(fileName + "_prop.csv", ",");
-        MonitorPlot gcPlot = (MonitorPlot) mu.get.plots.byREGEX("Gearcase", vo);
-        gcPlot.export(fileName + "_gc.csv", ",");
+        // output monitor histories
+        MonitorHistoryArchive.fromPlot(cache.monitorPlot("Prop"),
+                fileName + "_prop", keepCsv);
+        MonitorHistoryArchive.fromPlot(cache.monitorPlot("Gearcase"),
+                fileName + "_gc", keepCsv);
 
-        mu.saveSim();
+        savePolicy.save();
+        try {
+            // only a converged point is a warm start for its neighbours
+            warmStart.record(new double[]{speed, height, trim, rpm},
+                    periodicallyConverged(rpm), fileName + ".sim");
+        } catch (Exception ex) {
+            mu.getSimulation().println(ex);
+        }
+    }
+
+    /**
+     * True if the mean of every prop monitor matching convergedReports over
+     * the last revolution is within convergedTol of its mean over the
+     * revolution before.
+     */
+    boolean periodicallyConverged(double rpm) throws IOException {
+        MonitorHistoryArchive.Reader r = new MonitorHistoryArchive.Reader(
+                fileName + "_prop.mha");
+        String[] cols = r.getColumns();
+        double[][] end = r.last(1);
+        double t = end[0][end[0].length - 1];
+        double period = 60 / rpm;
+        double[][] before = r.window(t - 2 * period, t - period);
+        double[][] last = r.window(t - period, t);
+        r.close();
+        if (before[0].length < 2) {
+            return false;
+        }
+        for (int c = 1; c < cols.length; c++) {
+            if (!cols[c].matches(convergedReports)) {
+                continue;
+            }
+            double m0 = mean(before[c]);
+            double m1 = mean(last[c]);
+            if (Math.abs(m1 - m0) > convergedTol * Math.abs(m1)) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    static double mean(double[] y) {
+        double s = 0;
+        for (double v : y) {
+            s += v;
+        }
+        return s / y.length;
     }
 
     void exportScene() {
         // export pressure coeff 3d scene
-        ud.scene = mu.get.scenes.byREGEX("Scalar Scene", vo);
+        ud.scene = cache.scene("Scalar Scene");
         ud.scene.export3DSceneFileAndWait(
                 fileName + ".sce", ud.simTitle,
                 "Pressure Coefficient", false, false);
 
         // write prop plot as picture (doesn't work with software rendering)
-        mu.io.write.picture(mu.get.plots.byREGEX("Prop", vo),
+        mu.io.write.picture(cache.plot("Prop"),
                 ud.simTitle, ud.picResX, ud.picResY, vo);
 
         // clear solution history
@@ -347,8 +484,36 @@ public class Props extends StarMacro {
     void CreateResultSS(double speed, double height, double trim, double rpm)
             throws Exception {
 
-        // create results spreadsheet if not already created
+        // other workers of the sweep add their rows to the same spreadsheet
         ssTitle = ud.simPath + slash + versionFileHeader + "_results.xls";
+        File lock = SharedFile.lock(ssTitle);
+        try {
+            writeResultRow(speed, height, trim, rpm);
+        } finally {
+            lock.delete();
+        }
+
+        // add numerical results to the results store
+        double[] values = new double[headers.length - numTitleCol];
+        for (int i = 0; i < values.length; i++) {
+            Cell c = row.getCell(numTitleCol + i);
+            values[i] = c == null ? Double.NaN : c.getNumericCellValue();
+        }
+        results.put(new double[]{speed, trim, height, rpm},
+                Arrays.copyOfRange(headers, numTitleCol, headers.length),
+                values);
+
+        // phase-resolved blade loads
+        if (phaseAnalysis) {
+            analyzePhase(new double[]{speed, trim, height, rpm}, rpm, "_prop");
+            analyzePhase(new double[]{speed, trim, height, rpm}, rpm, "_gc");
+        }
+    }
+
+    void writeResultRow(double speed, double height, double trim, double rpm)
+            throws Exception {
+
+        // create results spreadsheet if not already created
         if (!new File(ssTitle).exists()) {
             initSpreadsheet();
         }
@@ -365,20 +530,19 @@ public class Props extends StarMacro {
         row.createCell(3).setCellValue(height);
         row.createCell(4).setCellValue(rpm);
 
-        // read in prop data
+        // read in last revolution of prop data
         fileName = ud.simPath + slash + ud.simTitle;
-        reader = new CSVReader(new FileReader(fileName + "_prop.csv"));
-        data = reader.readAll();
+        history = new MonitorHistoryArchive.Reader(fileName + "_prop.mha");
+        data = history.last(ud.numToAve);
+        history.close();
 
         // compute mean and blade max/min of prop data
         stats = new SummaryStatistics();
         int reportIterator = 1;
         for (columnIterator = 5;
                 columnIterator < numPropCol; columnIterator++) {
-            for (rowIterator = data.size() - 1;
-                    rowIterator >= data.size() - ud.numToAve; rowIterator--) {
-                String[] array = data.get(rowIterator);
-                stats.addValue(Double.parseDouble(array[reportIterator]));
+            for (rowIterator = 0; rowIterator < data[0].length; rowIterator++) {
+                stats.addValue(data[reportIterator][rowIterator]);
             }
             // write data to row
             if (columnIterator == 12 || columnIterator == 16) {
@@ -395,14 +559,14 @@ public class Props extends StarMacro {
         // Compute prop parameters of interest
         double SHP = rpm * 2 * Math.PI / 60
                 * row.getCell(15).getNumericCellValue() / 550;
-        double J = speed * 1.467 / (rpm / 60 * dProp / 12);
+        J = speed * 1.467 / (rpm / 60 * dProp / 12);
         double KT = row.getCell(7).getNumericCellValue()
                 / (Math.pow(rpm / 60, 2) * Math.pow(dProp / 12, 4) * 1.94);
-        double KT_norm = KT / subAreaRatio[meshCount];
+        KT_norm = KT / subAreaRatio[meshCount];
         double KQ = row.getCell(15).getNumericCellValue()
                 / (Math.pow(rpm / 60, 2) * Math.pow(dProp / 12, 5) * 1.94);
-        double KQ_norm = KQ / subAreaRatio[meshCount];
-        double eta = J / 2 / Math.PI * KT_norm / KQ_norm;
+        KQ_norm = KQ / subAreaRatio[meshCount];
+        eta = J / 2 / Math.PI * KT_norm / KQ_norm;
 
         // Write prop parameters to excel ss
         row.createCell(columnIterator).setCellValue(SHP); // colIt = 19
@@ -412,19 +576,18 @@ public class Props extends StarMacro {
         row.createCell(columnIterator + 4).setCellValue(eta);
         int gcColStart = columnIterator + 5;
 
-        // read in gearcase data
-        reader = new CSVReader(new FileReader(fileName + "_gc.csv"));
-        data = reader.readAll();
+        // read in last revolution of gearcase data
+        history = new MonitorHistoryArchive.Reader(fileName + "_gc.mha");
+        data = history.last(ud.numToAve);
+        history.close();
 
         // Compute mean and standard deviation of gc data
         reportIterator = 1;
         stats = new SummaryStatistics();
         for (columnIterator = gcColStart;
                 columnIterator < gcColStart + numGcReports; columnIterator++) {
-            for (rowIterator = data.size() - 1;
-                    rowIterator >= data.size() - ud.numToAve; rowIterator--) {
-                String[] array = data.get(rowIterator);
-                stats.addValue(Double.parseDouble(array[reportIterator]));
+            for (rowIterator = 0; rowIterator < data[0].length; rowIterator++) {
+                stats.addValue(data[reportIterator][rowIterator]);
             }
             row.createCell(columnIterator).setCellValue(stats.getMean());
             stats = new SummaryStatistics();
@@ -432,9 +595,49 @@ public class Props extends StarMacro {
         }
 
         // save spreadsheet
-        fileOut = new FileOutputStream(ssTitle);
+        File tmp = SharedFile.temp(ssTitle);
+        fileOut = new FileOutputStream(tmp);
         wb.write(fileOut);
         fileOut.close();
+        SharedFile.replace(tmp, ssTitle);
+    }
+
+    void analyzePhase(double[] key, double rpm, String suffix)
+            throws Exception {
+        // last revolutions of every monitor, all of them run at stepSize
+        history = new MonitorHistoryArchive.Reader(fileName + suffix + ".mha");
+        String[] cols = history.getColumns();
+        data = history.last((int) Math.round(revs_phase * 360 / stepSize));
+        history.close();
+
+        int n = blades.getNumResults();
+        String[] names = new String[(cols.length - 1) * n];
+        double[] values = new double[names.length];
+        double[][] phase = new double[cols.length][blades.getNumBins()];
+        for (int c = 1; c < cols.length; c++) {
+            blades.analyze(data[0], data[c], rpm, rpmStartTime);
+            blades.getResultNames(cols[c].split(":")[0].trim(), names,
+                    (c - 1) * n);
+            blades.getResults(values, (c - 1) * n);
+            for (int j = 0; j < phase[c].length; j++) {
+                phase[c][j] = blades.getPhaseAverage(j);
+            }
+        }
+        results.put(key, names, values);
+
+        // phase averaged history over one revolution
+        PrintWriter pw = new PrintWriter(new FileWriter(
+                fileName + suffix + "_phase.csv"));
+        cols[0] = "Blade Angle (deg)";
+        pw.println(String.join(",", cols));
+        for (int j = 0; j < phase[0].length; j++) {
+            pw.print(j * 360. / phase[0].length);
+            for (int c = 1; c < cols.length; c++) {
+                pw.print("," + phase[c][j]);
+            }
+            pw.println();
+        }
+        pw.close();
 
     }
 
@@ -452,37 +655,47 @@ public class Props extends StarMacro {
 
     MacroUtils mu;
     UserDeclarations ud;
+    SimObjectCache cache;
+    ParameterApplier applier;
+    WarmStart warmStart;
+    AdaptiveSampler sampler;
+    SweepScheduler scheduler;
+    SavePolicy savePolicy;
+    ArtifactManager artifacts;
+    SweepResultsStore results;
+    BladeLoadAnalyzer blades;
+    TimeStepController stepper;
+    MrfPreSolver mrf;
     boolean vo = true;
     boolean intrusive = true;
 
     int numSteps;
     int columnIterator;
     int rowIterator;
-    int meshCount;
+    int meshCount; // index of the submerged area ratio for the current mesh
+    boolean meshChanged;
+    double rpmStartTime;
+    boolean warmStarted;
+    boolean preSolve;
+    double lastRpm;
 
     FileOutputStream fileOut;
     Workbook wb;
     Sheet sheet;
     Row row;
-    CSVReader reader;
-    List<String[]> data;
+    MonitorHistoryArchive.Reader history;
+    double[][] data;
     SummaryStatistics stats;
-    VofWaveModel vwm;
-    FlatVofWave fvw;
-    TransformPartsOperation tpo;
-    PressureCoefficientFunction pcf;
-    RotationControl rc;
-    TranslationControl tc;
-    CartesianCoordinateSystem trimCenter;
-    CartesianCoordinateSystem gcCenter;
-    CartesianCoordinateSystem propCenter;
-    RotatingMotion rm;
     String fileName;
+    String jobId;
     String slash;
     String ssTitle;
-    double tStep;
     double xProp;
     double dProp;
+    double J;
+    double KT_norm;
+    double KQ_norm;
+    double eta;
     double[] subAreaRatio;
 
 }
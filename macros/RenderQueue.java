@@ -0,0 +1,280 @@
+/**
+ * Off-screen picture queue for sweep points
+ *
+ * Takes the pictures of a point off the solver's critical path when the
+ * point is saved anyway. Instead of rendering, the solver writes a job file
+ * naming the point's saved sim and listing each picture: scene or plot,
+ * camera view, picture path, file name and resolution. Render_Worker
+ * macros, running in their own servers, claim job files by renaming them,
+ * open the saved sim and write the pictures with the same camera view and
+ * mu.io.write.picture call the solver would have used, so the images are
+ * the ones it would have written. A point's pictures are rendered by one
+ * worker, so its sim is loaded once, and points render in parallel across
+ * the workers.
+ *
+ * No extra snapshot is written: the queue only uses the sim the save
+ * policy (or the macro) already saved for the point, which stays as the
+ * point's result. Points without a saved sim, and a disabled queue, render
+ * in the session as before. As a FileFilter the queue accepts the saved
+ * sims still waiting for a worker, for ArtifactManager to hold them. Workers
+ * exit once the queue is closed and empty.
+ *
+ * star v11.06
+ */
+import java.io.*;
+import java.util.*;
+import macroutils.*;
+import star.common.*;
+import star.vis.*;
+
+public class RenderQueue implements FileFilter {
+
+    /**
+     * @param dir queue directory, created if missing
+     * @param enabled false to render in the session
+     */
+    public RenderQueue(MacroUtils mu, String dir, boolean enabled) {
+        this.mu = mu;
+        this.dir = new File(dir);
+        this.enabled = enabled;
+        if (enabled) {
+            this.dir.mkdirs();
+            new File(this.dir, CLOSED).delete();
+        }
+    }
+
+    //--------------------------------------------------------------------------
+    // Solver side
+    //--------------------------------------------------------------------------
+    /**
+     * Picture of a scene from a camera view (null for the current view),
+     * written to ud.picPath as name.
+     */
+    public void picture(Scene scene, VisView view, String name, int resx,
+            int resy) {
+        pending.add(new Object[]{scene, view, mu.userDeclarations.picPath,
+            name, resx, resy});
+        if (!enabled) {
+            render(pending.remove(0));
+        }
+    }
+
+    /**
+     * Picture of a plot, written to ud.picPath as name.
+     */
+    public void picture(StarPlot plot, String name, int resx, int resy) {
+        pending.add(new Object[]{plot, null, mu.userDeclarations.picPath,
+            name, resx, resy});
+        if (!enabled) {
+            render(pending.remove(0));
+        }
+    }
+
+    /**
+     * Queues the point's pictures for the workers if savedSim, the sim the
+     * point was saved as, holds what they show. Without one (null or
+     * missing) they are rendered here. Called before anything the pictures
+     * show changes.
+     */
+    public void submit(String savedSim) throws IOException {
+        if (pending.isEmpty()) {
+            return;
+        }
+        long t0 = System.nanoTime();
+        if (savedSim == null || !new File(savedSim).exists()) {
+            for (Object[] p : pending) {
+                render(p);
+            }
+            rendered += pending.size();
+            renderSeconds += (System.nanoTime() - t0) / 1e9;
+            pending.clear();
+            return;
+        }
+        String title = mu.userDeclarations.simTitle + "_" + points++;
+        File tmp = new File(dir, title + ".tmp");
+        PrintWriter w = new PrintWriter(new FileWriter(tmp));
+        w.println(savedSim);
+        for (Object[] p : pending) {
+            boolean plot = p[0] instanceof StarPlot;
+            w.println(join(new String[]{plot ? PLOT : SCENE,
+                plot ? ((StarPlot) p[0]).getPresentationName()
+                : ((Scene) p[0]).getPresentationName(),
+                p[1] == null ? "" : ((VisView) p[1]).getPresentationName(),
+                (String) p[2], (String) p[3], "" + p[4], "" + p[5]}));
+        }
+        w.close();
+        if (!tmp.renameTo(new File(dir, title + JOBS))) {
+            throw new IOException("Cannot queue " + tmp);
+        }
+        queuedSims.put(new File(savedSim).getAbsolutePath(), title + JOBS);
+        pictures += pending.size();
+        seconds += (System.nanoTime() - t0) / 1e9;
+        pending.clear();
+    }
+
+    /**
+     * True for a saved sim whose pictures are queued or being rendered, or
+     * failed and kept for a rerun.
+     */
+    public boolean accept(File f) {
+        final String jobs = queuedSims.get(f.getAbsolutePath());
+        if (jobs == null) {
+            return false;
+        }
+        String[] left = dir.list(new FilenameFilter() {
+            public boolean accept(File d, String name) {
+                return name.startsWith(jobs);
+            }
+        });
+        if (left != null && left.length > 0) {
+            return true;
+        }
+        queuedSims.remove(f.getAbsolutePath());
+        return false;
+    }
+
+    /**
+     * Starts n workers in this machine, running workerCommand in the
+     * directory above the queue.
+     */
+    public void startWorkers(int n) throws IOException {
+        if (!enabled) {
+            return;
+        }
+        for (int k = 0; k < n; k++) {
+            ProcessBuilder pb = new ProcessBuilder(workerCommand.split(" "));
+            pb.directory(dir.getAbsoluteFile().getParentFile());
+            pb.environment().put("RENDER_QUEUE", dir.getAbsolutePath());
+            pb.redirectErrorStream(true);
+            pb.redirectOutput(new File(dir, "worker" + k + ".log"));
+            pb.start();
+        }
+    }
+
+    /**
+     * No more points: workers exit once the queue is empty.
+     */
+    public void close() throws IOException {
+        if (enabled) {
+            new File(dir, CLOSED).createNewFile();
+        }
+    }
+
+    public void printStats() {
+        if (!enabled) {
+            return;
+        }
+        mu.io.say.value("Render queue", String.format(
+                "%d pictures of %d points queued in %.1f s, "
+                + "%d rendered here in %.1f s",
+                pictures, points, seconds, rendered, renderSeconds), null, true);
+    }
+
+    /**
+     * Rebinds the queue to the macro utils of another sim.
+     */
+    public void setMacroUtils(MacroUtils mu) {
+        this.mu = mu;
+    }
+
+    private void render(Object[] p) {
+        String picPath = mu.userDeclarations.picPath;
+        mu.userDeclarations.picPath = (String) p[2];
+        if (p[0] instanceof StarPlot) {
+            mu.io.write.picture((StarPlot) p[0], (String) p[3], (Integer) p[4],
+                    (Integer) p[5], true);
+        } else {
+            if (p[1] != null) {
+                mu.set.scene.cameraView((Scene) p[0], (VisView) p[1], true);
+                mu.io.sleep(1000);
+            }
+            mu.io.write.picture((Scene) p[0], (String) p[3], (Integer) p[4],
+                    (Integer) p[5], true);
+        }
+        mu.userDeclarations.picPath = picPath;
+    }
+
+    //--------------------------------------------------------------------------
+    // Worker side
+    //--------------------------------------------------------------------------
+    /**
+     * Claims the oldest queued point for worker, or returns null if there
+     * is none.
+     */
+    static File claim(File dir, String worker) {
+        File[] queued = dir.listFiles(new FilenameFilter() {
+            public boolean accept(File d, String name) {
+                return name.endsWith(JOBS);
+            }
+        });
+        if (queued == null) {
+            return null;
+        }
+        Arrays.sort(queued, new Comparator<File>() {
+            public int compare(File a, File b) {
+                return Long.compare(a.lastModified(), b.lastModified());
+            }
+        });
+        for (File f : queued) {
+            File claimed = new File(f.getPath() + "." + worker);
+            // the rename succeeds for one worker only
+            if (f.renameTo(claimed)) {
+                return claimed;
+            }
+        }
+        return null;
+    }
+
+    /**
+     * True once the queue is closed and every point is claimed.
+     */
+    static boolean isDone(File dir) {
+        return new File(dir, CLOSED).exists() && dir.list(
+                new FilenameFilter() {
+            public boolean accept(File d, String name) {
+                return name.endsWith(JOBS);
+            }
+        }).length == 0;
+    }
+
+    /**
+     * Saved sim path and pictures of a claimed point.
+     */
+    static List<String[]> read(File claimed) throws IOException {
+        ArrayList<String[]> lines = new ArrayList<String[]>();
+        BufferedReader r = new BufferedReader(new FileReader(claimed));
+        String line;
+        while ((line = r.readLine()) != null) {
+            lines.add(line.split("\t", -1));
+        }
+        r.close();
+        return lines;
+    }
+
+    private static String join(String[] s) {
+        StringBuilder sb = new StringBuilder(s[0]);
+        for (int i = 1; i < s.length; i++) {
+            sb.append('\t').append(s[i]);
+        }
+        return sb.toString();
+    }
+
+    String workerCommand = "starccm+ -batch Render_Worker.java"; // with the graphics options of the render hosts
+
+    static final String SCENE = "scene";
+    static final String PLOT = "plot";
+    static final String JOBS = ".jobs";
+    static final String CLOSED = "queue.closed";
+
+    private MacroUtils mu;
+    private final File dir;
+    private final boolean enabled;
+    private final ArrayList<Object[]> pending = new ArrayList<Object[]>();
+    private final Map<String, String> queuedSims = Collections.synchronizedMap(
+            new HashMap<String, String>());
+    private int points;
+    private int pictures;
+    private int rendered;
+    private double seconds;
+    private double renderSeconds;
+}
@@ -0,0 +1,112 @@
+/**
+ * Renders the pictures queued by RenderQueue
+ *
+ * Runs in its own server, e.g. starccm+ -batch Render_Worker.java, in the
+ * working directory of the sweep or with RENDER_QUEUE set to the queue
+ * directory. Any number of workers, on any host that sees the directory,
+ * share one queue: each claims a point, opens the sim the point was saved
+ * as and writes its pictures. The sim is the point's result and is never
+ * changed or deleted here. A point whose pictures fail is left as
+ * <point>.jobs.failed for a rerun. The worker exits once the queue is
+ * closed and empty, or after maxIdle seconds without work.
+ *
+ * @author Andrew Gunderson
+ *
+ * 2017, v11.06
+ */
+import java.io.*;
+import java.lang.management.ManagementFactory;
+import java.util.*;
+import java.util.regex.Pattern;
+import macroutils.*;
+import star.common.*;
+import star.vis.*;
+
+public class Render_Worker extends StarMacro {
+
+    String queueDir = "render"; // queue directory (or env RENDER_QUEUE)
+    int pollSeconds = 10; // wait between looks at an empty queue
+    int maxIdle = 3600; // s without work before the worker gives up
+
+    public void execute() {
+
+        // kill default server that starts upon macro execution
+        getActiveSimulation().kill();
+        String env = System.getenv("RENDER_QUEUE");
+        File dir = new File(env == null ? queueDir : env);
+        String worker = ManagementFactory.getRuntimeMXBean().getName()
+                .replaceAll("[^A-Za-z0-9]", "_");
+        long idleSince = System.currentTimeMillis();
+        while (!RenderQueue.isDone(dir)) {
+            File claimed = RenderQueue.claim(dir, worker);
+            if (claimed == null) {
+                if (System.currentTimeMillis() - idleSince > maxIdle * 1000L) {
+                    break;
+                }
+                try {
+                    Thread.sleep(pollSeconds * 1000L);
+                } catch (InterruptedException ex) {
+                    break;
+                }
+                continue;
+            }
+            render(claimed);
+            idleSince = System.currentTimeMillis();
+        }
+
+    }
+
+    void render(File claimed) {
+        Simulation sim = null;
+        try {
+            List<String[]> lines = RenderQueue.read(claimed);
+            File saved = new File(lines.get(0)[0]);
+            sim = new Simulation(saved.getPath());
+            mu = new MacroUtils(sim);
+            ud = mu.userDeclarations;
+            long t0 = System.nanoTime();
+            for (String[] job : lines.subList(1, lines.size())) {
+                picture(job);
+            }
+            mu.io.say.value("Rendered " + saved.getName(), String.format(
+                    "%d pictures in %.1f s", lines.size() - 1,
+                    (System.nanoTime() - t0) / 1e9), null, vo);
+            sim.kill();
+            claimed.delete();
+        } catch (Exception ex) {
+            if (sim != null) {
+                sim.println(ex);
+                sim.kill();
+            }
+            claimed.renameTo(new File(claimed.getPath()
+                    .replaceFirst("\\.jobs\\..*$", ".jobs.failed")));
+        }
+    }
+
+    /**
+     * kind, name, camera view, picture path, file name, resx, resy
+     */
+    void picture(String[] job) {
+        ud.picPath = job[3];
+        int resx = Integer.parseInt(job[5]);
+        int resy = Integer.parseInt(job[6]);
+        String name = Pattern.quote(job[1]);
+        if (job[0].equals(RenderQueue.PLOT)) {
+            mu.io.write.picture(mu.get.plots.byREGEX(name, vo), job[4],
+                    resx, resy, vo);
+            return;
+        }
+        Scene scene = mu.get.scenes.byREGEX(name, vo);
+        if (!job[2].isEmpty()) {
+            VisView vv = mu.get.cameras.byREGEX(Pattern.quote(job[2]), vo);
+            mu.set.scene.cameraView(scene, vv, vo);
+            mu.io.sleep(1000);
+        }
+        mu.io.write.picture(scene, job[4], resx, resy, vo);
+    }
+
+    private MacroUtils mu;
+    private UserDeclarations ud;
+    boolean vo = true;
+
+}
@@ -3,6 +3,14 @@
  * Simple steady state internal flow simulation
  * with streamlines, contours, and total pressure monitors
  *
+ * Geometry versions are the outer loop: each version is imported and meshed
+ * once, and its flow rates run on that mesh, changing only the inlet mass
+ * flow. Every flow rate after the first continues from the converged field
+ * of the one before. A version prepared by Geometry_Prep opens from its
+ * template in the geometry library instead of being imported. Pictures go
+ * to a RenderQueue and are written by Render_Worker servers while the next
+ * point solves.
+ *
  * @author Andrew Gunderson
  *
  * 2017, v11.06
@@ -23,60 +31,188 @@ public class SS_Internal_Para extends StarMacro {
     String[] versions = {"v0", "v3", "v5", "v6", "v7", "v9", "v10", "v11"};
     String[] flowRates = {"23Lpm", "30Lpm"};
     String[] headers = {"Revision", "A", "B", "C", "D", "E", "F",
-        "Bottom Flow", "Right Flow", "Left Flow"};
+        "Bottom Flow", "Right Flow", "Left Flow", "Iterations", "Convergence"};
     Double[] mfrs = {0.389, 0.517};
 
     int resx = 1200;
     int resy = 300;
+    SavePolicy.Mode saveMode = SavePolicy.Mode.FULL;
+    int saveEveryN = 2; // cases between saves for EVERY_NTH
+    int iterations = 2000; // most iterations of the first flow rate of a geometry
+    int iterationsWarm = 1000; // most iterations of later flow rates, warm started
+    int minIterations = 200; // before the first convergence check
+    int extendIterations = 1000; // added to a run with oscillating monitors
+    double residualTol = 1e-4; // largest accepted residual
+    double monitorTol = 1e-3; // largest change of a monitor over the last 200 iterations, relative
+    double massTol = .005; // largest error of the mass flow split, relative to the inlet
+    String[] residuals = {"Continuity", "X-momentum", "Y-momentum", "Z-momentum",
+        "Tke", "Tdr"};
+    boolean useLibrary = true; // open versions prepared by Geometry_Prep
+    String libraryDir = "geometry"; // library under the working directory
+    StaticDeclarations.Tessellation libraryTessellation = null; // Geometry_Prep settings the templates are prepared with
+    double librarySplitAngle = 70; // deg
+    String[][] librarySurfaceNames = {
+        {"(?i).*inlet.*", "Inlet"},
+        {"(?i).*outlet.*", "Outlet"}
+    };
+    boolean renderQueue = false; // pictures of saved points written by Render_Worker servers, off the solver path
+    int renderWorkers = 0; // Render_Worker servers started here, 0 if started elsewhere
 
     public void execute() {
 
-        initMacro();
+        try {
+            initMacro();
+        } catch (IOException ex) {
+            mu.getSimulation().println(ex);
+            return;
+        }
 
         for (String version : versions) {
-            for (String flowRate : flowRates) {
-                try {
-
-                    setup(version, flowRate);
+            try {
 
-                    if (!mu.check.has.volumeMesh()) {
-                        physics();
-                        mesh(version);
-                    }
+                geometry(version);
+                for (int k = 0; k < flowRates.length; k++) {
+                    point(version, k);
+                }
+                savePolicy.endOfMeshGroup();
 
-                    if (!mu.check.has.solution()) {
-                        monitors();
-                        solve();
-                    }
+            } catch (Exception ex) {
+                mu.getSimulation().println(ex);
+            }
+            clearAll();
+        }
+        try {
+            renders.close();
+        } catch (IOException ex) {
+            mu.getSimulation().println(ex);
+        }
+        applier.printStats();
+        savePolicy.printStats();
+        renders.printStats();
+    }
 
-                    //if (!mu.getSimulation().isParallel()) {
-                    post();
-                    output();
-                    //}
+    void initMacro() throws IOException {
+        bind(getSimulation());
+        workDir = ud.simPath;
+        picDir = ud.picPath;
+        library = new GeometryLibrary(workDir + File.separator + libraryDir,
+                GeometryLibrary.settings(libraryTessellation,
+                        librarySplitAngle, librarySurfaceNames));
+        savePolicy = new SavePolicy(mu, saveMode, saveEveryN);
+        renders = new RenderQueue(mu, workDir + File.separator + "render",
+                renderQueue);
+        renders.startWorkers(renderWorkers);
+    }
 
-                    mu.saveSim();
-                    clearAll();
+    /**
+     * Binds the macro and its helpers to sim. Results stay in the working
+     * directory of the first sim.
+     */
+    void bind(Simulation sim) {
+        mu = new MacroUtils(sim);
+        ud = mu.userDeclarations;
+        if (workDir != null) {
+            ud.simPath = workDir;
+            ud.picPath = picDir;
+        }
+        if (savePolicy != null) {
+            savePolicy.setMacroUtils(mu);
+            renders.setMacroUtils(mu);
+        }
+        cache = new SimObjectCache(mu);
+        applier = new ParameterApplier(mu, cache);
+        convergence = new SteadyConvergence(mu, ud.simPath);
+        convergence.residualTol = residualTol;
+        convergence.monitorTol = monitorTol;
+        convergence.massTol = massTol;
+        convergence.extendIterations = extendIterations;
+        convergence.residuals(residuals);
+    }
 
-                } catch (Exception ex) {
-                    mu.getSimulation().println(ex);
-                }
+    /**
+     * Imports, meshes and sets up one geometry version, kept for all flow
+     * rates.
+     */
+    void geometry(String version) throws IOException {
+        boolean prepared = false;
+        if (useLibrary && !mu.check.has.volumeMesh()) {
+            String template = library.lookup(workDir + File.separator
+                    + version + ".x_b");
+            if (template != null) {
+                prepared = openTemplate(template);
             }
         }
+        setup(version, flowRates[0]);
+        if (!mu.check.has.volumeMesh()) {
+            physics();
+            mesh(version, prepared);
+        }
+        if (!mu.check.has.solution()) {
+            monitors();
+        }
+        post();
     }
 
-    void initMacro() {
-        mu = new MacroUtils(getSimulation());
-        ud = mu.userDeclarations;
+    /**
+     * Continues in a geometry template in place of the current sim, false
+     * if it cannot be opened and the current sim is kept.
+     *
+     * The current sim is killed without saving. It is only replaced while
+     * it has no mesh, i.e. it is the base sim or a sim whose last version
+     * was saved by the save policy and cleared, and the template carries
+     * everything the base sim holds. Its file is left as it is.
+     */
+    boolean openTemplate(String template) {
+        Simulation old = mu.getSimulation();
+        if (mu.check.has.volumeMesh()) {
+            return false;
+        }
+        Simulation sim;
+        try {
+            sim = new Simulation(template);
+        } catch (RuntimeException ex) {
+            old.println("Could not open " + template + ", importing: " + ex);
+            return false;
+        }
+        old.kill();
+        bind(sim);
+        mu.io.say.value("Geometry template", template, null, vo);
+        return true;
+    }
+
+    /**
+     * Runs one flow rate on the current mesh. Only the inlet mass flow
+     * changes, and every flow rate after the first continues from the
+     * converged field of the one before.
+     */
+    void point(String version, int k) throws Exception {
+        setup(version, flowRates[k]);
+        applier.boundaryValue(".*" + ud.bcInlet, StaticDeclarations.Vars.MFR,
+                mfr, ud.unit_kgps);
+        if (k == 0 && mu.check.has.solution()) {
+            mu.io.say.msg("Solution found, not solving " + ud.simTitle, vo);
+            convergenceStatus = "Loaded";
+            // average the loaded history over the window a solve would use,
+            // or all of it if shorter
+            ud.numToAve = convergence.window;
+        } else {
+            solve(k == 0 ? iterations : iterationsWarm);
+        }
+
+        // camera views of the pictures, saved with the point for the
+        // render workers
+        mu.io.read.cameraViews("myCameras.txt");
+        savePolicy.save();
+
+        //if (!mu.getSimulation().isParallel()) {
+        output();
+        //}
     }
 
     void setup(String version, String flowRate) {
         ud.simTitle = version + "_" + flowRate;
         as = mu.getSimulation().getSimulationIterator().getAutoSave();
-        if (flowRate.contains(flowRates[0])) {
-            mfr = mfrs[0];
-        } else {
-            mfr = mfrs[1];
-        }
+        mfr = mfrs[Arrays.asList(flowRates).indexOf(flowRate)];
     }
 
     void physics() {
@@ -98,9 +234,11 @@ public class SS_Internal_Para extends StarMacro {
 
     }
 
-    void mesh(String version) {
+    void mesh(String version, boolean prepared) {
         // add geometry which is placed in working directory
-        mu.add.geometry.importPart(version + ".x_b");
+        if (!prepared) {
+            mu.add.geometry.importPart(version + ".x_b");
+        }
         ud.region = mu.add.region.fromAll(true);
         ud.geometryParts = mu.get.geometries.all(true);
         mu.add.scene.geometry();
@@ -122,7 +260,7 @@ public class SS_Internal_Para extends StarMacro {
         as.setAutoSaveMesh(false);
         mu.update.volumeMesh();
         ud.scene = mu.add.scene.mesh();
-        mu.saveSim();
+        savePolicy.checkpoint();
     }
 
     void monitors() {
@@ -150,11 +288,31 @@ public class SS_Internal_Para extends StarMacro {
         }
     }
 
-    void solve() {
+    /**
+     * Runs at most n iterations, stopping once the residuals, the total
+     * pressure and mass flow monitors and the mass flow split converge.
+     */
+    void solve(int n) throws IOException {
         //mu.set.solver.aggressiveSettings();
         as.setAutoSaveBatch(false);
-        mu.step(2000);
-        mu.saveSim();
+        convergence.clear();
+        convergence.group(partNames("(?i).*plane.*"));
+        convergence.group(partNames("(?i).*flow.*"));
+        convergence.massBalance(mfr, partNames("(?i).*flow.*"));
+        convergence.run(Math.min(minIterations, n), n);
+        ud.numToAve = convergence.getAveragingWindow();
+        convergenceStatus = convergence.getStatus()
+                + (convergence.isExtended() ? " (extended)" : "");
+        iterationsRun = convergence.getIterations();
+        savePolicy.checkpoint();
+    }
+
+    List<String> partNames(String regex) {
+        ArrayList<String> names = new ArrayList<String>();
+        for (Part p : mu.get.parts.allByREGEX(regex, vo)) {
+            names.add(p.getPresentationName());
+        }
+        return names;
     }
 
     void post() {
@@ -203,26 +361,17 @@ public class SS_Internal_Para extends StarMacro {
     }
 
     void output() throws Exception {
-        // read in camera views
-        mu.io.read.cameraViews("myCameras.txt");
         // output velo scene
         for (VisView vv : mu.get.cameras.allByREGEX(".*(3|4)", vo)) {
-            mu.set.scene.cameraView(ud.scene, vv, vo);
-            mu.io.sleep(1000);
-            mu.io.write.picture(
-                    ud.scene,
-                    ud.simTitle + "_" + vv.getPresentationName(),
-                    resx, resy, vo);
+            renders.picture(ud.scene, vv,
+                    ud.simTitle + "_" + vv.getPresentationName(), resx, resy);
         }
         // output streamline scene
         for (VisView vv : mu.get.cameras.allByREGEX(".*(1|2)", vo)) {
-            mu.set.scene.cameraView(ud.scene1, vv, vo);
-            mu.io.sleep(1000);
-            mu.io.write.picture(
-                    ud.scene1,
-                    ud.simTitle + "_" + vv.getPresentationName(),
-                    resx, resy, vo);
+            renders.picture(ud.scene1, vv,
+                    ud.simTitle + "_" + vv.getPresentationName(), resx, resy);
         }
+        renders.submit(savePolicy.getPointSim());
 
         // create or update results spreadsheet
         String ssTitle = ud.simPath + "\\results.xls";
@@ -254,7 +403,7 @@ public class SS_Internal_Para extends StarMacro {
             reader = new CSVReader(new FileReader(fileName));
             data = reader.readAll();
             stats = new SummaryStatistics();
-            for (i = data.size() - 1; i >= data.size() - ud.numToAve; i--) {
+            for (i = data.size() - 1; i >= Math.max(data.size() - ud.numToAve, 1); i--) {
                 String[] rowData = data.get(i);
                 stats.addValue(Double.parseDouble(rowData[1]));
             }
@@ -278,13 +427,15 @@ public class SS_Internal_Para extends StarMacro {
             reader = new CSVReader(new FileReader(fileName));
             data = reader.readAll();
             stats = new SummaryStatistics();
-            for (i = data.size() - 1; i >= data.size() - ud.numToAve; i--) {
+            for (i = data.size() - 1; i >= Math.max(data.size() - ud.numToAve, 1); i--) {
                 String[] rowData = data.get(i);
                 stats.addValue(Double.parseDouble(rowData[1]));
             }
             row.createCell(j).setCellValue(stats.getMean());
             j++;
         }
+        row.createCell(j++).setCellValue(iterationsRun);
+        row.createCell(j).setCellValue(convergenceStatus);
 
         out = new FileOutputStream(ssTitle);
         wb.write(out);
@@ -296,10 +447,22 @@ public class SS_Internal_Para extends StarMacro {
         mu.remove.all();
         PartManager pm = mu.getSimulation().getPartManager();
         pm.removeObjects(mu.get.parts.allByREGEX("(?i)^((?!(plane|flow)).)*$", vo));
+        cache.invalidate();
+        applier.reset();
     }
 
     private MacroUtils mu;
     private UserDeclarations ud;
+    GeometryLibrary library;
+    String workDir;
+    String picDir;
+    SavePolicy savePolicy;
+    RenderQueue renders;
+    SimObjectCache cache;
+    ParameterApplier applier;
+    SteadyConvergence convergence;
+    String convergenceStatus;
+    int iterationsRun;
     boolean vo = true;
 
     List<String[]> data;
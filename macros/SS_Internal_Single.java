@@ -23,8 +23,16 @@ public class SS_Internal_Single extends StarMacro {
 
     String version = "v10";
     String flowRate = "23Lpm";
-    String[] headers = {"Revision", "A", "B", "C", "D", "E", "F"};
+    String[] headers = {"Revision", "A", "B", "C", "D", "E", "F",
+        "Iterations", "Convergence"};
     Double mfr = 0.389;
+    int maxIterations = 2000;
+    int minIterations = 200; // before the first convergence check
+    int extendIterations = 1000; // added to a run with oscillating monitors
+    double residualTol = 1e-4; // largest accepted residual
+    double monitorTol = 1e-3; // largest change of a monitor over the last 200 iterations, relative
+    String[] residuals = {"Continuity", "X-momentum", "Y-momentum", "Z-momentum",
+        "Tke", "Tdr"};
 
     int resx = 1200;
     int resy = 300;
@@ -126,10 +134,28 @@ public class SS_Internal_Single extends StarMacro {
         }
     }
 
-    void solve() {
+    /**
+     * Runs at most maxIterations, stopping once the residuals and the total
+     * pressure monitors converge.
+     */
+    void solve() throws IOException {
         //mu.set.solver.aggressiveSettings();
         as.setAutoSaveBatch(false);
-        mu.step(2000);
+        SteadyConvergence convergence = new SteadyConvergence(mu, ud.simPath);
+        convergence.residualTol = residualTol;
+        convergence.monitorTol = monitorTol;
+        convergence.extendIterations = extendIterations;
+        convergence.residuals(residuals);
+        ArrayList<String> names = new ArrayList<String>();
+        for (Part ps : sections) {
+            names.add(ps.getPresentationName());
+        }
+        convergence.group(names);
+        convergence.run(minIterations, maxIterations);
+        ud.numToAve = convergence.getAveragingWindow();
+        convergenceStatus = convergence.getStatus()
+                + (convergence.isExtended() ? " (extended)" : "");
+        iterationsRun = convergence.getIterations();
         mu.saveSim();
     }
 
@@ -237,6 +263,8 @@ public class SS_Internal_Single extends StarMacro {
             mean = stats.getMean();
             j++;
         }
+        row.createCell(j++).setCellValue(iterationsRun);
+        row.createCell(j).setCellValue(convergenceStatus);
         out = new FileOutputStream(ssTitle);
         wb.write(out);
         out.close();
@@ -256,6 +284,8 @@ public class SS_Internal_Single extends StarMacro {
     SummaryStatistics stats;
     FileOutputStream out;
     AutoSave as;
+    String convergenceStatus = "Loaded";
+    int iterationsRun;
 
     double mean;
     int i;
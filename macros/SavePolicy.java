@@ -0,0 +1,133 @@
+/**
+ * Save policy for sweep points
+ *
+ * Replaces the unconditional mu.saveSim() after every point. Modes:
+ *   FULL               - full .sim with mesh and fields after every point
+ *   FIELDS_ONLY        - cell-centred field table only, no .sim
+ *   EVERY_NTH          - full .sim every n-th point
+ *   LAST_OF_MESH_GROUP - full .sim for the last point run on each mesh
+ *   RESULTS_ONLY       - nothing beyond the tables and scenes the macro
+ *                        already exports
+ * Each save reports the bytes written and the time spent.
+ *
+ * star v11.06
+ */
+import java.io.File;
+import macroutils.*;
+
+public class SavePolicy {
+
+    public enum Mode {
+        FULL, FIELDS_ONLY, EVERY_NTH, LAST_OF_MESH_GROUP, RESULTS_ONLY
+    }
+
+    public SavePolicy(MacroUtils mu, Mode mode, int everyN) {
+        this.mu = mu;
+        this.mode = mode;
+        this.everyN = everyN;
+    }
+
+    /**
+     * Called once at the end of every run point.
+     */
+    public void save() {
+        points++;
+        pointSim = null;
+        switch (mode) {
+            case FULL:
+                saveSim();
+                break;
+            case FIELDS_ONLY:
+                saveFields();
+                break;
+            case EVERY_NTH:
+                if (points % everyN == 0) {
+                    saveSim();
+                }
+                break;
+            default:
+                break;
+        }
+    }
+
+    /**
+     * Called after the last point run on a mesh, before it is changed.
+     */
+    public void endOfMeshGroup() {
+        if (mode == Mode.LAST_OF_MESH_GROUP) {
+            saveSim();
+        }
+        pointSim = null;
+    }
+
+    /**
+     * Intermediate save (e.g. right after meshing), only kept in FULL mode.
+     */
+    public void checkpoint() {
+        if (mode == Mode.FULL) {
+            saveSim();
+        }
+        pointSim = null;
+    }
+
+    public void printStats() {
+        mu.io.say.value("Save policy " + mode,
+                String.format("%d saves, %.1f MB, %.1f s",
+                        saves, bytes / 1e6, seconds), null, true);
+    }
+
+    /**
+     * Sim saved by the last save(), holding the point as it ended, or null
+     * if that point was not saved.
+     */
+    public String getPointSim() {
+        return pointSim;
+    }
+
+    private void saveSim() {
+        long t0 = System.nanoTime();
+        mu.saveSim();
+        pointSim = path() + ".sim";
+        record(new File(pointSim), t0);
+    }
+
+    /**
+     * Rebinds the policy to the macro utils of another sim, keeping the
+     * counts.
+     */
+    public void setMacroUtils(MacroUtils mu) {
+        this.mu = mu;
+    }
+
+    private void saveFields() {
+        long t0 = System.nanoTime();
+        String fieldFile = path() + "_fields.csv";
+        WarmStart.exportFields(mu, fieldFile);
+        WarmStart.keep(fieldFile);
+        record(new File(fieldFile), t0);
+    }
+
+    private void record(File f, long t0) {
+        double s = (System.nanoTime() - t0) / 1e9;
+        long b = f.length();
+        saves++;
+        bytes += b;
+        seconds += s;
+        mu.io.say.value("Saved " + f.getName(),
+                String.format("%.1f MB in %.1f s", b / 1e6, s), null, true);
+    }
+
+    private String path() {
+        return mu.userDeclarations.simPath + File.separator
+                + mu.userDeclarations.simTitle;
+    }
+
+    private MacroUtils mu;
+    private final Mode mode;
+    private final int everyN;
+    private int points;
+    private int saves;
+    private long bytes;
+    private double seconds;
+    private String pointSim;
+}
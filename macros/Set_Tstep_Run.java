@@ -1,10 +1,25 @@
-
+import java.io.*;
 import macroutils.*;
 import star.common.*;
 import star.vis.*;
 
 public class Set_Tstep_Run extends StarMacro {
 
+    double rpm = 3657;
+    double stepSize = .125; // degrees per timestep of the sampled revolutions
+    double revs = 1; // sampled revolutions
+    double stepSizeWashout = 1; // degrees per timestep before them
+    double revsWashout = 0; // revolutions at stepSizeWashout
+    // time step study: a ladder of steps, each continuing from the previous
+    boolean study = false; // run the ladder instead of the single stepSize
+    double stepSizeCoarse = 2; // degrees per timestep of the first level
+    double stepRatio = 2; // step ratio between levels
+    int numLevels = 5; // maximum number of levels
+    double revsSettle = 1; // revolutions after each step change before sampling
+    double tol = .005; // accepted relative change of the compared means
+    boolean stopWhenConverged = true; // skip the finer levels once within tol
+    String[] studyReports = {"Prop Thrust", "Prop Torque"}; // Prop plot columns compared (name prefixes)
+
     public void execute() {
         initMacro();
         if (!mu.check.has.volumeMesh()) {
@@ -13,13 +28,24 @@ public class Set_Tstep_Run extends StarMacro {
         for (Displayer d : mu.get.scenes.allDisplayers(vo)) {
             d.setRepresentation(mu.get.mesh.fvr());
         }
-        
-        mu.set.solver.timestep(1/(3657./60.*360./.125));
-        
         mu.clear.solutionHistory();
-        mu.step(2880);
-        
-        ud.simTitle = ud.simTitle + "_tStep.125";
+
+        if (study) {
+            try {
+                runStudy();
+            } catch (Exception ex) {
+                mu.getSimulation().println(ex);
+            }
+            mu.saveSim();
+            return;
+        }
+
+        stepper.rotating(rpm);
+        stepper.revolutions(revsWashout, stepSizeWashout);
+        stepper.revolutions(revs, stepSize);
+        stepper.run();
+
+        ud.simTitle = ud.simTitle + "_tStep" + stepSize;
 
         mu.io.write.picture(mu.get.plots.byREGEX("Prop", vo),
                 ud.simTitle, ud.picResX, ud.picResY, vo);
@@ -33,13 +59,98 @@ public class Set_Tstep_Run extends StarMacro {
         mu.saveSim();
     }
 
+    /**
+     * Runs the step ladder coarse to fine. Every level samples the same
+     * number of whole revolutions, phase averaged onto one blade-angle grid
+     * at the coarsest step, and its means are compared with the previous
+     * level's. The largest step whose means are within tol of the next finer
+     * level is reported.
+     */
+    void runStudy() throws Exception {
+        String title = ud.simTitle;
+        BladeLoadAnalyzer phase = new BladeLoadAnalyzer(stepSizeCoarse, 1, 0);
+        // every level phases its samples from the same rotor position
+        double t0 = mu.getSimulation().getSolution().getPhysicalTime();
+        PrintWriter pw = new PrintWriter(new FileWriter(ud.simPath + "/"
+                + title + "_tStep_study.csv"));
+        pw.print("Deg/Step,Steps");
+        for (String r : studyReports) {
+            pw.print("," + r + " Mean," + r + " Peak-Peak," + r + " Change");
+        }
+        pw.println();
+
+        double[] prev = null;
+        double safe = Double.NaN;
+        double step = stepSizeCoarse;
+        for (int level = 0; level < numLevels; level++, step /= stepRatio) {
+            stepper.rotating(rpm);
+            if (level == 0) {
+                stepper.revolutions(revsWashout, stepSizeWashout);
+            }
+            stepper.revolutions(revsSettle, step);
+            stepper.revolutions(revs, step);
+            int steps = stepper.run();
+
+            String fileName = ud.simPath + "/" + title + "_tStep" + step;
+            MonitorHistoryArchive.fromPlot((MonitorPlot) mu.get.plots
+                    .byREGEX("Prop", vo), fileName + "_prop", false);
+            MonitorHistoryArchive.Reader history
+                    = new MonitorHistoryArchive.Reader(fileName + "_prop.mha");
+            int[] cols = new int[studyReports.length];
+            for (int i = 0; i < cols.length; i++) {
+                cols[i] = history.column(studyReports[i]);
+                if (cols[i] < 0) {
+                    history.close();
+                    pw.close();
+                    throw new RuntimeException("Column " + studyReports[i]
+                            + " not in Prop plot");
+                }
+            }
+            double[][] data = history.last(stepper.getLastStageSteps(), cols);
+            history.close();
+
+            double[] mean = new double[cols.length];
+            double maxChange = 0;
+            pw.print(step + "," + steps);
+            for (int i = 0; i < cols.length; i++) {
+                phase.analyze(data[0], data[i + 1], rpm, t0);
+                mean[i] = phase.getMean();
+                double change = prev == null ? Double.NaN
+                        : Math.abs(mean[i] - prev[i]) / Math.abs(mean[i]);
+                maxChange = Math.max(maxChange, change);
+                pw.print("," + mean[i] + "," + phase.getPeakToPeak() + ","
+                        + change);
+            }
+            pw.println();
+            pw.flush();
+            mu.io.say.value("Step study " + step + " deg/step, max change",
+                    maxChange, vo);
+            if (prev != null && maxChange < tol && Double.isNaN(safe)) {
+                safe = step * stepRatio;
+                mu.io.say.value("Step study converged, largest safe deg/step",
+                        safe, vo);
+                if (stopWhenConverged) {
+                    break;
+                }
+            }
+            prev = mean;
+        }
+        pw.close();
+        if (Double.isNaN(safe)) {
+            mu.io.say.msg("Step study not converged within " + tol
+                    + ", add finer levels.", vo);
+        }
+    }
+
     void initMacro() {
         mu = new MacroUtils(getSimulation(), intrusive);
         ud = mu.userDeclarations;
+        stepper = new TimeStepController(mu);
     }
 
     MacroUtils mu;
     UserDeclarations ud;
+    TimeStepController stepper;
     boolean vo = true;
     boolean intrusive = true;
 }
@@ -0,0 +1,59 @@
+/**
+ * Lock files for files shared by the workers of a sweep
+ *
+ * Workers of one sweep write the same results workbook, results store,
+ * warm-start index and history. A writer takes a file's lock by creating
+ * file.lock, which only one process can do, and deletes it when done, so
+ * a read-modify-write of the file is not interleaved with another
+ * worker's. A lock older than staleLock seconds was left by a dead worker
+ * and is broken. Rewritten files go through a temp file and a rename, so
+ * a reader never sees half a file.
+ *
+ * star v11.06
+ */
+import java.io.*;
+import java.nio.file.*;
+
+public class SharedFile {
+
+    /**
+     * Takes the lock of file, waiting for other workers. Delete the
+     * returned lock file to release it.
+     */
+    public static File lock(String file) throws IOException {
+        File lock = new File(file + ".lock");
+        while (!lock.createNewFile()) {
+            if (lock.exists() && System.currentTimeMillis()
+                    - lock.lastModified() > staleLock * 1000L) {
+                lock.delete();
+                continue;
+            }
+            try {
+                Thread.sleep(200);
+            } catch (InterruptedException ex) {
+                throw new InterruptedIOException("Waiting for " + lock);
+            }
+        }
+        return lock;
+    }
+
+    /**
+     * New temp file next to file, to write its next version to.
+     */
+    public static File temp(String file) throws IOException {
+        File f = new File(file).getAbsoluteFile();
+        return File.createTempFile(f.getName() + ".", ".tmp",
+                f.getParentFile());
+    }
+
+    /**
+     * Replaces file by tmp in one rename.
+     */
+    public static void replace(File tmp, String file) throws IOException {
+        Files.move(tmp.toPath(), new File(file).toPath(),
+                StandardCopyOption.REPLACE_EXISTING,
+                StandardCopyOption.ATOMIC_MOVE);
+    }
+
+    static int staleLock = 600; // s after which a lock left by a dead worker is broken
+}
@@ -0,0 +1,248 @@
+/**
+ * Typed lookup cache for simulation objects used inside sweep loops
+ *
+ * Objects are resolved once per simulation load and then served from
+ * memory. Regex patterns are compiled once. Call invalidate() (or use
+ * updateVolumeMesh()/removeParts()) after any structural change so the next
+ * lookup resolves again.
+ *
+ * star v11.06
+ */
+import java.util.*;
+import java.util.regex.Pattern;
+import macroutils.*;
+import star.base.neo.*;
+import star.base.report.*;
+import star.common.*;
+import star.meshing.*;
+import star.motion.*;
+import star.vis.*;
+
+public class SimObjectCache {
+
+    public SimObjectCache(MacroUtils mu) {
+        this.mu = mu;
+        sim = mu.getSimulation();
+    }
+
+    public Boundary boundary(String regex) {
+        String key = "boundary:" + regex;
+        if (hit(key)) {
+            return (Boundary) objects.get(key);
+        }
+        ArrayList<Boundary> boundaries = new ArrayList<Boundary>();
+        for (Region r : sim.getRegionManager().getRegions()) {
+            boundaries.addAll(r.getBoundaryManager().getBoundaries());
+        }
+        return (Boundary) store(key, first(boundaries, regex));
+    }
+
+    public StarPlot plot(String regex) {
+        String key = "plot:" + regex;
+        if (hit(key)) {
+            return (StarPlot) objects.get(key);
+        }
+        return (StarPlot) store(key,
+                first(sim.getPlotManager().getObjects(), regex));
+    }
+
+    public MonitorPlot monitorPlot(String regex) {
+        return (MonitorPlot) plot(regex);
+    }
+
+    public Report report(String regex) {
+        String key = "report:" + regex;
+        if (hit(key)) {
+            return (Report) objects.get(key);
+        }
+        return (Report) store(key,
+                first(sim.getReportManager().getObjects(), regex));
+    }
+
+    public Monitor monitor(String regex) {
+        String key = "monitor:" + regex;
+        if (hit(key)) {
+            return (Monitor) objects.get(key);
+        }
+        return (Monitor) store(key,
+                first(sim.getMonitorManager().getObjects(), regex));
+    }
+
+    public Scene scene(String regex) {
+        String key = "scene:" + regex;
+        if (hit(key)) {
+            return (Scene) objects.get(key);
+        }
+        return (Scene) store(key,
+                first(sim.getSceneManager().getScenes(), regex));
+    }
+
+    public PhysicsContinuum physicsContinuum(String regex) {
+        String key = "physics:" + regex;
+        if (hit(key)) {
+            return (PhysicsContinuum) objects.get(key);
+        }
+        return (PhysicsContinuum) store(key,
+                mu.get.objects.physicsContinua(regex, false));
+    }
+
+    public FieldFunction fieldFunction(String name) {
+        String key = "fieldFunction:" + name;
+        if (hit(key)) {
+            return (FieldFunction) objects.get(key);
+        }
+        return (FieldFunction) store(key,
+                mu.get.objects.fieldFunction(name, false));
+    }
+
+    public MeshOperation meshOperation(String name) {
+        String key = "meshOperation:" + name;
+        if (hit(key)) {
+            return (MeshOperation) objects.get(key);
+        }
+        return (MeshOperation) store(key,
+                sim.get(MeshOperationManager.class).getObject(name));
+    }
+
+    public RotationControl rotationControl(String operation, String name) {
+        String key = "rotationControl:" + operation + "/" + name;
+        if (hit(key)) {
+            return (RotationControl) objects.get(key);
+        }
+        TransformPartsOperation tpo
+                = (TransformPartsOperation) meshOperation(operation);
+        return (RotationControl) store(key,
+                tpo.getTransforms().getObject(name));
+    }
+
+    public TranslationControl translationControl(String operation,
+            String name) {
+        String key = "translationControl:" + operation + "/" + name;
+        if (hit(key)) {
+            return (TranslationControl) objects.get(key);
+        }
+        TransformPartsOperation tpo
+                = (TransformPartsOperation) meshOperation(operation);
+        return (TranslationControl) store(key,
+                tpo.getTransforms().getObject(name));
+    }
+
+    public Motion motion(String name) {
+        String key = "motion:" + name;
+        if (hit(key)) {
+            return (Motion) objects.get(key);
+        }
+        return (Motion) store(key,
+                sim.get(MotionManager.class).getObject(name));
+    }
+
+    /**
+     * Local coordinate system by path from the lab system, e.g.
+     * "Trim_Center/GC_Center/Prop_Center".
+     */
+    public CartesianCoordinateSystem csys(String path) {
+        String key = "csys:" + path;
+        if (hit(key)) {
+            return (CartesianCoordinateSystem) objects.get(key);
+        }
+        CoordinateSystem cs = sim.getCoordinateSystemManager()
+                .getLabCoordinateSystem();
+        for (String name : path.split("/")) {
+            cs = cs.getLocalCoordinateSystemManager().getObject(name);
+        }
+        return (CartesianCoordinateSystem) store(key, cs);
+    }
+
+    public ArrayList<Displayer> allDisplayers() {
+        String key = "displayers";
+        if (hit(key)) {
+            return displayers;
+        }
+        displayers = mu.get.scenes.allDisplayers(false);
+        store(key, displayers);
+        return displayers;
+    }
+
+    /**
+     * Executes all mesh operations and drops every resolved object, since
+     * parts, boundaries and displayer inputs may be regenerated.
+     */
+    public void updateVolumeMesh() {
+        mu.update.volumeMesh();
+        invalidate();
+    }
+
+    /**
+     * Removes derived parts and drops the cache.
+     */
+    public void removeParts(Collection<? extends Part> removed) {
+        sim.getPartManager().removeObjects(removed);
+        invalidate();
+    }
+
+    public void invalidate() {
+        objects.clear();
+        displayers = null;
+        invalidations++;
+    }
+
+    public int getHits() {
+        return hits;
+    }
+
+    public int getMisses() {
+        return misses;
+    }
+
+    public void printStats() {
+        mu.io.say.value("Lookup cache",
+                String.format("%d hits, %d misses, %d invalidations",
+                        hits, misses, invalidations), null, true);
+    }
+
+    private boolean hit(String key) {
+        // a different simulation means a new load, nothing cached is valid
+        if (mu.getSimulation() != sim) {
+            sim = mu.getSimulation();
+            invalidate();
+        }
+        if (objects.containsKey(key)) {
+            hits++;
+            return true;
+        }
+        misses++;
+        return false;
+    }
+
+    private Object store(String key, Object obj) {
+        if (obj == null) {
+            throw new RuntimeException("No object found for " + key);
+        }
+        objects.put(key, obj);
+        return obj;
+    }
+
+    private NamedObject first(Collection<? extends NamedObject> objs,
+            String regex) {
+        Pattern p = patterns.get(regex);
+        if (p == null) {
+            p = Pattern.compile(regex, Pattern.CASE_INSENSITIVE);
+            patterns.put(regex, p);
+        }
+        for (NamedObject no : objs) {
+            if (p.matcher(no.getPresentationName()).matches()) {
+                return no;
+            }
+        }
+        return null;
+    }
+
+    private final MacroUtils mu;
+    private Simulation sim;
+    private final HashMap<String, Object> objects = new HashMap<String, Object>();
+    private final HashMap<String, Pattern> patterns = new HashMap<String, Pattern>();
+    private ArrayList<Displayer> displayers;
+    private int hits;
+    private int misses;
+    private int invalidations;
+}
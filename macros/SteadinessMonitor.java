@@ -0,0 +1,175 @@
+/**
+ * Statistical steadiness of a force or moment history
+ *
+ * The mean of a transient history is steady when a window at its end shows
+ * no drift: the means of the two halves of the window agree within their
+ * combined 95% uncertainty. The start of the window is moved forward in
+ * tenths of the history, up to half of it, until the drift test passes, so
+ * the window is the longest steady tail. The uncertainty of the mean allows
+ * for correlated samples: the integrated autocorrelation time tau (summed
+ * until the correlation turns negative or the lag reaches 5 tau) gives
+ * N / tau independent samples, and U95 = 2 s / sqrt(N / tau). Both s and
+ * tau are taken from the second half of the window, about its trend line,
+ * so the transient in the first half is not mistaken for noise. A history is
+ * converged once it is steady and U95 is below tol x |mean|, or below an
+ * absolute floor for quantities with a mean near zero.
+ *
+ * star v11.06
+ */
+public class SteadinessMonitor {
+
+    /**
+     * @param tol accepted U95 of the mean, as a fraction of |mean|
+     * @param floor accepted U95 of the mean, absolute
+     * @param minSamples fewest samples in a window
+     */
+    public SteadinessMonitor(double tol, double floor, int minSamples) {
+        this.tol = tol;
+        this.floor = floor;
+        this.minSamples = minSamples;
+    }
+
+    /**
+     * Finds the longest steady window at the end of y[first..] and
+     * evaluates it, or the last half if none is steady.
+     *
+     * @return the start index of the window
+     */
+    public int analyze(double[] y, int first) {
+        int n = y.length - first;
+        for (int k = 0; k <= 5; k++) {
+            int start = first + k * n / 10;
+            evaluate(y, start);
+            if (steady) {
+                return start;
+            }
+        }
+        int start = first + n / 2;
+        evaluate(y, start);
+        return start;
+    }
+
+    /**
+     * Evaluates the window y[start..].
+     */
+    public void evaluate(double[] y, int start) {
+        this.start = start;
+        window = y.length - start;
+        steady = false;
+        mean = Double.NaN;
+        uncertainty = Double.NaN;
+        drift = Double.NaN;
+        tau = Double.NaN;
+        if (window < Math.max(minSamples, 8)) {
+            return;
+        }
+        mean = mean(y, start, y.length);
+        // the noise is taken from the second half, about a straight line, so
+        // a drift of the mean in the first half does not pass for noise
+        int mid = start + window / 2;
+        double meanA = mean(y, start, mid);
+        double meanB = mean(y, mid, y.length);
+        int m = y.length - mid;
+        double xm = (m - 1) / 2.;
+        double sxy = 0;
+        double sxx = 0;
+        for (int i = 0; i < m; i++) {
+            sxy += (i - xm) * (y[mid + i] - meanB);
+            sxx += (i - xm) * (i - xm);
+        }
+        double slope = sxy / sxx;
+        double[] f = new double[m];
+        double var = 0;
+        for (int i = 0; i < m; i++) {
+            f[i] = y[mid + i] - meanB - slope * (i - xm);
+            var += f[i] * f[i];
+        }
+        var /= m - 2;
+        tau = correlationTime(f, var);
+        uncertainty = 2 * Math.sqrt(var * tau / window);
+        // each half has half the independent samples, so the standard
+        // deviation of the difference of their means is 2 s / sqrt(N / tau)
+        drift = Math.abs(meanB - meanA);
+        steady = drift <= 2 * uncertainty;
+    }
+
+    /**
+     * Integrated autocorrelation time of zero-mean fluctuations, at least 1.
+     */
+    private static double correlationTime(double[] f, double var) {
+        int n = f.length;
+        if (var <= 0) {
+            return 1;
+        }
+        double t = 1;
+        for (int lag = 1; lag < n / 2 && lag < 5 * t; lag++) {
+            double c = 0;
+            for (int i = 0; i + lag < n; i++) {
+                c += f[i] * f[i + lag];
+            }
+            double rho = c / (n - lag) / var;
+            if (rho < 0) {
+                break;
+            }
+            t += 2 * rho;
+        }
+        return t;
+    }
+
+    private static double mean(double[] y, int from, int to) {
+        double s = 0;
+        for (int i = from; i < to; i++) {
+            s += y[i];
+        }
+        return s / (to - from);
+    }
+
+    /**
+     * Steady and U95 within tolerance.
+     */
+    public boolean isConverged() {
+        return steady && uncertainty <= Math.max(tol * Math.abs(mean), floor);
+    }
+
+    public boolean isSteady() {
+        return steady;
+    }
+
+    public double getMean() {
+        return mean;
+    }
+
+    /**
+     * 95% uncertainty of the mean.
+     */
+    public double getUncertainty() {
+        return uncertainty;
+    }
+
+    public double getDrift() {
+        return drift;
+    }
+
+    public double getCorrelationTime() {
+        return tau;
+    }
+
+    public int getStart() {
+        return start;
+    }
+
+    public int getWindow() {
+        return window;
+    }
+
+    private final double tol;
+    private final double floor;
+    private final int minSamples;
+    private int start;
+    private int window;
+    private boolean steady;
+    private double mean;
+    private double uncertainty;
+    private double drift;
+    private double tau;
+}
@@ -0,0 +1,244 @@
+/**
+ * Convergence controller for steady runs
+ *
+ * Replaces a fixed iteration count. The run is stepped in chunks, and after
+ * every chunk the residual monitors and the report monitors are read back.
+ * A run is converged when every residual is below residualTol, every report
+ * monitor varies by less than monitorTol over the last window iterations
+ * (relative to the largest |mean| of its group, e.g. all total pressures),
+ * and the mass flow split adds up to the inlet flow within massTol. A run
+ * that is still unsteady at the iteration limit is checked for oscillation:
+ * if the window means of its monitors no longer drift, the variation is a
+ * bounded oscillation, and the run is extended by extendIterations and
+ * averaged over the longer window.
+ *
+ * star v11.06
+ */
+import com.opencsv.CSVReader;
+import java.io.*;
+import java.util.*;
+import macroutils.*;
+
+public class SteadyConvergence {
+
+    public enum Status {
+        CONVERGED, STABLE_MONITORS, OSCILLATING, NOT_CONVERGED
+    }
+
+    /**
+     * @param mu macro utils of the running macro
+     * @param dir directory for the monitor exports
+     */
+    public SteadyConvergence(MacroUtils mu, String dir) {
+        this.mu = mu;
+        exportFile = dir + "/SteadyConvergence.csv";
+    }
+
+    public void residuals(String... monitors) {
+        residuals = monitors.clone();
+    }
+
+    /**
+     * Adds report monitors whose variation is measured against the largest
+     * |mean| among them.
+     */
+    public void group(Collection<String> monitors) {
+        if (!monitors.isEmpty()) {
+            groups.add(new ArrayList<String>(monitors));
+        }
+    }
+
+    /**
+     * Mass flow monitors of the outlets of the split, adding up to total.
+     */
+    public void massBalance(double total, Collection<String> monitors) {
+        massTotal = total;
+        massMonitors = new ArrayList<String>(monitors);
+    }
+
+    public void clear() {
+        groups.clear();
+        massMonitors = new ArrayList<String>();
+    }
+
+    /**
+     * Steps until converged, at least minIterations and at most
+     * maxIterations, plus extendIterations for an oscillating run.
+     */
+    public Status run(int minIterations, int maxIterations) throws IOException {
+        iterations = 0;
+        extended = false;
+        averagingWindow = window;
+        int limit = maxIterations;
+        while (iterations < limit) {
+            int chunk = Math.min(checkIterations, limit - iterations);
+            mu.step(chunk);
+            iterations += chunk;
+            if (iterations < minIterations) {
+                continue;
+            }
+            if (evaluate(averagingWindow) == Status.CONVERGED) {
+                break;
+            }
+            if (iterations == limit && status == Status.OSCILLATING
+                    && !extended) {
+                mu.io.say.msg(String.format("Monitors oscillating, extending "
+                        + "the run by %d iterations.", extendIterations), true);
+                limit += extendIterations;
+                averagingWindow = window + extendIterations;
+                extended = true;
+            }
+        }
+        if (iterations < minIterations) {
+            evaluate(averagingWindow);
+        }
+        averagingWindow = Math.min(averagingWindow, iterations);
+        mu.io.say.value("Steady convergence", String.format(
+                "%s after %d iterations%s, residual %.2g, monitor change %.2g, "
+                + "mass balance %.2g", status, iterations,
+                extended ? " (extended)" : "", maxResidual, maxChange,
+                massError), null, true);
+        return status;
+    }
+
+    /**
+     * Status of the last n iterations of a run stepped by the caller.
+     */
+    public Status check(int n) throws IOException {
+        iterations = n;
+        averagingWindow = n;
+        return evaluate(n);
+    }
+
+    /**
+     * Status of the last n iterations.
+     */
+    Status evaluate(int n) throws IOException {
+        n = Math.min(n, iterations);
+        maxResidual = 0;
+        for (String r : residuals) {
+            double[] y = history(r, 1);
+            if (y.length > 0) {
+                maxResidual = Math.max(maxResidual, y[0]);
+            }
+        }
+        maxChange = 0;
+        boolean drifting = false;
+        for (List<String> g : groups) {
+            double scale = 0;
+            double[][] y = new double[g.size()][];
+            for (int k = 0; k < y.length; k++) {
+                y[k] = history(g.get(k), n);
+                scale = Math.max(scale, Math.abs(mean(y[k], 0, y[k].length)));
+            }
+            scale = Math.max(scale, 1e-30);
+            for (double[] v : y) {
+                if (v.length < 2) {
+                    drifting = true;
+                    maxChange = Double.POSITIVE_INFINITY;
+                    continue;
+                }
+                double min = Double.MAX_VALUE;
+                double max = -Double.MAX_VALUE;
+                for (double d : v) {
+                    min = Math.min(min, d);
+                    max = Math.max(max, d);
+                }
+                maxChange = Math.max(maxChange, (max - min) / scale);
+                int mid = v.length / 2;
+                double drift = Math.abs(mean(v, mid, v.length) - mean(v, 0, mid));
+                drifting |= drift / scale > monitorTol;
+            }
+        }
+        massError = 0;
+        if (!massMonitors.isEmpty()) {
+            double sum = 0;
+            for (String m : massMonitors) {
+                double[] y = history(m, n);
+                sum += Math.abs(mean(y, 0, y.length));
+            }
+            massError = Math.abs(sum - Math.abs(massTotal)) / Math.abs(massTotal);
+        }
+        boolean stable = maxChange <= monitorTol && massError <= massTol;
+        if (stable && maxResidual <= residualTol) {
+            status = Status.CONVERGED;
+        } else if (stable) {
+            status = Status.STABLE_MONITORS;
+        } else if (!drifting && massError <= massTol) {
+            status = Status.OSCILLATING;
+        } else {
+            status = Status.NOT_CONVERGED;
+        }
+        return status;
+    }
+
+    /**
+     * Last n values of a monitor.
+     */
+    private double[] history(String monitor, int n) throws IOException {
+        mu.get.monitors.byREGEX(monitor, false).export(exportFile);
+        CSVReader reader = new CSVReader(new FileReader(exportFile));
+        List<String[]> data = reader.readAll();
+        reader.close();
+        n = Math.max(Math.min(n, data.size() - 1), 0);
+        double[] y = new double[n];
+        for (int i = 0; i < n; i++) {
+            y[i] = Double.parseDouble(data.get(data.size() - n + i)[1]);
+        }
+        return y;
+    }
+
+    private static double mean(double[] y, int from, int to) {
+        if (to <= from) {
+            return Double.NaN;
+        }
+        double s = 0;
+        for (int i = from; i < to; i++) {
+            s += y[i];
+        }
+        return s / (to - from);
+    }
+
+    public Status getStatus() {
+        return status;
+    }
+
+    /**
+     * True if the last run was extended for oscillating monitors.
+     */
+    public boolean isExtended() {
+        return extended;
+    }
+
+    public int getIterations() {
+        return iterations;
+    }
+
+    /**
+     * Iterations the outputs should be averaged over.
+     */
+    public int getAveragingWindow() {
+        return averagingWindow;
+    }
+
+    int checkIterations = 50; // iterations between checks
+    int window = 200; // iterations a monitor must be stable over
+    int extendIterations = 1000; // added to an oscillating run
+    double residualTol = 1e-4; // largest accepted residual
+    double monitorTol = 1e-3; // largest accepted change over the window, relative to the group
+    double massTol = .005; // largest accepted mass balance error, relative to the total
+
+    private final MacroUtils mu;
+    private final String exportFile;
+    private final ArrayList<List<String>> groups = new ArrayList<List<String>>();
+    private String[] residuals = new String[0];
+    private List<String> massMonitors = new ArrayList<String>();
+    private double massTotal;
+    private Status status = Status.NOT_CONVERGED;
+    private int iterations;
+    private boolean extended;
+    private int averagingWindow;
+    private double maxResidual;
+    private double maxChange;
+    private double massError;
+}
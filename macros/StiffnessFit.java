@@ -0,0 +1,256 @@
+/**
+ * Least-squares fit of a force or moment curve for stiffness and damping
+ * derivatives
+ *
+ * Fits y = c0 + c1 x + c2 x^2 + ... by ordinary least squares as points
+ * arrive. With signed terms, even powers are replaced by x^k-1 |x| (e.g.
+ * the quadratic damping term v|v|). The standard error of every
+ * coefficient follows from the residual variance and (X'X)^-1, and the rms
+ * residual relative to the largest |y| tells when the curve is
+ * characterised well enough to stop adding points. A fit whose points do
+ * not span the range the curve is used over is flagged as extrapolated.
+ *
+ * star v11.06
+ */
+import java.io.*;
+import java.util.*;
+
+public class StiffnessFit {
+
+    /**
+     * @param degree highest power of x
+     * @param intercept include the constant term
+     * @param signed odd-symmetric even powers, x|x| instead of x^2
+     */
+    public StiffnessFit(int degree, boolean intercept, boolean signed) {
+        this.signed = signed;
+        first = intercept ? 0 : 1;
+        p = degree - first + 1;
+        coef = new double[p];
+        stdErr = new double[p];
+    }
+
+    public void add(double x, double y) {
+        if (!Double.isNaN(y)) {
+            xs.add(x);
+            ys.add(y);
+            fitted = false;
+        }
+    }
+
+    public int size() {
+        return xs.size();
+    }
+
+    /**
+     * Range the curve is used over, from the smallest to the largest of x
+     * (e.g. the angles of the run matrix).
+     */
+    public void setRange(double... x) {
+        rangeMin = Double.POSITIVE_INFINITY;
+        rangeMax = Double.NEGATIVE_INFINITY;
+        for (double v : x) {
+            rangeMin = Math.min(rangeMin, v);
+            rangeMax = Math.max(rangeMax, v);
+        }
+    }
+
+    /**
+     * True if the points do not reach both ends of the range, so the curve
+     * is extrapolated over part of it. False without a range.
+     */
+    public boolean isExtrapolated() {
+        if (Double.isNaN(rangeMin)) {
+            return false;
+        }
+        return xs.isEmpty() || Collections.min(xs) > rangeMin
+                || Collections.max(xs) < rangeMax;
+    }
+
+    /**
+     * Fits the points so far. Standard errors are NaN until there are more
+     * points than coefficients.
+     */
+    public void fit() {
+        int n = xs.size();
+        Arrays.fill(coef, Double.NaN);
+        Arrays.fill(stdErr, Double.NaN);
+        rms = Double.NaN;
+        fitted = true;
+        if (n < p) {
+            return;
+        }
+        double[][] xtx = new double[p][p];
+        double[] xty = new double[p];
+        double[] row = new double[p];
+        for (int i = 0; i < n; i++) {
+            terms(xs.get(i), row);
+            for (int a = 0; a < p; a++) {
+                xty[a] += row[a] * ys.get(i);
+                for (int b = 0; b < p; b++) {
+                    xtx[a][b] += row[a] * row[b];
+                }
+            }
+        }
+        double[][] inv = invert(xtx);
+        if (inv == null) {
+            return;
+        }
+        for (int a = 0; a < p; a++) {
+            coef[a] = 0;
+            for (int b = 0; b < p; b++) {
+                coef[a] += inv[a][b] * xty[b];
+            }
+        }
+        double ssr = 0;
+        for (int i = 0; i < n; i++) {
+            double r = ys.get(i) - predict(xs.get(i));
+            ssr += r * r;
+        }
+        rms = Math.sqrt(ssr / n);
+        if (n > p) {
+            double var = ssr / (n - p);
+            for (int a = 0; a < p; a++) {
+                stdErr[a] = Math.sqrt(var * inv[a][a]);
+            }
+        }
+    }
+
+    public double predict(double x) {
+        double[] row = new double[p];
+        terms(x, row);
+        double y = 0;
+        for (int a = 0; a < p; a++) {
+            y += coef[a] * row[a];
+        }
+        return y;
+    }
+
+    /**
+     * Coefficient of x^power, NaN if the fit has no such term.
+     */
+    public double getCoefficient(int power) {
+        return power < first || power - first >= p ? Double.NaN
+                : coef[power - first];
+    }
+
+    public double getStdError(int power) {
+        return power < first || power - first >= p ? Double.NaN
+                : stdErr[power - first];
+    }
+
+    /**
+     * Rms residual relative to the largest |y|.
+     */
+    public double getRelativeResidual() {
+        double max = 0;
+        for (double y : ys) {
+            max = Math.max(max, Math.abs(y));
+        }
+        return rms / Math.max(max, 1e-30);
+    }
+
+    /**
+     * True once the fit has at least minPoints points, more points than
+     * coefficients, and a relative residual below tol.
+     */
+    public boolean isConverged(double tol, int minPoints) {
+        if (!fitted) {
+            fit();
+        }
+        return xs.size() >= Math.max(minPoints, p + 1)
+                && getRelativeResidual() < tol;
+    }
+
+    /**
+     * Term name of a power, e.g. "roll^2" or "v|v|".
+     */
+    public String termName(String x, int power) {
+        if (power == 0) {
+            return "1";
+        } else if (power == 1) {
+            return x;
+        } else if (signed && power % 2 == 0) {
+            return (power == 2 ? x : x + "^" + (power - 1)) + "|" + x + "|";
+        }
+        return x + "^" + power;
+    }
+
+    /**
+     * Appends one row per coefficient: name, term, value, standard error,
+     * points, relative residual and 1 if extrapolated.
+     */
+    public void write(PrintWriter pw, String name, String x) {
+        if (!fitted) {
+            fit();
+        }
+        for (int a = 0; a < p; a++) {
+            pw.println(name + "," + termName(x, a + first) + "," + coef[a]
+                    + "," + stdErr[a] + "," + xs.size() + ","
+                    + getRelativeResidual() + "," + (isExtrapolated() ? 1 : 0));
+        }
+    }
+
+    private void terms(double x, double[] row) {
+        for (int a = 0; a < p; a++) {
+            int k = a + first;
+            row[a] = signed && k % 2 == 0 && k > 0
+                    ? Math.pow(x, k - 1) * Math.abs(x) : Math.pow(x, k);
+        }
+    }
+
+    /**
+     * Gauss-Jordan inverse, null if singular.
+     */
+    private static double[][] invert(double[][] a) {
+        int n = a.length;
+        double[][] m = new double[n][2 * n];
+        for (int i = 0; i < n; i++) {
+            System.arraycopy(a[i], 0, m[i], 0, n);
+            m[i][n + i] = 1;
+        }
+        for (int c = 0; c < n; c++) {
+            int piv = c;
+            for (int r = c + 1; r < n; r++) {
+                if (Math.abs(m[r][c]) > Math.abs(m[piv][c])) {
+                    piv = r;
+                }
+            }
+            if (Math.abs(m[piv][c]) < 1e-300) {
+                return null;
+            }
+            double[] t = m[c];
+            m[c] = m[piv];
+            m[piv] = t;
+            double d = m[c][c];
+            for (int j = 0; j < 2 * n; j++) {
+                m[c][j] /= d;
+            }
+            for (int r = 0; r < n; r++) {
+                if (r != c && m[r][c] != 0) {
+                    double k = m[r][c];
+                    for (int j = 0; j < 2 * n; j++) {
+                        m[r][j] -= k * m[c][j];
+                    }
+                }
+            }
+        }
+        double[][] inv = new double[n][n];
+        for (int i = 0; i < n; i++) {
+            System.arraycopy(m[i], n, inv[i], 0, n);
+        }
+        return inv;
+    }
+
+    private final boolean signed;
+    private final int first;
+    private final int p;
+    private final double[] coef;
+    private final double[] stdErr;
+    private final ArrayList<Double> xs = new ArrayList<Double>();
+    private final ArrayList<Double> ys = new ArrayList<Double>();
+    private double rms;
+    private boolean fitted;
+    private double rangeMin = Double.NaN;
+    private double rangeMax = Double.NaN;
+}
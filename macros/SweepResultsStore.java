@@ -0,0 +1,404 @@
+/**
+ * Indexed store for sweep results
+ *
+ * Results are keyed by the parameter tuple of the sweep (e.g. speed, trim,
+ * height, rpm or sink, pitch, yaw, speed) and kept in a long-format csv,
+ * one "tuple, quantity, value" row per result. Rows are only ever appended,
+ * under a SharedFile lock, so several workers can write to the same store
+ * and a later row for the same tuple and quantity replaces the earlier one.
+ *
+ * For each quantity a grid index is built as a tree with one level per
+ * parameter, holding the sorted values present below each node. Grids do
+ * not have to be complete (e.g. adaptively sampled rpms differ per trim).
+ * Interpolation is hierarchical: multilinear between neighbouring nodes on
+ * every level, or a natural cubic spline along the last parameter, and
+ * clamped to the sampled range. A Table holds the tree in flat arrays, so
+ * an evaluation does not allocate and can be called at kHz rates.
+ *
+ * Command line:
+ *   java SweepResultsStore store.csv list
+ *   java SweepResultsStore store.csv get KT_norm 60 6.5 7.19 3300
+ *   java SweepResultsStore store.csv interp KT_norm 60 6.5 7.19 3300 [spline]
+ *   java SweepResultsStore store.csv slice KT_norm 60 nan 7.19 nan
+ *
+ * star v11.06
+ */
+import com.opencsv.CSVReader;
+import java.io.*;
+import java.util.*;
+
+public class SweepResultsStore {
+
+    /**
+     * Opens the store, creating it if the file does not exist.
+     *
+     * @param dims parameter names, in the order tuples are passed. Ignored
+     *        when the file exists, its header is used instead.
+     */
+    public SweepResultsStore(String file, String... dims) throws IOException {
+        this.file = file;
+        File lock = SharedFile.lock(file);
+        try {
+            if (new File(file).exists()) {
+                read();
+            } else {
+                this.dims = dims.clone();
+                PrintWriter pw = new PrintWriter(new FileWriter(file));
+                for (String d : dims) {
+                    pw.print(d + ",");
+                }
+                pw.println("Quantity,Value");
+                pw.close();
+            }
+        } finally {
+            lock.delete();
+        }
+    }
+
+    public String[] getDims() {
+        return dims.clone();
+    }
+
+    public Set<String> getQuantities() {
+        return data.keySet();
+    }
+
+    /**
+     * Stores one result and appends it to the file.
+     */
+    public void put(double[] key, String quantity, double value)
+            throws IOException {
+        put(key, new String[]{quantity}, new double[]{value});
+    }
+
+    /**
+     * Stores several results of one tuple and appends them to the file.
+     */
+    public void put(double[] key, String[] quantities, double[] values)
+            throws IOException {
+        File lock = SharedFile.lock(file);
+        try {
+            PrintWriter pw = new PrintWriter(new FileWriter(file, true));
+            for (int q = 0; q < quantities.length; q++) {
+                add(key.clone(), quantities[q], values[q]);
+                for (double k : key) {
+                    pw.print(k + ",");
+                }
+                pw.println(quantities[q] + "," + values[q]);
+            }
+            pw.close();
+        } finally {
+            lock.delete();
+        }
+    }
+
+    /**
+     * Exact lookup, NaN if the tuple has no value for the quantity.
+     */
+    public double get(String quantity, double... key) {
+        HashMap<List<Double>, double[]> q = data.get(quantity);
+        double[] v = q == null ? null : q.get(asList(key));
+        return v == null ? Double.NaN : v[v.length - 1];
+    }
+
+    /**
+     * Points with the given parameters fixed, NaN marks a free parameter.
+     *
+     * @return rows of the tuple followed by the value, in tuple order
+     */
+    public List<double[]> slice(String quantity, double... fixed) {
+        ArrayList<double[]> rows = new ArrayList<double[]>();
+        for (double[] p : sorted(quantity)) {
+            boolean match = true;
+            for (int d = 0; d < dims.length; d++) {
+                if (!Double.isNaN(fixed[d]) && p[d] != fixed[d]) {
+                    match = false;
+                    break;
+                }
+            }
+            if (match) {
+                rows.add(p);
+            }
+        }
+        return rows;
+    }
+
+    /**
+     * Interpolation table of a quantity. Tables are rebuilt after new
+     * results are put, so keep the returned table for repeated queries.
+     *
+     * @param spline cubic spline instead of linear along the last parameter
+     */
+    public Table table(String quantity, boolean spline) {
+        String key = quantity + (spline ? "/spline" : "/linear");
+        Table t = tables.get(key);
+        if (t == null) {
+            t = new Table(sorted(quantity), dims.length, spline);
+            tables.put(key, t);
+        }
+        return t;
+    }
+
+    public double interpolate(String quantity, double... x) {
+        return table(quantity, false).eval(x);
+    }
+
+    private void add(double[] key, String quantity, double value) {
+        HashMap<List<Double>, double[]> q = data.get(quantity);
+        if (q == null) {
+            q = new HashMap<List<Double>, double[]>();
+            data.put(quantity, q);
+        }
+        double[] p = new double[key.length + 1];
+        for (int d = 0; d < key.length; d++) {
+            p[d] = key[d] + 0.0;
+        }
+        p[key.length] = value;
+        q.put(asList(key), p);
+        tables.clear();
+    }
+
+    private List<double[]> sorted(String quantity) {
+        HashMap<List<Double>, double[]> q = data.get(quantity);
+        if (q == null) {
+            throw new IllegalArgumentException("No results for " + quantity);
+        }
+        ArrayList<double[]> points = new ArrayList<double[]>(q.values());
+        Collections.sort(points, new Comparator<double[]>() {
+            public int compare(double[] a, double[] b) {
+                for (int d = 0; d < dims.length; d++) {
+                    int c = Double.compare(a[d], b[d]);
+                    if (c != 0) {
+                        return c;
+                    }
+                }
+                return 0;
+            }
+        });
+        return points;
+    }
+
+    private void read() throws IOException {
+        CSVReader reader = new CSVReader(new FileReader(file));
+        String[] header = reader.readNext();
+        dims = Arrays.copyOf(header, header.length - 2);
+        for (String[] row = reader.readNext(); row != null;
+                row = reader.readNext()) {
+            if (row.length != header.length) {
+                continue;
+            }
+            double[] key = new double[dims.length];
+            for (int d = 0; d < dims.length; d++) {
+                key[d] = Double.parseDouble(row[d]);
+            }
+            add(key, row[dims.length], Double.parseDouble(row[dims.length + 1]));
+        }
+        reader.close();
+    }
+
+    private static List<Double> asList(double[] key) {
+        Double[] k = new Double[key.length];
+        for (int d = 0; d < key.length; d++) {
+            // -0.0 and 0.0 are one tuple
+            k[d] = key[d] + 0.0;
+        }
+        return Arrays.asList(k);
+    }
+
+    //--------------------------------------------------------------------------
+    // -- INTERPOLATION TABLE --
+    //--------------------------------------------------------------------------
+    public static class Table {
+
+        /**
+         * @param points sorted rows of the tuple followed by the value
+         */
+        Table(List<double[]> points, int numDims, boolean spline) {
+            this.numDims = numDims;
+            this.spline = spline;
+            ArrayList<Integer> starts = new ArrayList<Integer>();
+            ArrayList<Integer> counts = new ArrayList<Integer>();
+            ArrayList<Double> cs = new ArrayList<Double>();
+            ArrayList<Integer> links = new ArrayList<Integer>();
+            build(points, 0, points.size(), 0, starts, counts, cs, links);
+            start = new int[starts.size()];
+            count = new int[starts.size()];
+            for (int n = 0; n < start.length; n++) {
+                start[n] = starts.get(n);
+                count[n] = counts.get(n);
+            }
+            coords = new double[cs.size()];
+            next = new int[cs.size()];
+            for (int i = 0; i < coords.length; i++) {
+                coords[i] = cs.get(i);
+                next[i] = links.get(i);
+            }
+            values = new double[points.size()];
+            for (int i = 0; i < values.length; i++) {
+                values[i] = points.get(i)[numDims];
+            }
+            m2 = new double[coords.length];
+            if (spline) {
+                for (int n = 0; n < start.length; n++) {
+                    if (isLeaf(n)) {
+                        secondDerivatives(n);
+                    }
+                }
+            }
+        }
+
+        /**
+         * Interpolated value at x, one coordinate per parameter.
+         */
+        public double eval(double[] x) {
+            return eval(0, 0, x);
+        }
+
+        private double eval(int node, int d, double[] x) {
+            int s = start[node];
+            int n = count[node];
+            if (n == 1) {
+                return d == numDims - 1 ? values[next[s]]
+                        : eval(next[s], d + 1, x);
+            }
+            // bracketing pair by binary search, clamped to the range
+            int lo = s;
+            int hi = s + n - 1;
+            while (hi - lo > 1) {
+                int mid = (lo + hi) >>> 1;
+                if (coords[mid] <= x[d]) {
+                    lo = mid;
+                } else {
+                    hi = mid;
+                }
+            }
+            double h = coords[hi] - coords[lo];
+            double t = Math.min(Math.max((x[d] - coords[lo]) / h, 0), 1);
+            if (d < numDims - 1) {
+                return (1 - t) * eval(next[lo], d + 1, x)
+                        + t * eval(next[hi], d + 1, x);
+            }
+            double y = (1 - t) * values[next[lo]] + t * values[next[hi]];
+            if (spline) {
+                double u = 1 - t;
+                y += ((u * u * u - u) * m2[lo] + (t * t * t - t) * m2[hi])
+                        * h * h / 6;
+            }
+            return y;
+        }
+
+        private int build(List<double[]> points, int from, int to, int d,
+                ArrayList<Integer> starts, ArrayList<Integer> counts,
+                ArrayList<Double> cs, ArrayList<Integer> links) {
+            // distinct values of this level, children are built after them
+            ArrayList<int[]> groups = new ArrayList<int[]>();
+            for (int i = from; i < to;) {
+                int j = i + 1;
+                while (j < to && points.get(j)[d] == points.get(i)[d]) {
+                    j++;
+                }
+                groups.add(new int[]{i, j});
+                i = j;
+            }
+            int node = starts.size();
+            starts.add(cs.size());
+            counts.add(groups.size());
+            for (int[] g : groups) {
+                cs.add(points.get(g[0])[d]);
+                links.add(g[0]);
+            }
+            if (d < numDims - 1) {
+                int s = starts.get(node);
+                for (int k = 0; k < groups.size(); k++) {
+                    links.set(s + k, build(points, groups.get(k)[0],
+                            groups.get(k)[1], d + 1, starts, counts, cs, links));
+                }
+            } else {
+                leaves.add(node);
+            }
+            return node;
+        }
+
+        private boolean isLeaf(int node) {
+            return leaves.contains(node);
+        }
+
+        /**
+         * Natural cubic spline second derivatives along a leaf node.
+         */
+        private void secondDerivatives(int node) {
+            int s = start[node];
+            int n = count[node];
+            if (n < 3) {
+                return;
+            }
+            double[] u = new double[n];
+            for (int i = 1; i < n - 1; i++) {
+                double sig = (coords[s + i] - coords[s + i - 1])
+                        / (coords[s + i + 1] - coords[s + i - 1]);
+                double p = sig * m2[s + i - 1] + 2;
+                m2[s + i] = (sig - 1) / p;
+                double dy = (values[next[s + i + 1]] - values[next[s + i]])
+                        / (coords[s + i + 1] - coords[s + i])
+                        - (values[next[s + i]] - values[next[s + i - 1]])
+                        / (coords[s + i] - coords[s + i - 1]);
+                u[i] = (6 * dy / (coords[s + i + 1] - coords[s + i - 1])
+                        - sig * u[i - 1]) / p;
+            }
+            m2[s + n - 1] = 0;
+            for (int i = n - 2; i >= 0; i--) {
+                m2[s + i] = m2[s + i] * m2[s + i + 1] + u[i];
+            }
+        }
+
+        private final int numDims;
+        private final boolean spline;
+        private final int[] start; // first coordinate of each node
+        private final int[] count; // number of coordinates of each node
+        private final double[] coords;
+        private final int[] next; // child node, or value index on the last level
+        private final double[] values;
+        private final double[] m2; // spline second derivatives on the last level
+        private final HashSet<Integer> leaves = new HashSet<Integer>();
+    }
+
+    public static void main(String[] args) throws IOException {
+        SweepResultsStore store = new SweepResultsStore(args[0]);
+        String cmd = args[1];
+        if (cmd.equals("list")) {
+            System.out.println("Parameters: " + Arrays.toString(store.dims));
+            for (String q : store.getQuantities()) {
+                System.out.println(q + ": " + store.data.get(q).size()
+                        + " points");
+            }
+            return;
+        }
+        String q = args[2];
+        double[] x = new double[store.dims.length];
+        for (int d = 0; d < x.length; d++) {
+            x[d] = args[3 + d].equalsIgnoreCase("nan") ? Double.NaN
+                    : Double.parseDouble(args[3 + d]);
+        }
+        if (cmd.equals("get")) {
+            System.out.println(store.get(q, x));
+        } else if (cmd.equals("interp")) {
+            boolean spline = args.length > 3 + x.length
+                    && args[3 + x.length].equals("spline");
+            System.out.println(store.table(q, spline).eval(x));
+        } else if (cmd.equals("slice")) {
+            for (double[] row : store.slice(q, x)) {
+                StringBuilder sb = new StringBuilder();
+                for (double v : row) {
+                    sb.append(sb.length() > 0 ? "," : "").append(v);
+                }
+                System.out.println(sb);
+            }
+        }
+    }
+
+    private final String file;
+    private String[] dims;
+    private final LinkedHashMap<String, HashMap<List<Double>, double[]>> data
+            = new LinkedHashMap<String, HashMap<List<Double>, double[]>>();
+    private final HashMap<String, Table> tables = new HashMap<String, Table>();
+}
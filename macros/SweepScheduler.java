@@ -0,0 +1,303 @@
+/**
+ * Cost-model sweep scheduler
+ *
+ * Run points are grouped into jobs (points sharing one mesh, e.g. all
+ * rpms of a trim) and each point's cost is predicted as
+ * cells x steps x seconds-per-cell-step. The rate is learned per run kind
+ * from a shared history file that every point appends to. Jobs are packed
+ * across batch workers longest-processing-time first, and a sweep ETA is
+ * printed after each completed point.
+ *
+ * Workers running the same macro share the plan through a plan file, so
+ * each one only runs its own jobs. The worker count and id can be set
+ * with the SWEEP_WORKERS and SWEEP_WORKER_ID environment variables. The
+ * first worker writes the plan under a SharedFile lock, through a temp
+ * file and a rename, and the others read it.
+ *
+ * Each plan is a run with its own id, stored in the plan and in every
+ * history row. Points done only count for the run of the current plan,
+ * while the rate learns from every run of the kind. A new run starts when
+ * the matrix or the worker count changes, when every point of the last
+ * run is done, or when SWEEP_RUN_ID differs from the run of the plan, so
+ * set it to start a sweep over instead of resuming it.
+ *
+ * star v11.06
+ */
+import com.opencsv.CSVReader;
+import java.io.*;
+import java.util.*;
+import macroutils.*;
+import star.base.report.ElementCountReport;
+import star.common.*;
+
+public class SweepScheduler {
+
+    /**
+     * @param dir directory holding the history and plan files
+     * @param kind run kind, points of one kind share a cost rate
+     */
+    public SweepScheduler(MacroUtils mu, String dir, String kind,
+            int numWorkers, int workerId) {
+        this.mu = mu;
+        this.kind = kind;
+        historyFile = dir + File.separator + "sweep_history.csv";
+        planFile = dir + File.separator + "sweep_plan_" + kind + ".csv";
+        String env = System.getenv("SWEEP_WORKERS");
+        this.numWorkers = env == null ? numWorkers : Integer.parseInt(env);
+        env = System.getenv("SWEEP_WORKER_ID");
+        this.workerId = env == null ? workerId : Integer.parseInt(env);
+    }
+
+    /**
+     * Adds a job with the expected number of steps of each of its points.
+     */
+    public void addJob(String id, int... steps) {
+        jobs.put(id, steps);
+    }
+
+    /**
+     * Jobs assigned to this worker, longest first.
+     */
+    public List<String> plan() throws Exception {
+        String env = System.getenv("SWEEP_RUN_ID");
+        HashMap<String, Integer> assigned;
+        File lock = SharedFile.lock(planFile);
+        try {
+            assigned = readPlan();
+            if (assigned != null) {
+                readHistory();
+            }
+            if (assigned == null || (env == null ? isComplete()
+                    : !env.equals(runId))) {
+                runId = env != null ? env
+                        : String.format("%tY%<tm%<td-%<tH%<tM%<tS", new Date());
+                readHistory();
+                assigned = pack();
+                writePlan(assigned);
+            }
+        } finally {
+            lock.delete();
+        }
+        worker = assigned;
+        ArrayList<String> mine = new ArrayList<String>();
+        for (String id : order()) {
+            if (assigned.get(id) == workerId) {
+                mine.add(id);
+            }
+        }
+        mu.io.say.value("Sweep jobs for worker " + workerId,
+                mine.size() + " of " + jobs.size(), null, true);
+        printEta();
+        return mine;
+    }
+
+    public void startPoint() {
+        start = System.nanoTime();
+    }
+
+    /**
+     * Records the wall time of the point just run and prints the ETA.
+     */
+    public void endPoint(String jobId, String title, int steps)
+            throws Exception {
+        double seconds = (System.nanoTime() - start) / 1e9;
+        double cells = cellCount();
+        File lock = SharedFile.lock(historyFile);
+        try {
+            boolean header = !new File(historyFile).exists();
+            PrintWriter pw = new PrintWriter(new FileWriter(historyFile, true));
+            if (header) {
+                pw.println("Kind,Job,Title,Cells,Steps,Seconds,Run");
+            }
+            pw.println(kind + "," + jobId + "," + title + "," + cells + ","
+                    + steps + "," + seconds + "," + runId);
+            pw.close();
+        } finally {
+            lock.delete();
+        }
+        mu.io.say.value("Point wall time (s)", seconds, true);
+        readHistory();
+        printEta();
+    }
+
+    /**
+     * Remaining wall time of the whole sweep: the most loaded worker.
+     */
+    public double eta() {
+        double[] load = new double[numWorkers];
+        for (String id : jobs.keySet()) {
+            Integer done = pointsDone.get(id);
+            load[worker.get(id)] += cost(id, done == null ? 0 : done);
+        }
+        double max = 0;
+        for (double l : load) {
+            max = Math.max(max, l);
+        }
+        return max;
+    }
+
+    void printEta() {
+        double s = eta();
+        mu.io.say.value("Sweep ETA", String.format("%.0f h %02.0f min",
+                Math.floor(s / 3600), (s % 3600) / 60), null, true);
+    }
+
+    /**
+     * Predicted seconds for the points of a job after the first skip.
+     */
+    double cost(String id, int skip) {
+        int[] steps = jobs.get(id);
+        double total = 0;
+        for (int i = skip; i < steps.length; i++) {
+            total += steps[i];
+        }
+        Double cells = jobCells.get(id);
+        if (cells == null) {
+            cells = kindCells > 0 ? kindCells : 1;
+        }
+        return total * cells * rate;
+    }
+
+    private List<String> order() {
+        ArrayList<String> ids = new ArrayList<String>(jobs.keySet());
+        Collections.sort(ids, new Comparator<String>() {
+            public int compare(String a, String b) {
+                return Double.compare(cost(b, 0), cost(a, 0));
+            }
+        });
+        return ids;
+    }
+
+    private HashMap<String, Integer> pack() {
+        HashMap<String, Integer> assigned = new HashMap<String, Integer>();
+        double[] load = new double[numWorkers];
+        for (String id : order()) {
+            int w = 0;
+            for (int i = 1; i < numWorkers; i++) {
+                if (load[i] < load[w]) {
+                    w = i;
+                }
+            }
+            assigned.put(id, w);
+            load[w] += cost(id, 0);
+        }
+        return assigned;
+    }
+
+    /**
+     * True when every point of the current run is done.
+     */
+    private boolean isComplete() {
+        for (String id : jobs.keySet()) {
+            Integer done = pointsDone.get(id);
+            if (done == null || done < jobs.get(id).length) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private void writePlan(HashMap<String, Integer> assigned)
+            throws Exception {
+        File tmp = SharedFile.temp(planFile);
+        PrintWriter pw = new PrintWriter(new FileWriter(tmp));
+        pw.println("Job,Worker,Predicted (s),Run");
+        for (String id : order()) {
+            pw.println(id + "," + assigned.get(id) + "," + cost(id, 0) + ","
+                    + runId);
+        }
+        pw.close();
+        SharedFile.replace(tmp, planFile);
+    }
+
+    private HashMap<String, Integer> readPlan() throws Exception {
+        if (!new File(planFile).exists()) {
+            return null;
+        }
+        CSVReader reader = new CSVReader(new FileReader(planFile));
+        List<String[]> data = reader.readAll();
+        reader.close();
+        HashMap<String, Integer> assigned = new HashMap<String, Integer>();
+        for (int i = 1; i < data.size(); i++) {
+            assigned.put(data.get(i)[0], Integer.parseInt(data.get(i)[1]));
+            // plans from before run ids start a new run
+            runId = data.get(i).length > 3 ? data.get(i)[3] : null;
+        }
+        if (runId == null) {
+            return null;
+        }
+        // a different matrix or worker count means a new plan
+        if (!assigned.keySet().equals(jobs.keySet())) {
+            return null;
+        }
+        for (int w : assigned.values()) {
+            if (w >= numWorkers) {
+                return null;
+            }
+        }
+        return assigned;
+    }
+
+    private void readHistory() throws Exception {
+        pointsDone.clear();
+        jobCells.clear();
+        if (!new File(historyFile).exists()) {
+            return;
+        }
+        CSVReader reader = new CSVReader(new FileReader(historyFile));
+        List<String[]> data = reader.readAll();
+        reader.close();
+        double seconds = 0;
+        double cellSteps = 0;
+        double cellSum = 0;
+        int n = 0;
+        for (int i = 1; i < data.size(); i++) {
+            String[] row = data.get(i);
+            if (!row[0].equals(kind)) {
+                continue;
+            }
+            double cells = Double.parseDouble(row[3]);
+            seconds += Double.parseDouble(row[5]);
+            cellSteps += cells * Double.parseDouble(row[4]);
+            cellSum += cells;
+            n++;
+            jobCells.put(row[1], cells);
+            if (row.length < 7 || !row[6].equals(runId)) {
+                continue;
+            }
+            Integer done = pointsDone.get(row[1]);
+            pointsDone.put(row[1], done == null ? 1 : done + 1);
+        }
+        if (n > 0) {
+            rate = seconds / cellSteps;
+            kindCells = cellSum / n;
+        }
+    }
+
+    private double cellCount() {
+        Simulation sim = mu.getSimulation();
+        if (cellReport == null) {
+            cellReport = sim.getReportManager()
+                    .createReport(ElementCountReport.class);
+            cellReport.setPresentationName("Sweep_Cells");
+        }
+        cellReport.getParts().setObjects(sim.getRegionManager().getRegions());
+        return cellReport.getReportMonitorValue();
+    }
+
+    private final MacroUtils mu;
+    private final String kind;
+    private final String historyFile;
+    private final String planFile;
+    private final int numWorkers;
+    private final int workerId;
+    private final LinkedHashMap<String, int[]> jobs = new LinkedHashMap<String, int[]>();
+    private final HashMap<String, Integer> pointsDone = new HashMap<String, Integer>();
+    private final HashMap<String, Double> jobCells = new HashMap<String, Double>();
+    private HashMap<String, Integer> worker;
+    private String runId;
+    private ElementCountReport cellReport;
+    private double rate = 1e-6; // s per cell-step until history is available
+    private double kindCells;
+    private long start;
+}
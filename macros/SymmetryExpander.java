@@ -0,0 +1,247 @@
+/**
+ * Port/starboard symmetry of a run matrix
+ *
+ * For a hull symmetric about its centre plane, the tuple with roll and yaw
+ * (drift) negated is the mirror image of a run: Fx, Fz and My are the same
+ * and Fy, Mx and Mz change sign. Of every pair of mirrored tuples in a
+ * matrix only the first is run, and the results of every run are written
+ * to the store a second time under the mirrored tuple, so the store covers
+ * both sides even where the matrix only had one. A number of pairs can be
+ * kept as spot checks: both are run and the largest relative difference
+ * between a run and its mirrored partner is stored as "Mirror Error".
+ *
+ * Mirrored angles are compared modulo 360 and written in (-180, 180], or
+ * as the partner tuple of the matrix when there is one. Note that pairs
+ * need both angles negated, e.g. rolls of -6 and 6 at a yaw of 90 are not
+ * mirror images of each other (only at yaws of 0 and 180).
+ *
+ * star v11.06
+ */
+import java.io.*;
+import java.util.*;
+
+public class SymmetryExpander {
+
+    /**
+     * @param dims parameter names of the store tuples
+     * @param mirrored angle parameters negated by the mirror, e.g. roll, yaw
+     * @param flipped quantities that change sign, e.g. Fy, Mx, Mz
+     */
+    public SymmetryExpander(String[] dims, String[] mirrored,
+            String[] flipped) {
+        List<String> d = Arrays.asList(dims);
+        mirroredIdx = new int[mirrored.length];
+        for (int i = 0; i < mirrored.length; i++) {
+            mirroredIdx[i] = d.indexOf(mirrored[i]);
+            if (mirroredIdx[i] < 0) {
+                throw new IllegalArgumentException(mirrored[i] + " not in "
+                        + d);
+            }
+        }
+        this.flipped = new HashSet<String>(Arrays.asList(flipped));
+    }
+
+    /**
+     * Mirror image of a tuple, angles in (-180, 180].
+     */
+    public double[] mirror(double[] key) {
+        double[] m = key.clone();
+        for (int i : mirroredIdx) {
+            if (i < m.length) {
+                double a = -m[i] % 360;
+                m[i] = a > 180 ? a - 360 : a <= -180 ? a + 360 : a;
+                if (m[i] == 0) {
+                    m[i] = 0; // no -0.0 in titles and keys
+                }
+            }
+        }
+        return m;
+    }
+
+    public boolean isSelfMirror(double[] key) {
+        return same(key, mirror(key));
+    }
+
+    /**
+     * Tuples of the matrix to run, in matrix order. Tuples may leave off
+     * trailing parameters that are not mirrored (e.g. the speeds run on
+     * one mesh); the same prefix length is then used for all later calls.
+     *
+     * @param spotChecks number of mirrored pairs run on both sides
+     */
+    public List<double[]> plan(List<double[]> matrix, int spotChecks) {
+        prefix = matrix.isEmpty() ? 0 : matrix.get(0).length;
+        partners.clear();
+        checks.clear();
+        ArrayList<double[]> run = new ArrayList<double[]>();
+        skipped = 0;
+        for (int i = 0; i < matrix.size(); i++) {
+            double[] t = matrix.get(i);
+            if (isSelfMirror(t)) {
+                run.add(t);
+                continue;
+            }
+            double[] m = mirror(t);
+            int j = -1;
+            for (int k = 0; k < matrix.size() && j < 0; k++) {
+                if (same(matrix.get(k), m)) {
+                    j = k;
+                }
+            }
+            if (j < 0) {
+                run.add(t);
+            } else if (j > i) {
+                run.add(t);
+                partners.put(asList(t), matrix.get(j));
+                if (checks.size() < 2 * spotChecks) {
+                    checks.add(asList(t));
+                    checks.add(asList(matrix.get(j)));
+                }
+            } else if (checks.contains(asList(t))) {
+                run.add(t);
+                partners.put(asList(t), matrix.get(j));
+            } else {
+                skipped++;
+            }
+        }
+        return run;
+    }
+
+    /**
+     * Tuples of the last plan left to their mirror images.
+     */
+    public int getSkipped() {
+        return skipped;
+    }
+
+    /**
+     * Writes the mirrored results of a run to the store. For a spot check
+     * pair, or any mirror image that was run itself, the results are not
+     * replaced and the mirror error is stored instead once both sides are
+     * done, see getError().
+     *
+     * @return the tuple written, or null if none
+     */
+    public double[] expand(SweepResultsStore store, double[] key)
+            throws IOException {
+        if (isSelfMirror(key)) {
+            return null;
+        }
+        double[] m = mirrorOf(key);
+        if (checks.contains(asList(Arrays.copyOf(key, prefix)))
+                || isRun(store, m)) {
+            check(store, key, m);
+            return null;
+        }
+        ArrayList<String> names = new ArrayList<String>();
+        ArrayList<Double> values = new ArrayList<Double>();
+        for (String q : store.getQuantities()) {
+            double v = store.get(q, key);
+            if (Double.isNaN(v) || q.equals(MIRRORED) || q.equals(ERROR)) {
+                continue;
+            }
+            names.add(q);
+            values.add(flipped.contains(q) ? -v : v);
+        }
+        names.add(MIRRORED);
+        values.add(1.);
+        double[] v = new double[values.size()];
+        for (int i = 0; i < v.length; i++) {
+            v[i] = values.get(i);
+        }
+        store.put(m, names.toArray(new String[0]), v);
+        return m;
+    }
+
+    /**
+     * Largest relative difference between the results of key and the
+     * mirrored results of its partner, stored for both. NaN until both
+     * are done.
+     */
+    double check(SweepResultsStore store, double[] key, double[] m)
+            throws IOException {
+        double error = Double.NaN;
+        for (String q : store.getQuantities()) {
+            if (q.equals(MIRRORED) || q.equals(ERROR)) {
+                continue;
+            }
+            double a = store.get(q, key);
+            double b = store.get(q, m);
+            if (Double.isNaN(a) || Double.isNaN(b)) {
+                continue;
+            }
+            double e = Math.abs(a - (flipped.contains(q) ? -b : b))
+                    / Math.max(Math.max(Math.abs(a), Math.abs(b)), 1e-12);
+            error = Double.isNaN(error) ? e : Math.max(error, e);
+        }
+        if (!Double.isNaN(error)) {
+            store.put(key, ERROR, error);
+            store.put(m, ERROR, error);
+        }
+        return error;
+    }
+
+    private boolean isRun(SweepResultsStore store, double[] key) {
+        if (store.get(MIRRORED, key) == 1) {
+            return false;
+        }
+        for (String q : store.getQuantities()) {
+            if (!q.equals(ERROR) && !Double.isNaN(store.get(q, key))) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Mirror error of a spot check tuple, NaN if not checked (yet).
+     */
+    public static double getError(SweepResultsStore store, double[] key) {
+        return store.get(ERROR, key);
+    }
+
+    /**
+     * Mirrored tuple, in the matrix representation of the partner if known.
+     */
+    private double[] mirrorOf(double[] key) {
+        double[] m = mirror(key);
+        double[] partner = partners.get(asList(Arrays.copyOf(key, prefix)));
+        if (partner != null) {
+            System.arraycopy(partner, 0, m, 0, prefix);
+        }
+        return m;
+    }
+
+    private boolean same(double[] a, double[] b) {
+        for (int i = 0; i < a.length; i++) {
+            boolean angle = false;
+            for (int j : mirroredIdx) {
+                angle |= i == j;
+            }
+            double d = angle ? Math.abs(a[i] - b[i]) % 360 : Math.abs(a[i] - b[i]);
+            if (Math.min(d, angle ? 360 - d : d) > 1e-9) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private static List<Double> asList(double[] t) {
+        ArrayList<Double> l = new ArrayList<Double>();
+        for (double v : t) {
+            l.add(v);
+        }
+        return l;
+    }
+
+    static final String MIRRORED = "Mirrored";
+    static final String ERROR = "Mirror Error";
+
+    private final int[] mirroredIdx;
+    private final HashSet<String> flipped;
+    private final HashMap<List<Double>, double[]> partners
+            = new HashMap<List<Double>, double[]>();
+    private final HashSet<List<Double>> checks = new HashSet<List<Double>>();
+    private int prefix;
+    private int skipped;
+}
@@ -17,8 +17,12 @@ public class Test_Tank extends StarMacro {
     //double[] rpms = {343, 714, 1000, 1714};
     double[] rpms = {2286, 2857};
     double mfr_wot = 0.3; // kgps
-    double deg = 5;
+    double deg = 5; // degrees per timestep for the sampled revolutions
+    double degWashout = 10; // degrees per timestep before them
+    double revsSampled = 20; // revolutions at deg at the end of every rpm
     double stop = 25; // stopping criteria (s)
+    SavePolicy.Mode saveMode = SavePolicy.Mode.FULL;
+    int saveEveryN = 2; // rpms between saves for EVERY_NTH
 
     public void execute() {
         varyRPM();
@@ -30,25 +34,33 @@ public class Test_Tank extends StarMacro {
         rm = (RotatingMotion) mu.getSimulation().get(
                 MotionManager.class).getObject("Rotation");
         ud.bdry = mu.get.boundaries.byREGEX("exh_inlet", true);
+        savePolicy = new SavePolicy(mu, saveMode, saveEveryN);
+        stepper = new TimeStepController(mu);
         for (double rpm : rpms) {
             rm.getRotationRate().setValue(rpm);
-            tStep = 60. / 360. / rpm * deg;
-            mu.set.solver.timestep(tStep);
+            // run on to the stopping time, coarse until the sampled revolutions
+            double revsTotal = (stop - mu.getSimulation().getSolution()
+                    .getPhysicalTime()) * rpm / 60;
+            stepper.rotating(rpm);
+            stepper.revolutions(revsTotal - revsSampled, degWashout);
+            stepper.revolutions(Math.min(revsSampled, revsTotal), deg);
             mfr = Math.pow(rpm / 3543, 3) * mfr_wot;
             mu.set.boundary.values(ud.bdry,
                     StaticDeclarations.Vars.MFR, mfr, ud.unit_kgps);
-            mu.get.solver.stoppingCriteria_MaxTime().setMaximumTime(stop);
-            mu.run();
+            stepper.run();
             ud.simTitle = rpm + "rpm";
-            mu.saveSim();
+            savePolicy.save();
             stop += 5;
         }
+        savePolicy.endOfMeshGroup();
+        savePolicy.printStats();
     }
 
     MacroUtils mu;
     UserDeclarations ud;
     RotatingMotion rm;
+    SavePolicy savePolicy;
+    TimeStepController stepper;
     double mfr;
-    double tStep;
 
 }
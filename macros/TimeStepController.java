@@ -0,0 +1,210 @@
+/**
+ * Time-step and step-count controller
+ *
+ * A run point is a schedule of stages, each one a number of revolutions at
+ * a target degrees per step (rotating runs), a physical time at a target
+ * Courant number, or a physical time at a fixed step. A typical schedule
+ * washes out the start transient with a large step and then runs the
+ * sampled revolution or window at the fine step, and the step counts follow
+ * from the schedule.
+ *
+ * For Courant stages the maximum convective Courant number
+ * |U| dt / V^(1/3) is measured over all regions after every chunk of steps
+ * and the step is scaled toward the target, at most by a factor of two per
+ * chunk. A Courant mask limits the measurement to the cells where it is
+ * nonzero, e.g. the free surface of a VOF run.
+ *
+ * star v11.06
+ */
+import java.util.*;
+import macroutils.*;
+import star.base.report.MaxReport;
+import star.common.*;
+
+public class TimeStepController {
+
+    public TimeStepController(MacroUtils mu) {
+        this.mu = mu;
+    }
+
+    /**
+     * Starts a new schedule for a prop turning at rpm.
+     */
+    public void rotating(double rpm) {
+        this.rpm = rpm;
+        stages.clear();
+    }
+
+    /**
+     * Starts a new schedule for a run without a rotation rate, the first
+     * Courant stage starts from dt0.
+     */
+    public void courant(double dt0) {
+        this.dt = dt0;
+        stages.clear();
+    }
+
+    /**
+     * Adds a stage of the given revolutions at the given degrees per step.
+     */
+    public void revolutions(double revs, double degPerStep) {
+        if (revs > 0) {
+            stages.add(new double[]{ROTATING, revs, degPerStep});
+        }
+    }
+
+    /**
+     * Adds a stage of the given physical time at the target Courant number.
+     */
+    public void seconds(double seconds, double courant) {
+        if (seconds > 0) {
+            stages.add(new double[]{COURANT, seconds, courant});
+        }
+    }
+
+    /**
+     * Adds a stage of the given physical time at a fixed step.
+     */
+    public void fixed(double seconds, double tStep) {
+        if (seconds > 0) {
+            stages.add(new double[]{FIXED, seconds, tStep});
+        }
+    }
+
+    /**
+     * Time step of a rotating stage.
+     */
+    public double timestep(double degPerStep) {
+        return 1 / (rpm / 60 * 360 / degPerStep);
+    }
+
+    /**
+     * Predicted steps of the schedule. Courant stages are predicted with
+     * the current step.
+     */
+    public int getSteps() {
+        int steps = 0;
+        for (double[] s : stages) {
+            steps += stageSteps(s, s[0] == COURANT ? dt : stageStep(s));
+        }
+        return steps;
+    }
+
+    /**
+     * Steps run by the last stage of the last run(), i.e. the samples of the
+     * final window.
+     */
+    public int getLastStageSteps() {
+        return lastStageSteps;
+    }
+
+    public double getTimestep() {
+        return dt;
+    }
+
+    /**
+     * Runs the schedule.
+     *
+     * @return number of steps run
+     */
+    public int run() {
+        int total = 0;
+        for (double[] s : stages) {
+            int steps;
+            if (s[0] == COURANT) {
+                steps = runCourant(s[1], s[2]);
+            } else {
+                dt = stageStep(s);
+                steps = stageSteps(s, dt);
+                setTimestep(dt);
+                mu.step(steps);
+            }
+            mu.io.say.value(String.format("Time step stage %.3g %s",
+                    s[1], s[0] == ROTATING ? "revs" : "s"),
+                    String.format("%d steps of %.4g s", steps, dt), null, true);
+            lastStageSteps = steps;
+            total += steps;
+        }
+        return total;
+    }
+
+    private int runCourant(double seconds, double target) {
+        int steps = 0;
+        double elapsed = 0;
+        while (seconds - elapsed > .5 * dt) {
+            int chunk = (int) Math.min(checkSteps,
+                    Math.ceil((seconds - elapsed) / dt - .5));
+            chunk = Math.max(chunk, 1);
+            setTimestep(dt);
+            mu.step(chunk);
+            steps += chunk;
+            elapsed += chunk * dt;
+            double c = courantReport().getReportMonitorValue();
+            if (c > 0 && seconds - elapsed > checkSteps * dt) {
+                dt *= Math.min(Math.max(target / c, .5), 2);
+            }
+        }
+        return steps;
+    }
+
+    private double stageStep(double[] s) {
+        return s[0] == ROTATING ? timestep(s[2]) : s[2];
+    }
+
+    private static int stageSteps(double[] s, double dt) {
+        if (s[0] == ROTATING) {
+            return (int) Math.round(s[1] * 360 / s[2]);
+        }
+        return (int) Math.round(s[1] / dt);
+    }
+
+    private void setTimestep(double tStep) {
+        if (tStep != lastSet) {
+            mu.set.solver.timestep(tStep);
+            lastSet = tStep;
+        }
+    }
+
+    private MaxReport courantReport() {
+        Simulation sim = mu.getSimulation();
+        if (report != null) {
+            return report;
+        }
+        FieldFunctionManager ffm = sim.getFieldFunctionManager();
+        UserFieldFunction uff;
+        if (ffm.has("TSC_Courant")) {
+            uff = (UserFieldFunction) ffm.getFunction("TSC_Courant");
+        } else {
+            uff = ffm.createFieldFunction();
+            uff.getTypeOption().setSelected(FieldFunctionTypeOption.Type.SCALAR);
+            uff.setPresentationName("TSC_Courant");
+            uff.setFunctionName("TSC_Courant");
+        }
+        String c = "mag($$Velocity) * $TimeStep / pow($Volume, 1./3)";
+        uff.setDefinition(courantMask.isEmpty() ? c
+                : "(" + courantMask + ") ? " + c + " : 0");
+        if (sim.getReportManager().has("TSC_Courant")) {
+            report = (MaxReport) sim.getReportManager().getReport("TSC_Courant");
+            return report;
+        }
+        report = sim.getReportManager().createReport(MaxReport.class);
+        report.setPresentationName("TSC_Courant");
+        report.setScalar(ffm.getFunction("TSC_Courant"));
+        report.getParts().setObjects(sim.getRegionManager().getRegions());
+        return report;
+    }
+
+    int checkSteps = 20; // Courant stages measure and adapt every checkSteps
+    String courantMask = ""; // expression nonzero in the cells the Courant number is measured in, empty for all
+
+    private static final double ROTATING = 0;
+    private static final double COURANT = 1;
+    private static final double FIXED = 2;
+    private final MacroUtils mu;
+    private final ArrayList<double[]> stages = new ArrayList<double[]>();
+    private MaxReport report;
+    private double rpm;
+    private double dt;
+    private double lastSet = Double.NaN;
+    private int lastStageSteps;
+}
@@ -0,0 +1,303 @@
+/**
+ * Warm-start service for parametric sweeps
+ *
+ * Every completed run point is indexed by its parameter tuple together
+ * with its .sim file and a cell-centred field table (velocity and
+ * pressure) exported next to it. Before a new point, the nearest converged
+ * entry in scaled parameter space is found and its field table is mapped
+ * onto the current mesh through tabular initial conditions, so the point
+ * starts from a neighbouring solution instead of a cleared field.
+ *
+ * Only converged points export a field table, and at most maxFieldTables
+ * are kept: the oldest are deleted, except tables a SavePolicy saved as
+ * the result of a point. Entries whose table is gone are skipped.
+ *
+ * star v11.06
+ */
+import com.opencsv.CSVReader;
+import java.io.*;
+import java.util.*;
+import macroutils.*;
+import star.common.*;
+import star.flow.*;
+
+public class WarmStart {
+
+    /**
+     * @param mu macro utils of the running macro
+     * @param indexFile csv file holding the index, created if missing
+     * @param dims parameter names, in the order tuples are passed
+     * @param scales distance scale of each parameter, i.e. the change in
+     *        that parameter considered as far as one unit of any other
+     */
+    public WarmStart(MacroUtils mu, String indexFile, String[] dims,
+            double[] scales) {
+        this.mu = mu;
+        this.indexFile = indexFile;
+        this.dims = dims;
+        this.scales = scales;
+        try {
+            readIndex();
+        } catch (Exception ex) {
+            mu.getSimulation().println(ex);
+        }
+    }
+
+    /**
+     * Nearest converged entry to the given tuple, or null if the index is
+     * empty.
+     */
+    public Entry nearest(double[] params) {
+        Entry best = null;
+        double bestDist = Double.MAX_VALUE;
+        for (Entry e : entries) {
+            if (!e.converged || !new File(e.fieldFile).exists()) {
+                continue;
+            }
+            double d = 0;
+            for (int i = 0; i < dims.length; i++) {
+                double di = (e.params[i] - params[i]) / scales[i];
+                d += di * di;
+            }
+            if (d < bestDist) {
+                bestDist = d;
+                best = e;
+            }
+        }
+        return best;
+    }
+
+    /**
+     * Initializes the current solution from the nearest converged point.
+     * When that point is the one just solved and the mesh has not changed
+     * since, the fields in memory are already the best start and are kept.
+     *
+     * @return true if the point starts from a neighbouring solution
+     */
+    public boolean apply(double[] params, boolean meshChanged) {
+        Entry e = nearest(params);
+        if (e == null) {
+            mu.io.say.msg("Warm start: no converged neighbour, cold start.",
+                    true);
+            return false;
+        }
+        if (e == last && !meshChanged) {
+            mu.io.say.msg("Warm start: continuing from " + e.title(), true);
+            return true;
+        }
+        try {
+            mapFields(e.fieldFile);
+        } catch (Exception ex) {
+            mu.getSimulation().println(ex);
+            return false;
+        }
+        mu.io.say.msg("Warm start: mapped fields from " + e.title(), true);
+        return true;
+    }
+
+    /**
+     * Adds the point to the index, and exports its fields if it converged.
+     */
+    public void record(double[] params, boolean converged, String simFile)
+            throws Exception {
+        String fieldFile = "";
+        if (converged) {
+            long t0 = System.nanoTime();
+            fieldFile = simFile.replaceAll("\\.sim$", "") + "_fields.csv";
+            exportFields(mu, fieldFile);
+            tables.add(fieldFile);
+            written++;
+            bytes += new File(fieldFile).length();
+            seconds += (System.nanoTime() - t0) / 1e9;
+            prune();
+        }
+        Entry e = new Entry(params.clone(), converged, simFile, fieldFile);
+        entries.add(e);
+        last = e;
+        // other workers of the sweep append to the same index
+        File lock = SharedFile.lock(indexFile);
+        try {
+            boolean header = !new File(indexFile).exists();
+            PrintWriter pw = new PrintWriter(new FileWriter(indexFile, true));
+            if (header) {
+                for (String d : dims) {
+                    pw.print(d + ",");
+                }
+                pw.println("Converged,Sim File,Field File");
+            }
+            for (double p : e.params) {
+                pw.print(p + ",");
+            }
+            pw.println((converged ? 1 : 0) + "," + simFile + "," + fieldFile);
+            pw.close();
+        } finally {
+            lock.delete();
+        }
+    }
+
+    /**
+     * Deletes the oldest field tables of this session beyond
+     * maxFieldTables.
+     */
+    private void prune() {
+        while (tables.size() > maxFieldTables) {
+            String f = tables.remove(0);
+            if (!kept.contains(f)) {
+                new File(f).delete();
+            }
+        }
+    }
+
+    /**
+     * Marks a field table as a saved result, never deleted by prune.
+     */
+    static void keep(String fieldFile) {
+        kept.add(fieldFile);
+    }
+
+    public void printStats() {
+        mu.io.say.value("Warm start field tables", String.format(
+                "%d written, %.1f MB, %.1f s", written, bytes / 1e6,
+                seconds), null, true);
+    }
+
+    /**
+     * Writes the cell-centred velocity and pressure of all regions to a csv
+     * table. A repeated call for the same file and iteration is skipped.
+     */
+    static void exportFields(MacroUtils mu, String fieldFile) {
+        Simulation sim = mu.getSimulation();
+        int iteration = sim.getSimulationIterator().getCurrentIteration();
+        if (fieldFile.equals(lastExport) && iteration == lastExportIteration
+                && new File(fieldFile).exists()) {
+            return;
+        }
+        FieldFunctionManager ffm = sim.getFieldFunctionManager();
+        FieldFunction vel = ffm.getFunction("Velocity");
+        ArrayList<FieldFunction> ffs = new ArrayList<FieldFunction>();
+        ffs.add(vel.getComponentFunction(0));
+        ffs.add(vel.getComponentFunction(1));
+        ffs.add(vel.getComponentFunction(2));
+        ffs.add(ffm.getFunction("Pressure"));
+        XyzInternalTable table;
+        if (sim.getTableManager().has("Field_Export")) {
+            table = (XyzInternalTable) sim.getTableManager()
+                    .getTable("Field_Export");
+        } else {
+            table = sim.getTableManager().createTable(XyzInternalTable.class);
+            table.setPresentationName("Field_Export");
+        }
+        table.setFieldFunctions(ffs);
+        table.getParts().setObjects(sim.getRegionManager().getRegions());
+        table.extract();
+        table.export(fieldFile, ",");
+        lastExport = fieldFile;
+        lastExportIteration = iteration;
+    }
+
+    void mapFields(String fieldFile) throws Exception {
+        // column names carry the export units, so match on the prefix
+        CSVReader reader = new CSVReader(new FileReader(fieldFile));
+        String[] header = reader.readNext();
+        reader.close();
+
+        Simulation sim = mu.getSimulation();
+        FileTable table = (FileTable) sim.getTableManager()
+                .createFromFile(fieldFile);
+        table.setPresentationName("WarmStart_Import");
+        for (Region r : sim.getRegionManager().getRegions()) {
+            PhysicsContinuum pc = r.getPhysicsContinuum();
+            if (pc == null) {
+                continue;
+            }
+            VelocityProfile vp = pc.getInitialConditions()
+                    .get(VelocityProfile.class);
+            vp.setMethod(XyzTabularVectorProfileMethod.class);
+            XyzTabularVectorProfileMethod vm
+                    = vp.getMethod(XyzTabularVectorProfileMethod.class);
+            vm.setTable(table);
+            vm.setXData(column(header, "Velocity[i]"));
+            vm.setYData(column(header, "Velocity[j]"));
+            vm.setZData(column(header, "Velocity[k]"));
+            InitialPressureProfile pp = pc.getInitialConditions()
+                    .get(InitialPressureProfile.class);
+            pp.setMethod(XyzTabularScalarProfileMethod.class);
+            XyzTabularScalarProfileMethod pm
+                    = pp.getMethod(XyzTabularScalarProfileMethod.class);
+            pm.setTable(table);
+            pm.setData(column(header, "Pressure"));
+        }
+        // previous import is no longer referenced by the initial conditions
+        if (importTable != null) {
+            sim.getTableManager().remove(importTable);
+        }
+        importTable = table;
+
+        mu.clear.solution();
+        sim.getSolution().initializeSolution();
+    }
+
+    private static String column(String[] header, String prefix) {
+        for (String h : header) {
+            if (h.trim().startsWith(prefix)) {
+                return h.trim();
+            }
+        }
+        throw new RuntimeException("Column " + prefix + " not in field table");
+    }
+
+    private void readIndex() throws Exception {
+        if (!new File(indexFile).exists()) {
+            return;
+        }
+        CSVReader reader = new CSVReader(new FileReader(indexFile));
+        List<String[]> data = reader.readAll();
+        reader.close();
+        for (int i = 1; i < data.size(); i++) {
+            String[] row = data.get(i);
+            double[] params = new double[dims.length];
+            for (int j = 0; j < dims.length; j++) {
+                params[j] = Double.parseDouble(row[j]);
+            }
+            entries.add(new Entry(params, row[dims.length].equals("1"),
+                    row[dims.length + 1], row[dims.length + 2]));
+        }
+    }
+
+    public class Entry {
+
+        Entry(double[] params, boolean converged, String simFile,
+                String fieldFile) {
+            this.params = params;
+            this.converged = converged;
+            this.simFile = simFile;
+            this.fieldFile = fieldFile;
+        }
+
+        String title() {
+            return new File(simFile).getName();
+        }
+
+        final double[] params;
+        final boolean converged;
+        final String simFile;
+        final String fieldFile;
+    }
+
+    int maxFieldTables = 20; // field tables kept on disk, the oldest are deleted
+
+    private final MacroUtils mu;
+    private final String indexFile;
+    private final String[] dims;
+    private final double[] scales;
+    private final ArrayList<Entry> entries = new ArrayList<Entry>();
+    private Entry last;
+    private FileTable importTable;
+    private final ArrayList<String> tables = new ArrayList<String>();
+    private int written;
+    private long bytes;
+    private double seconds;
+    private static final Set<String> kept = new HashSet<String>();
+    private static String lastExport;
+    private static int lastExportIteration;
+}
@@ -191,8 +191,9 @@ public class excel extends StarMacro {
                         //----------------------------------------------------------
                         // Loop through all the prop speeds
                         //----------------------------------------------------------
-                        for (m = 0; m < set_rpm.length; m++) {
-                            rpm = set_rpm[m];
+                        double[] run_rpm = rpmsRun(workingDir, simTitle + "_" + speed + "mph_" + trim + "deg_" + height + "in_", set_rpm);
+                        for (m = 0; m < run_rpm.length; m++) {
+                            rpm = run_rpm[m];
 
                             // Update base filename for current run conditions
                             filename = workingDir + simTitle + "_" + speed + "mph_" + trim + "deg_" + height + "in_" + rpm + "rpm";
@@ -304,4 +305,29 @@ public class excel extends StarMacro {
             sim.println(ex);
         }
     }
+
+    // Find the rpms actually run for a condition (adaptive sampling does not
+    // follow set_rpm), falling back to set_rpm if no prop files are found
+    private double[] rpmsRun(String workingDir, String prefix, double[] set_rpm) {
+        List<Double> found = new ArrayList<Double>();
+        File[] files = new File(workingDir).listFiles();
+        if (files != null) {
+            for (File f : files) {
+                String name = f.getName();
+                if (name.startsWith(prefix) && name.endsWith("rpm_prop.csv")) {
+                    found.add(Double.parseDouble(name.substring(prefix.length(),
+                            name.length() - "rpm_prop.csv".length())));
+                }
+            }
+        }
+        if (found.isEmpty()) {
+            return set_rpm;
+        }
+        Collections.sort(found);
+        double[] rpms = new double[found.size()];
+        for (int i = 0; i < rpms.length; i++) {
+            rpms[i] = found.get(i);
+        }
+        return rpms;
+    }
 }